@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand;
+
+/**
+ * Pixel iterator able to iterate a batch of pixels in one call.
+ *
+ * @author Uwe Krueger
+ */
+public interface BatchPixelIterator extends PixelIterator {
+  /**
+   * Iterates the n pixels given by the coordinates xs[i],ys[i] and
+   * stores the iteration values, identical to those of {@link #iter()},
+   * in its[i]. The pixel selected by setX/setY is not affected.
+   */
+  void iter(int[] xs, int[] ys, int n, int[] its);
+}
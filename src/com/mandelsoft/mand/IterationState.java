@@ -0,0 +1,332 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Continuation state for the pixels of an image that reached the
+ * iteration limit. For every such pixel the last orbit point is kept,
+ * so a refinement with a higher limit can continue the iteration
+ * instead of starting again with z=0. Pixels are identified by their
+ * absolute index y*rx+x in the image raster.
+ *
+ * The state can only be used by a {@link ResumablePixelIterator}, all
+ * other pixel iterators, and pixels without a state, just start from
+ * the beginning. It is stored in a separate file beside the raster
+ * file (see {@link #getFile(File)}).
+ *
+ * @author Uwe Krueger
+ */
+public class IterationState {
+  static public final int MAGIC=0x55555A5A;
+
+  static private final int VERSION=1;
+
+  private int limit;      // iterations done for all pixels
+  private int n;
+  private int[] index;
+  private double[] zx;
+  private double[] zy;
+  private volatile boolean sorted;
+
+  public IterationState()
+  {
+    this(0);
+  }
+
+  public IterationState(int limit)
+  {
+    this.limit=limit;
+    this.index=new int[16];
+    this.zx=new double[16];
+    this.zy=new double[16];
+    this.sorted=true;
+  }
+
+  public int getLimit()
+  {
+    return limit;
+  }
+
+  public int size()
+  {
+    return n;
+  }
+
+  synchronized
+  public void add(int ix, double x, double y)
+  {
+    if (n==index.length) {
+      int l=2*n;
+      index=Arrays.copyOf(index, l);
+      zx=Arrays.copyOf(zx, l);
+      zy=Arrays.copyOf(zy, l);
+    }
+    if (n>0&&index[n-1]>=ix) sorted=false;
+    index[n]=ix;
+    zx[n]=x;
+    zy[n]=y;
+    n++;
+  }
+
+  public void add(IterationState s)
+  {
+    for (int i=0; i<s.n; i++) {
+      add(s.index[i], s.zx[i], s.zy[i]);
+    }
+  }
+
+  /**
+   * Gets the orbit point of a pixel.
+   * @return false if there is no state for the pixel
+   */
+  public boolean get(int ix, double[] z)
+  {
+    if (!sorted) sort();
+    int i=Arrays.binarySearch(index, 0, n, ix);
+    if (i<0) return false;
+    z[0]=zx[i];
+    z[1]=zy[i];
+    return true;
+  }
+
+  /**
+   * Gets the state for an area of an image with rx pixels per line.
+   * @return null if there is no state for the area
+   */
+  public IterationState getArea(int rx, int sx, int sy, int nx, int ny)
+  {
+    IterationState s=null;
+
+    if (!sorted) sort();
+    for (int y=sy; y<sy+ny; y++) {
+      int ix=y*rx+sx;
+      int i=Arrays.binarySearch(index, 0, n, ix);
+      if (i<0) i=-i-1;
+      for (; i<n&&index[i]<ix+nx; i++) {
+        if (s==null) s=new IterationState(limit);
+        s.add(index[i], zx[i], zy[i]);
+      }
+    }
+    return s;
+  }
+
+  synchronized
+  private void sort()
+  {
+    if (sorted) return;
+
+    long[] keys=new long[n];
+    for (int i=0; i<n; i++) keys[i]=((long)index[i]<<32)|i;
+    Arrays.sort(keys);
+
+    int[] ni=new int[index.length];
+    double[] nx=new double[zx.length];
+    double[] ny=new double[zy.length];
+    int m=0;
+    for (int i=0; i<n; i++) {
+      int p=(int)keys[i];
+      if (m>0&&ni[m-1]==index[p]) m--; // keep last added state
+      ni[m]=index[p];
+      nx[m]=zx[p];
+      ny[m]=zy[p];
+      m++;
+    }
+    index=ni;
+    zx=nx;
+    zy=ny;
+    n=m;
+    sorted=true;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // iteration
+  ///////////////////////////////////////////////////////////////
+
+  /**
+   * Iterates the current pixel of a pixel iterator. If possible the
+   * iteration is continued with the given state and the last orbit
+   * point is added to the result state, if the pixel reaches the limit.
+   * Pixels detected as interior points without iteration are not added,
+   * they are decided again by the interior check.
+   * @param state  state to continue the iteration or null
+   * @param result state to add the orbit point to or null
+   * @param ix     absolute index of the pixel
+   * @param limit  iteration limit of the pixel iterator
+   * @param z      buffer for the orbit point, reused by the caller
+   */
+  static public int iter(PixelIterator pi,
+                         IterationState state, IterationState result,
+                         int ix, int limit, double[] z)
+  {
+    if ((state==null&&result==null)||
+        !(pi instanceof ResumablePixelIterator)) return pi.iter();
+
+    int it=0;
+    if (state!=null&&state.get(ix, z)) it=state.getLimit();
+    else z[0]=z[1]=0;
+    ResumablePixelIterator rpi=(ResumablePixelIterator)pi;
+    it=rpi.iter(z, it);
+    // interior points decided without iteration have no orbit point
+    if (it>limit&&result!=null&&!rpi.isInterior())
+      result.add(ix, z[0], z[1]);
+    return it;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // io
+  ///////////////////////////////////////////////////////////////
+
+  public void write(DataOutputStream dos) throws IOException
+  {
+    write(dos,VERSION);
+  }
+
+  public void write(DataOutputStream dos, int v) throws IOException
+  {
+    switch (v) {
+       case 1: dos.writeInt(v);
+               writeV1(dos);
+               break;
+      default: throw new IOException("unknown iteration state version "+v);
+    }
+  }
+
+  private void writeV1(DataOutputStream dos) throws IOException
+  {
+    if (!sorted) sort();
+    dos.writeInt(limit);
+    dos.writeInt(n);
+    for (int i=0; i<n; i++) {
+      dos.writeInt(index[i]);
+      dos.writeDouble(zx[i]);
+      dos.writeDouble(zy[i]);
+    }
+  }
+
+  public void read(DataInputStream dis) throws IOException
+  {
+    read(dis,Integer.MAX_VALUE);
+  }
+
+  /**
+   * Reads a state of at most max pixels.
+   */
+  public void read(DataInputStream dis, int max) throws IOException
+  {
+    int v=dis.readInt();
+    switch (v) {
+      case 1: readV1(dis,max);
+              break;
+      default: throw new IOException("unknown iteration state version "+v);
+    }
+  }
+
+  private void readV1(DataInputStream dis, int max) throws IOException
+  {
+    limit=dis.readInt();
+    n=dis.readInt();
+    if (n<0||n>max) throw new IOException("illegal iteration state size "+n);
+    index=new int[Math.max(n, 16)];
+    zx=new double[index.length];
+    zy=new double[index.length];
+    for (int i=0; i<n; i++) {
+      index[i]=dis.readInt();
+      zx[i]=dis.readDouble();
+      zy[i]=dis.readDouble();
+    }
+    sorted=false;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // files
+  ///////////////////////////////////////////////////////////////
+
+  static public File getFile(File raster)
+  {
+    String n=raster.getName();
+    int ix=n.lastIndexOf('.');
+    if (ix>=0) n=n.substring(0,ix);
+    return new File(raster.getParentFile(),n+MandelConstants.ITERSTATE_SUFFIX);
+  }
+
+  /**
+   * Writes the state for an image area.
+   */
+  public void write(File f, MandelSpec spec) throws IOException
+  {
+    DataOutputStream dos=new DataOutputStream(
+            new BufferedOutputStream(
+            new FileOutputStream(f)));
+    try {
+      dos.writeInt(MAGIC);
+      dos.writeUTF(spec.getXM().toString());
+      dos.writeUTF(spec.getYM().toString());
+      dos.writeUTF(spec.getDX().toString());
+      dos.writeUTF(spec.getDY().toString());
+      dos.writeInt(spec.getRX());
+      dos.writeInt(spec.getRY());
+      write(dos);
+    }
+    finally {
+      dos.close();
+    }
+  }
+
+  /**
+   * Reads the state for an image area.
+   * @return null if there is no state file or it does not match the area
+   */
+  static public IterationState read(File f, MandelSpec spec)
+                                throws IOException
+  {
+    if (!f.isFile()) return null;
+
+    DataInputStream dis=new DataInputStream(
+            new BufferedInputStream(
+            new FileInputStream(f)));
+    try {
+      int magic=dis.readInt();
+      if (magic!=MAGIC) throw new IOException("illegal format");
+      if (!spec.getXM().equals(new BigDecimal(dis.readUTF()))||
+          !spec.getYM().equals(new BigDecimal(dis.readUTF()))||
+          !spec.getDX().equals(new BigDecimal(dis.readUTF()))||
+          !spec.getDY().equals(new BigDecimal(dis.readUTF()))||
+          spec.getRX()!=dis.readInt()||
+          spec.getRY()!=dis.readInt()) {
+        return null;
+      }
+      IterationState s=new IterationState();
+      s.read(dis);
+      return s;
+    }
+    finally {
+      dis.close();
+    }
+  }
+}
@@ -352,12 +352,13 @@ public class MandelInfo extends MandelSpec
   {
     if (version==1 && mcnt==0 && data.getRaster()!=null) {
       MandelRaster raster=data.getRaster();
-      int[][] r=raster.getRaster();
       int rx=raster.getRX();
       int ry=raster.getRY();
-      for (int x=0; x<rx; x++) {
-        for (int y=0; y<ry; y++) {
-          if (r[y][x]==0) mcnt++;
+      int[] r=new int[rx];
+      for (int y=0; y<ry; y++) {
+        raster.getRow(y, r);
+        for (int x=0; x<rx; x++) {
+          if (r[x]==0) mcnt++;
         }
       }
       mcnt_set=true;
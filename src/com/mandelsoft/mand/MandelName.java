@@ -194,6 +194,14 @@ public class MandelName extends DefaultElementName<MandelName> {
                           label);
   }
 
+  public MandelName first()
+  {
+    if (isRoot()) return null;
+    String eff=effective;
+    if (eff.charAt(eff.length()-1)=='a') return this;
+    return new MandelName(eff.substring(0,eff.length()-1)+"a", label);
+  }
+
   public MandelName prev()
   {
     if (isRoot()) return null;
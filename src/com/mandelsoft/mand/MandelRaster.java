@@ -17,30 +17,141 @@ package com.mandelsoft.mand;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 
 /**
+ * Iteration values of an image.
+ *
+ * The values are stored row by row in a single flat buffer, which is
+ * either an int array on the heap, or for huge rasters a direct or
+ * memory mapped buffer outside of the heap (see {@link Storage}).
+ * Pixels should be accessed with {@link #getData(int,int)} and
+ * {@link #setData(int,int,int)} or line by line with
+ * {@link #getRow(int,int[])}.
+ *
+ * The old array of rows is still available with {@link #getRaster()},
+ * but this converts the raster to a row array on the heap.
  *
  * @author Uwe Krueger
  */
 public class MandelRaster implements MandelData.Part {
+  static public final String PROP_STORAGE="mandtool.raster.storage";
+  static public final String PROP_DIR="mandtool.raster.dir";
+
+  // rasters above this size are not kept on the heap by default
+  static public final long HEAP_LIMIT=64L*1024*1024;
+
+  // maximum number of bytes per buffer segment
+  static private final long SEGMENT_SIZE=1L<<30;
+
+  public enum Storage {
+    HEAP, DIRECT, MAPPED
+  }
+
+  /**
+   * Determines the storage for a raster with the given number of pixels.
+   * It can be forced with the system property {@link #PROP_STORAGE}
+   * (heap, direct or mapped). Otherwise huge rasters are memory mapped,
+   * because direct buffers are limited by the heap size, also.
+   */
+  static public Storage getDefaultStorage(long pixels)
+  {
+    String s=System.getProperty(PROP_STORAGE);
+    if (s!=null&&s.length()>0) {
+      try {
+        return Storage.valueOf(s.toUpperCase());
+      }
+      catch (IllegalArgumentException ex) {
+        System.err.println("*** illegal raster storage "+s);
+      }
+    }
+    return pixels>HEAP_LIMIT?Storage.MAPPED:Storage.HEAP;
+  }
+
   private int rx;
   private int ry;
-  private int[][] raster;
+  private Storage storage;
+
+  private int[] data;          // heap storage
+  private IntBuffer[] segments; // direct or mapped storage
+  private int srows;           // rows per segment
+  private int[][] raster;      // converted by getRaster()
 
   public MandelRaster()
   {
   }
 
   public MandelRaster(int rx, int ry)
+  { this(rx,ry,getDefaultStorage((long)rx*ry));
+  }
+
+  public MandelRaster(int rx, int ry, Storage storage)
   { this.rx=rx;
     this.ry=ry;
-    raster=new int[ry][rx];
+    allocate(storage);
   }
 
-  public int[][] getRaster()
+  private void allocate(Storage storage)
   {
-    return raster;
+    data=null;
+    segments=null;
+    raster=null;
+    if (storage==Storage.HEAP&&(long)rx*ry>Integer.MAX_VALUE) {
+      storage=Storage.MAPPED;
+    }
+    this.storage=storage;
+    if (storage==Storage.HEAP) {
+      data=new int[rx*ry];
+      return;
+    }
+
+    srows=(int)Math.max(1, Math.min(ry, SEGMENT_SIZE/4/Math.max(rx, 1)));
+    segments=new IntBuffer[(ry+srows-1)/srows];
+    if (storage==Storage.DIRECT) {
+      for (int i=0; i<segments.length; i++) {
+        ByteBuffer b=ByteBuffer.allocateDirect(getSegmentSize(i)*4);
+        segments[i]=b.order(ByteOrder.nativeOrder()).asIntBuffer();
+      }
+      return;
+    }
+
+    try {
+      String d=System.getProperty(PROP_DIR);
+      File f=File.createTempFile("raster", ".tmp", d==null?null:new File(d));
+      f.deleteOnExit();
+      RandomAccessFile raf=new RandomAccessFile(f, "rw");
+      try {
+        FileChannel fc=raf.getChannel();
+        for (int i=0; i<segments.length; i++) {
+          ByteBuffer b=fc.map(FileChannel.MapMode.READ_WRITE,
+                              (long)i*srows*rx*4, getSegmentSize(i)*4L);
+          segments[i]=b.order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+      }
+      finally {
+        raf.close(); // mappings stay valid
+        f.delete();
+      }
+    }
+    catch (IOException ex) {
+      throw new MandelException("cannot map raster: "+ex);
+    }
+  }
+
+  private int getSegmentSize(int i)
+  {
+    return Math.min(srows, ry-i*srows)*rx;
+  }
+
+  public Storage getStorage()
+  {
+    return raster!=null?Storage.HEAP:storage;
   }
 
   public int getRX()
@@ -53,6 +164,79 @@ public class MandelRaster implements MandelData.Part {
     return ry;
   }
 
+  public int getData(int x, int y)
+  {
+    if (data!=null) return data[y*rx+x];
+    if (raster!=null) return raster[y][x];
+    return segments[y/srows].get((y%srows)*rx+x);
+  }
+
+  public void setData(int x, int y, int it)
+  {
+    if (data!=null) data[y*rx+x]=it;
+    else if (raster!=null) raster[y][x]=it;
+    else segments[y/srows].put((y%srows)*rx+x, it);
+  }
+
+  /**
+   * Copies the values of a row into a buffer.
+   * @param row buffer of at least rx elements or null
+   * @return the buffer
+   */
+  public int[] getRow(int y, int[] row)
+  {
+    if (row==null) row=new int[rx];
+    if (data!=null) System.arraycopy(data, y*rx, row, 0, rx);
+    else if (raster!=null) System.arraycopy(raster[y], 0, row, 0, rx);
+    else {
+      IntBuffer b=segments[y/srows].duplicate();
+      b.position((y%srows)*rx);
+      b.get(row, 0, rx);
+    }
+    return row;
+  }
+
+  public void setRow(int y, int[] row)
+  {
+    if (data!=null) System.arraycopy(row, 0, data, y*rx, rx);
+    else if (raster!=null) System.arraycopy(row, 0, raster[y], 0, rx);
+    else {
+      IntBuffer b=segments[y/srows].duplicate();
+      b.position((y%srows)*rx);
+      b.put(row, 0, rx);
+    }
+  }
+
+  /**
+   * Returns the flat heap array of the iteration values (index y*rx+x)
+   * or null, if the raster is not stored in a flat heap array.
+   */
+  public int[] getData()
+  {
+    return data;
+  }
+
+  /**
+   * Returns the iteration values as array of rows.
+   * @deprecated this converts the raster to separate row arrays on the
+   * heap, use {@link #getData(int,int)}, {@link #setData(int,int,int)}
+   * or {@link #getRow(int,int[])} instead.
+   */
+  @Deprecated
+  public int[][] getRaster()
+  {
+    if (raster==null) {
+      int[][] r=new int[ry][];
+      for (int y=0; y<ry; y++) {
+        r[y]=getRow(y, null);
+      }
+      data=null;
+      segments=null;
+      raster=r;
+    }
+    return raster;
+  }
+
   ///////////////////////////////////////////////////////////////
   // io
   ///////////////////////////////////////////////////////////////
@@ -75,20 +259,22 @@ public class MandelRaster implements MandelData.Part {
     int dx=1;
     int c=0;
     int v=-1;
+    int[] row=new int[rx];
 
     if (verbose) System.out.println("  writing raster ("+rx+","+ry+")...");
     dos.writeInt(rx);
     dos.writeInt(ry);
 
     for (y=0; y<ry; y++) {
+      getRow(y, row);
       for (ix=0; ix<rx; ix++, x+=dx) {
-        if (raster[y][x]==v && c<255) {
+        if (row[x]==v && c<255) {
           c++;
         }
         else {
           write(dos,c,v);
           c=1;
-          v=raster[y][x];
+          v=row[x];
         }
       }
       dx=-dx;
@@ -120,7 +306,8 @@ public class MandelRaster implements MandelData.Part {
     rx=dis.readInt();
     ry=dis.readInt();
     if (verbose) System.out.println("  reading raster ("+rx+","+ry+")...");
-    raster=new int[ry][rx];
+    allocate(getDefaultStorage((long)rx*ry));
+    int[] row=new int[rx];
 
     for (y=0; y<ry; y++) {
       for (ix=0; ix<rx; ix++, x+=dx) {
@@ -128,9 +315,10 @@ public class MandelRaster implements MandelData.Part {
           c=dis.readUnsignedByte();
           v=dis.readInt();
         }
-        raster[y][x]=v;
+        row[x]=v;
         c--;
       }
+      setRow(y, row);
       dx=-dx;
       x+=dx;
     }
@@ -26,6 +26,8 @@ public class MandelSpec extends MandelAreaSpec {
   private int rx;          // resolution on x axis
   private int ry;          // resolution on y axis
   private int limitit;     // iteration limitation
+  // calculation options (not part of the image specification)
+  private boolean interiorcheck=true; // cardioid/bulb and periodicity check
   
   public MandelSpec()
   { 
@@ -54,6 +56,7 @@ public class MandelSpec extends MandelAreaSpec {
   {
     this(mi.getXM(), mi.getYM(), mi.getDX(), mi.getDY(),
          mi.rx, mi.ry, mi.limitit);
+    this.interiorcheck=mi.interiorcheck;
   }
 
   public boolean valid()
@@ -97,6 +100,11 @@ public class MandelSpec extends MandelAreaSpec {
     return limitit;
   }
 
+  public boolean isInteriorCheck()
+  {
+    return interiorcheck;
+  }
+
   // setter
   public void setSpec(MandelSpec i)
   { 
@@ -104,6 +112,7 @@ public class MandelSpec extends MandelAreaSpec {
     setRX(i.getRX());
     setRY(i.getRY());
     setLimitIt(i.getLimitIt());
+    setInteriorCheck(i.isInteriorCheck());
   }
 
   public void setRX(int rx)
@@ -121,6 +130,16 @@ public class MandelSpec extends MandelAreaSpec {
     this.limitit=limitit;
   }
 
+  /**
+   * Enables the detection of interior pixels (main cardioid, period 2
+   * bulb and periodic orbits) for fast iterators. It does not change
+   * the iteration values, interior pixels just reach the limit earlier.
+   */
+  public void setInteriorCheck(boolean interiorcheck)
+  {
+    this.interiorcheck=interiorcheck;
+  }
+
   public boolean isSameSpec(MandelSpec o)
   {
     return super.isSameArea(o) &&
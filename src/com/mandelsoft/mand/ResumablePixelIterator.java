@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand;
+
+/**
+ * Pixel iterator able to continue an interrupted iteration.
+ *
+ * @author Uwe Krueger
+ */
+public interface ResumablePixelIterator extends PixelIterator {
+  /**
+   * Continues the iteration of the current pixel with the orbit
+   * point z[0],z[1] reached after it iterations and stores the last
+   * orbit point in z. With it=0 and z=0 the result is identical to
+   * {@link #iter()}, otherwise to the result of {@link #iter()} for an
+   * orbit reaching z after it iterations.
+   */
+  int iter(double[] z, int it);
+
+  /**
+   * Returns whether the current pixel is known to be an interior
+   * point without iterating its orbit (e.g. by a cardioid or bulb
+   * check). For such pixels {@link #iter(double[], int)} does not
+   * provide a valid orbit point in z.
+   */
+  boolean isInterior();
+}
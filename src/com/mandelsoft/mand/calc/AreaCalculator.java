@@ -33,9 +33,10 @@ public abstract class AreaCalculator {
     
     if (c.getMinIt()==0) c.setMinIt(c.getLimitIt()); // not yet calculated
     c.createData();
-    long time=System.currentTimeMillis();
+    long time=System.nanoTime();
     calc(pi,c);
-    c.setMTime(System.currentTimeMillis()-time);
+    // rounded, so that sums over many small requests stay accurate
+    c.setMTime((System.nanoTime()-time+500000)/1000000);
   }
 
   protected abstract void calc(PixelIterator pi, CalculationContext c);
@@ -44,12 +45,96 @@ public abstract class AreaCalculator {
   { int it=c.getDataRel(x,y);
 
     if (it==0) {
-      it=c.incorporateIteration(x, y, pi.iter());
+      it=c.incorporateIteration(x, y, c.iter(pi, x, y));
     }
     else { // keep old iteration value for refinement mode
       c.addNumIt(it);
     }
     return it;
   }
-}
 
+  ///////////////////////////////////////////////////////////////
+  // batch iteration
+  ///////////////////////////////////////////////////////////////
+
+  /**
+   * Buffers for the batch iteration of a pixel line.
+   * Calculators may be shared, so it is created per calculation.
+   */
+  protected static class Batch {
+    private int[] xs;
+    private int[] ys;
+    private int[] its;
+    private int[] pos;
+
+    public Batch(int size)
+    {
+      xs=new int[size];
+      ys=new int[size];
+      its=new int[size];
+      pos=new int[size];
+    }
+  }
+
+  protected Batch createBatch(PixelIterator pi, CalculationContext c)
+  {
+    if (!(pi instanceof BatchPixelIterator)) return null;
+    // the batch iteration always starts with z=0
+    if (c.getIterationState()!=null||c.getResultState()!=null) return null;
+    return new Batch(Math.max(c.getNX(), c.getNY()));
+  }
+
+  /**
+   * Handles the n pixels x+i*incx,y+i*incy with one batch iteration.
+   * The pixel iterator coordinates are shifted by ox,oy against the
+   * data coordinates. Pixels with an old iteration value are not
+   * iterated again (see handle).
+   * @return the iteration value if unique for all pixels, -1 otherwise
+   */
+  protected int handleLine(BatchPixelIterator pi, Batch b,
+                           CalculationContext c, int ox, int oy,
+                           int x, int y, int incx, int incy, int n)
+  {
+    return handleLine(pi, b, c, c, ox, oy, x, y, incx, incy, n);
+  }
+
+  /**
+   * Handles a line like above, but the results are passed to the
+   * given counter instead of the calculation context.
+   */
+  protected int handleLine(BatchPixelIterator pi, Batch b,
+                           CalculationContext c, IterationCounter s,
+                           int ox, int oy,
+                           int x, int y, int incx, int incy, int n)
+  {
+    int k=0;
+    int u=-1;
+
+    for (int i=0; i<n; i++) {
+      int px=x+i*incx;
+      int py=y+i*incy;
+      if (c.getDataRel(px, py)==0) {
+        b.xs[k]=px+ox;
+        b.ys[k]=py+oy;
+        b.pos[k++]=i;
+      }
+    }
+    if (k>0) pi.iter(b.xs, b.ys, k, b.its);
+
+    for (int i=0, j=0; i<n; i++) {
+      int px=x+i*incx;
+      int py=y+i*incy;
+      int it;
+      if (j<k&&b.pos[j]==i) {
+        it=s.incorporateIteration(px, py, b.its[j++]);
+      }
+      else { // keep old iteration value for refinement mode
+        it=c.getDataRel(px, py);
+        s.addNumIt(it);
+      }
+      if (i==0) u=it;
+      else if (it!=u) u=-1;
+    }
+    return u;
+  }
+}
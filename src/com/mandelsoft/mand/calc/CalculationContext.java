@@ -21,7 +21,8 @@ import com.mandelsoft.mand.*;
  *
  * @author Uwe Krueger
  */
-public abstract class CalculationContext extends MandelSpec {
+public abstract class CalculationContext extends MandelSpec
+                                         implements IterationCounter {
 
   // basic request info
   private int sx;          // start x pixel
@@ -42,6 +43,11 @@ public abstract class CalculationContext extends MandelSpec {
 
   private PixelIterator iter;
 
+  // continuation of the iteration for pixels at the old limit
+  private IterationState state;   // state to continue with
+  private IterationState result;  // collected state for the new limit
+  private double[] z=new double[2];
+
   public CalculationContext()
   {
   }
@@ -124,6 +130,16 @@ public abstract class CalculationContext extends MandelSpec {
     return iter;
   }
 
+  public IterationState getIterationState()
+  {
+    return state;
+  }
+
+  public IterationState getResultState()
+  {
+    return result;
+  }
+
   public void setInitialInfo(MandelInfo mi)
   {
     minit=mi.getMinIt();
@@ -230,6 +246,45 @@ public abstract class CalculationContext extends MandelSpec {
     this.iter=i;
   }
 
+  /**
+   * Sets the iteration state used to continue the iteration of
+   * pixels at an old limit.
+   */
+  public void setIterationState(IterationState state)
+  {
+    this.state=state;
+  }
+
+  /**
+   * Sets the iteration state collecting the orbit points of pixels
+   * reaching the limit.
+   */
+  public void setResultState(IterationState result)
+  {
+    this.result=result;
+  }
+
+  /**
+   * Iterates the current pixel of the pixel iterator, which
+   * must be set to the relative coordinates x,y. It uses a buffer
+   * of the context and must not be called by several threads.
+   */
+  public int iter(PixelIterator pi, int x, int y)
+  {
+    return iter(pi, x, y, z);
+  }
+
+  /**
+   * Iterates the current pixel like above using the given buffer
+   * for the orbit point.
+   */
+  public int iter(PixelIterator pi, int x, int y, double[] z)
+  {
+    if (state==null&&result==null) return pi.iter();
+    return IterationState.iter(pi, state, result,
+                               (sy+y)*getRX()+sx+x, getLimitIt(), z);
+  }
+
   public boolean isSameSpec(CalculationContext o)
   {
     return getSX()==o.getSX() &&
@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand.calc;
+
+/**
+ * Receiver of the iteration values of calculated pixels.
+ * Coordinates are relative to the calculation context.
+ *
+ * @author Uwe Krueger
+ */
+public interface IterationCounter {
+  /**
+   * Stores the iteration value of a calculated pixel.
+   * @return the stored value
+   */
+  int incorporateIteration(int x, int y, int i);
+
+  /**
+   * Counts the iterations of a pixel kept from an earlier calculation.
+   */
+  void addNumIt(int n);
+}
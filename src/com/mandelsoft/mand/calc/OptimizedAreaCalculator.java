@@ -30,18 +30,22 @@ public class OptimizedAreaCalculator extends AreaCalculator {
     int sx=c.getSX();
     int ny=c.getNY();
     int nx=c.getNX();
+    Batch b=createBatch(pi,c);
 
-      calcHLine(pi,c,sx,      sy,      nx);
-      calcHLine(pi,c,sx,      sy+ny-1, nx);
-      calcVLine(pi,c,sx,      sy+1,    ny-2);
-    u=calcVLine(pi,c,sx+nx-1, sy+1,    ny-2);
+      calcHLine(pi,b,c,sx,      sy,      nx);
+      calcHLine(pi,b,c,sx,      sy+ny-1, nx);
+      calcVLine(pi,b,c,sx,      sy+1,    ny-2);
+    u=calcVLine(pi,b,c,sx+nx-1, sy+1,    ny-2);
 
-    calcBox(pi,c, u, sx,sy,nx,ny);
+    calcBox(pi,b,c, u, sx,sy,nx,ny);
   }
 
-  private int calcHLine(PixelIterator pi, CalculationContext c,
+  private int calcHLine(PixelIterator pi, Batch b, CalculationContext c,
                         int sx, int sy, int n)
   {
+    if (b!=null&&n>0) {
+      return handleLine((BatchPixelIterator)pi,b,c,0,0, sx,sy,1,0,n);
+    }
     pi.setX(sx);
     pi.setY(sy);
     int u=handle(pi,c, sx,sy);
@@ -54,8 +58,11 @@ public class OptimizedAreaCalculator extends AreaCalculator {
     return u;
   }
 
-  private int calcVLine(PixelIterator pi, CalculationContext c, int sx, int sy, int n)
+  private int calcVLine(PixelIterator pi, Batch b, CalculationContext c, int sx, int sy, int n)
   {
+    if (b!=null&&n>0) {
+      return handleLine((BatchPixelIterator)pi,b,c,0,0, sx,sy,0,1,n);
+    }
     pi.setX(sx);
     pi.setY(sy);
     int u=handle(pi,c, sx,sy);
@@ -68,7 +75,7 @@ public class OptimizedAreaCalculator extends AreaCalculator {
     return u;
   }
 
-  private void calcBox(PixelIterator pi, CalculationContext c,
+  private void calcBox(PixelIterator pi, Batch b, CalculationContext c,
                        int u, int sx, int sy, int nx, int ny)
   {
     //System.out.println("calcBox "+sx+","+sy+"("+nx+"x"+ny+")");
@@ -89,18 +96,18 @@ public class OptimizedAreaCalculator extends AreaCalculator {
       int s=(nx-1)/2;
       if (s!=0) {
         //System.out.println("s="+s);
-        u=calcVLine(pi,c, sx+s,sy+1,ny-2);
-        calcBox(pi,c, u,sx,sy,s+1,ny);
-        calcBox(pi,c, u,sx+s,sy,nx-s,ny);
+        u=calcVLine(pi,b,c, sx+s,sy+1,ny-2);
+        calcBox(pi,b,c, u,sx,sy,s+1,ny);
+        calcBox(pi,b,c, u,sx+s,sy,nx-s,ny);
       }
     }
     else {
       // divide vertically
       int s=(ny-1)/2;
       if (s!=0) {
-        u=calcHLine(pi,c, sx+1,sy+s,nx-2);
-        calcBox(pi,c, u,sx,sy,nx,s+1);
-        calcBox(pi,c, u,sx,sy+s,nx,ny-s);
+        u=calcHLine(pi,b,c, sx+1,sy+s,nx-2);
+        calcBox(pi,b,c, u,sx,sy,nx,s+1);
+        calcBox(pi,b,c, u,sx,sy+s,nx,ny-s);
       }
     }
   }
@@ -0,0 +1,506 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.calc;
+
+import com.mandelsoft.mand.*;
+import com.mandelsoft.util.SharedPool;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel variant of the {@link OptimizedAreaCalculator}.
+ * The frame and dividing lines as well as the two sub boxes of
+ * a box are calculated by separate fork/join tasks. Because both sub boxes
+ * only read their common dividing line, which is completely calculated
+ * before they are forked, the resulting raster is identical to the one
+ * of the sequential calculator.
+ *
+ * Pixel iterators are stateful, therefore every worker thread uses its own
+ * iterator. The first one is the iterator passed by the caller, further
+ * ones are created by the configured {@link PixelIteratorFactory}. Without
+ * factory they are created like the default iterator of the calculation
+ * context. If this yields another kind of iterator than the one of the
+ * caller, the area is calculated sequentially with the caller's iterator.
+ * Lines are calculated with batch iteration if supported by the
+ * iterators. The statistic is collected per task and merged into the
+ * calculation context when the calculation is finished.
+ *
+ * @author Uwe Krueger
+ */
+public class ParallelAreaCalculator extends AreaCalculator {
+  static public final int MIN_AREA=64*64; // boxes calculated sequentially
+  static public final int MIN_LINE=256;   // lines calculated sequentially
+
+  private ForkJoinPool pool;
+  private boolean ownpool;
+  private PixelIteratorFactory factory;
+
+  public ParallelAreaCalculator()
+  {
+    this(SharedPool.get());
+  }
+
+  /**
+   * Creates a calculator with its own pool of n threads. The pool
+   * must be released with {@link #shutdown()}.
+   */
+  public ParallelAreaCalculator(int n)
+  {
+    this(new ForkJoinPool(n));
+    ownpool=true;
+  }
+
+  public ParallelAreaCalculator(ForkJoinPool pool)
+  {
+    this.pool=pool;
+  }
+
+  public PixelIteratorFactory getPixelIteratorFactory()
+  {
+    return factory;
+  }
+
+  public void setPixelIteratorFactory(PixelIteratorFactory factory)
+  {
+    this.factory=factory;
+  }
+
+  public int getParallelism()
+  {
+    return pool.getParallelism();
+  }
+
+  /**
+   * Releases the pool if it has been created by this calculator.
+   * Shared pools are not affected.
+   */
+  public void shutdown()
+  {
+    if (ownpool) pool.shutdown();
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // calculation
+  ///////////////////////////////////////////////////////////////
+
+  protected void calc(PixelIterator pi, CalculationContext c)
+  {
+    Job job=new Job(c, pi);
+    Statistic s;
+
+    if (job.parallel) s=pool.invoke(job.new FrameTask());
+    else s=job.new FrameTask().compute();
+    s.addTo(c);
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // statistic
+  ///////////////////////////////////////////////////////////////
+
+  private static class Statistic implements IterationCounter {
+    private CalculationContext c;
+    private int minit=Integer.MAX_VALUE;
+    private int maxit;
+    private long numit;
+    private long ccnt;
+    private long mcnt;
+
+    public Statistic(CalculationContext c)
+    {
+      this.c=c;
+    }
+
+    // see CalculationContext.incorporateIteration
+    public int incorporateIteration(int x, int y, int i)
+    {
+      int it;
+
+      ccnt++;
+      if (i>c.getLimitIt()) {
+        c.setDataRel(x, y, it=0);
+        mcnt++;
+        i--;
+      }
+      else {
+        c.setDataRel(x, y, it=i);
+      }
+      if (i<minit) minit=i;
+      if (i>maxit) maxit=i;
+      numit+=i;
+      return it;
+    }
+
+    public void addNumIt(int n)
+    {
+      numit+=n;
+    }
+
+    public void add(Statistic s)
+    {
+      if (s.minit<minit) minit=s.minit;
+      if (s.maxit>maxit) maxit=s.maxit;
+      numit+=s.numit;
+      ccnt+=s.ccnt;
+      mcnt+=s.mcnt;
+    }
+
+    public void addTo(CalculationContext c)
+    {
+      if (ccnt>0) {
+        if (minit<c.getMinIt()) c.setMinIt(minit);
+        if (maxit>c.getMaxIt()) c.setMaxIt(maxit);
+      }
+      c.setNumIt(c.getNumIt()+numit);
+      c.setCCnt(c.getCCnt()+ccnt);
+      c.setMCnt(c.getMCnt()+mcnt);
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // job
+  ///////////////////////////////////////////////////////////////
+
+  // pixel iterator and buffers of a thread
+  private static class Worker {
+    private PixelIterator pi;
+    private Batch batch;
+    private double[] z=new double[2];
+
+    public Worker(PixelIterator pi, Batch batch)
+    {
+      this.pi=pi;
+      this.batch=batch;
+    }
+  }
+
+  private class Job {
+    private CalculationContext c;
+    private int sx;
+    private int sy;
+    private boolean parallel;
+    private Queue<PixelIterator> iterators;
+    private Map<Thread,Worker> workers;
+
+    public Job(CalculationContext c, PixelIterator pi)
+    {
+      this.c=c;
+      this.sx=c.getSX();
+      this.sy=c.getSY();
+      this.iterators=new ConcurrentLinkedQueue<PixelIterator>();
+      this.workers=new ConcurrentHashMap<Thread,Worker>();
+      iterators.add(pi);
+
+      parallel=getParallelism()>1;
+      if (parallel&&factory==null) {
+        PixelIterator p=MandIter.createPixelIterator(c);
+        if (p.getClass()==pi.getClass()) iterators.add(p);
+        else parallel=false;
+      }
+    }
+
+    private Worker getWorker()
+    {
+      Thread t=Thread.currentThread();
+      Worker w=workers.get(t);
+      if (w==null) {
+        PixelIterator pi=iterators.poll();
+        if (pi==null) pi=createPixelIterator();
+        w=new Worker(pi, createBatch(pi, c));
+        workers.put(t, w);
+      }
+      return w;
+    }
+
+    // the spec of the context is not thread safe
+    synchronized
+    private PixelIterator createPixelIterator()
+    {
+      if (factory!=null) return factory.createPixelIterator(c);
+      return MandIter.createPixelIterator(c);
+    }
+
+    // coordinates are relative to the calculation context
+    private int handle(Worker w, Statistic s, int x, int y)
+    {
+      int it=c.getDataRel(x, y);
+
+      if (it==0) {
+        it=s.incorporateIteration(x, y, c.iter(w.pi, x, y, w.z));
+      }
+      else { // keep old iteration value for refinement mode
+        s.addNumIt(it);
+      }
+      return it;
+    }
+
+    private int calcHLine(Statistic s, int x0, int y0, int n)
+    {
+      Worker w=getWorker();
+      PixelIterator pi=w.pi;
+
+      if (w.batch!=null&&n>0) {
+        return handleLine((BatchPixelIterator)pi, w.batch, c, s, sx, sy,
+                          x0, y0, 1, 0, n);
+      }
+      pi.setX(sx+x0);
+      pi.setY(sy+y0);
+      int u=handle(w, s, x0, y0);
+
+      for (int x=x0+1; x<x0+n; x++) {
+        pi.setX(sx+x);
+        int it=handle(w, s, x, y0);
+        if (it!=u) u=-1;
+      }
+      return u;
+    }
+
+    private int calcVLine(Statistic s, int x0, int y0, int n)
+    {
+      Worker w=getWorker();
+      PixelIterator pi=w.pi;
+
+      if (w.batch!=null&&n>0) {
+        return handleLine((BatchPixelIterator)pi, w.batch, c, s, sx, sy,
+                          x0, y0, 0, 1, n);
+      }
+      pi.setX(sx+x0);
+      pi.setY(sy+y0);
+      int u=handle(w, s, x0, y0);
+
+      for (int y=y0+1; y<y0+n; y++) {
+        pi.setY(sy+y);
+        int it=handle(w, s, x0, y);
+        if (it!=u) u=-1;
+      }
+      return u;
+    }
+
+    private int checkHLine(int u, int x0, int y0, int n)
+    {
+      if (u>=0) for (int x=x0; x<x0+n; x++) {
+        if (c.getDataRel(x, y0)!=u) return -1;
+      }
+      return u;
+    }
+
+    private int checkVLine(int u, int x0, int y0, int n)
+    {
+      if (u>=0) for (int y=y0; y<y0+n; y++) {
+        if (c.getDataRel(x0, y)!=u) return -1;
+      }
+      return u;
+    }
+
+    private void fillBox(Statistic s, int x0, int y0, int nx, int ny, int u)
+    {
+      for (int y=y0; y<y0+ny; y++) {
+        for (int x=x0; x<x0+nx; x++) {
+          c.setDataRel(x, y, u);
+        }
+      }
+      if (u==0) s.mcnt+=nx*ny;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    // tasks
+    // Without parallelism tasks are computed directly in the calling
+    // thread.
+
+    @SuppressWarnings("serial")
+    private abstract class CalcTask extends RecursiveTask<Statistic> {
+      protected Statistic s=new Statistic(c);
+
+      protected void execute(CalcTask t)
+      {
+        if (parallel) s.add(t.invoke());
+        else s.add(t.compute());
+      }
+
+      protected void execute(CalcTask t1, CalcTask t2)
+      {
+        if (parallel) {
+          invokeAll(t1, t2);
+          s.add(t1.join());
+          s.add(t2.join());
+        }
+        else {
+          s.add(t1.compute());
+          s.add(t2.compute());
+        }
+      }
+    }
+
+    // complete area: calculate the frame and start with the box
+    @SuppressWarnings("serial")
+    private class FrameTask extends CalcTask {
+
+      @Override
+      protected Statistic compute()
+      {
+        int nx=c.getNX();
+        int ny=c.getNY();
+
+        LineTask top=new LineTask(true, 0, 0, nx);
+        LineTask bottom=new LineTask(true, 0, ny-1, nx);
+        LineTask left=new LineTask(false, 0, 1, ny-2);
+        LineTask right=new LineTask(false, nx-1, 1, ny-2);
+        execute(top, bottom);
+        execute(left, right);
+
+        execute(new BoxTask(right.getUniqueValue(), 0, 0, nx, ny));
+        return s;
+      }
+    }
+
+    // horizontal or vertical line, split into segments for long lines
+    @SuppressWarnings("serial")
+    private class LineTask extends CalcTask {
+      private boolean horizontal;
+      private int x0;
+      private int y0;
+      private int n;
+      private int u;
+
+      public LineTask(boolean horizontal, int x0, int y0, int n)
+      {
+        this.horizontal=horizontal;
+        this.x0=x0;
+        this.y0=y0;
+        this.n=n;
+        this.u=-1;
+      }
+
+      public int getUniqueValue()
+      {
+        return u;
+      }
+
+      @Override
+      protected Statistic compute()
+      {
+        if (n<=0) return s;
+        if (n<=MIN_LINE) {
+          if (horizontal) u=calcHLine(s, x0, y0, n);
+          else u=calcVLine(s, x0, y0, n);
+        }
+        else {
+          int d=n/2;
+          LineTask first;
+          LineTask second;
+          if (horizontal) {
+            first=new LineTask(true, x0, y0, d);
+            second=new LineTask(true, x0+d, y0, n-d);
+          }
+          else {
+            first=new LineTask(false, x0, y0, d);
+            second=new LineTask(false, x0, y0+d, n-d);
+          }
+          execute(first, second);
+          u=first.u==second.u?first.u:-1;
+        }
+        return s;
+      }
+    }
+
+    // see OptimizedAreaCalculator.calcBox
+    @SuppressWarnings("serial")
+    private class BoxTask extends CalcTask {
+      private int u;
+      private int x0;
+      private int y0;
+      private int nx;
+      private int ny;
+
+      public BoxTask(int u, int x0, int y0, int nx, int ny)
+      {
+        this.u=u;
+        this.x0=x0;
+        this.y0=y0;
+        this.nx=nx;
+        this.ny=ny;
+      }
+
+      @Override
+      protected Statistic compute()
+      {
+        calcBox(u, x0, y0, nx, ny);
+        return s;
+      }
+
+      private void calcBox(int u, int x0, int y0, int nx, int ny)
+      {
+        if (nx<=2||ny<=2) return;
+
+        if (u>=0) {
+          u=checkHLine(u, x0, y0, nx);
+          u=checkHLine(u, x0, y0+ny-1, nx);
+          u=checkVLine(u, x0, y0+1, ny-2);
+          u=checkVLine(u, x0+nx-1, y0+1, ny-2);
+          if (u>=0) {
+            fillBox(s, x0+1, y0+1, nx-2, ny-2, u);
+            return;
+          }
+        }
+        if (nx>ny) {
+          // divide horizontally
+          int d=(nx-1)/2;
+          if (d!=0) {
+            u=calcLine(false, x0+d, y0+1, ny-2);
+            calcBoxes(new BoxTask(u, x0, y0, d+1, ny),
+                      new BoxTask(u, x0+d, y0, nx-d, ny));
+          }
+        }
+        else {
+          // divide vertically
+          int d=(ny-1)/2;
+          if (d!=0) {
+            u=calcLine(true, x0+1, y0+d, nx-2);
+            calcBoxes(new BoxTask(u, x0, y0, nx, d+1),
+                      new BoxTask(u, x0, y0+d, nx, ny-d));
+          }
+        }
+      }
+
+      private int calcLine(boolean horizontal, int x0, int y0, int n)
+      {
+        if (n>MIN_LINE) {
+          LineTask t=new LineTask(horizontal, x0, y0, n);
+          execute(t);
+          return t.getUniqueValue();
+        }
+        if (horizontal) return calcHLine(s, x0, y0, n);
+        return calcVLine(s, x0, y0, n);
+      }
+
+      private void calcBoxes(BoxTask first, BoxTask second)
+      {
+        if (first.nx*first.ny+second.nx*second.ny<=MIN_AREA) {
+          // continue sequentially in this task
+          calcBox(first.u, first.x0, first.y0, first.nx, first.ny);
+          calcBox(second.u, second.x0, second.y0, second.nx, second.ny);
+        }
+        else {
+          execute(first, second);
+        }
+      }
+    }
+  }
+}
@@ -34,6 +34,13 @@ public class SimpleAreaCalculator extends AreaCalculator {
     int sx=c.getSX();
     int ny=c.getNY();
     int nx=c.getNX();
+    Batch b=createBatch(pi,c);
+    if (b!=null) {
+      for (y=0; y<ny; y++) {
+        handleLine((BatchPixelIterator)pi,b,c,sx,sy, 0,y,1,0,nx);
+      }
+      return;
+    }
     for (y=0; y<ny; y++) {
       // System.out.println("  line "+y);
       pi.setY(y+sy);
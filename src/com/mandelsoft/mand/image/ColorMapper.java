@@ -46,6 +46,7 @@ public class ColorMapper extends StateChangeSupport {
 
   private Colormap.ChangeHandler handler;
   private Object[]               colormapping;
+  private int[]                  colorpixels; // int based color models
 
   public ColorMapper(ColorModel colmod, Colormap colmap, Mapping m)
   { 
@@ -60,6 +61,20 @@ public class ColorMapper extends StateChangeSupport {
     setMapping(m);
   }
 
+  public Mapping getMapping()
+  {
+    return mapping;
+  }
+
+  /**
+   * Returns the pixel values for the colormap entries, if the color
+   * model uses a single int per pixel, otherwise null.
+   */
+  public int[] getColormapPixels()
+  {
+    return colorpixels;
+  }
+
   public void setColormap(Colormap colmap)
   {
     if (this.colormap==colmap) return;
@@ -116,7 +131,7 @@ public class ColorMapper extends StateChangeSupport {
       colormap=colmap;
       if (colormap!=null) {
         if (colormodel!=null) {
-          updateColorMapping();
+          setupColorMapping(); // change event fired below
         }
         colormap.addChangeListener(handler);
       }
@@ -134,16 +149,30 @@ public class ColorMapper extends StateChangeSupport {
   }
 
   private void updateColorMapping()
+  {
+    setupColorMapping();
+    fireChangeEvent();
+  }
+
+  private void setupColorMapping()
   {
     if (colormapping==null || colormapping.length!=colormap.getSize()) {
       colormapping=new Object[colormap.getSize()];
     }
+    int[] pixels=new int[colormap.getSize()];
     for (int i=0; i<colormap.getSize(); i++) {
       int rgb=colormap.getColor(i).getRGB();
       colormapping[i]=colormodel.getDataElements(rgb, colormapping[i]);
       //System.out.println("color["+i+"]="+rgb+"->"+((int[])colormapping[i])[0]);
+      if (pixels!=null) {
+        if (colormapping[i] instanceof int[] &&
+            ((int[])colormapping[i]).length==1) {
+          pixels[i]=((int[])colormapping[i])[0];
+        }
+        else pixels=null;
+      }
     }
-    fireChangeEvent();
+    colorpixels=pixels;
   }
 
   @Override
@@ -17,6 +17,7 @@
 package com.mandelsoft.mand.image;
 
 import com.mandelsoft.mand.*;
+import com.mandelsoft.mand.mapping.Mapping;
 import java.awt.Color;
 
 /**
@@ -25,25 +26,23 @@ import java.awt.Color;
  */
 public class RasterColorMapper {
   private ColorMapper mapper;
-  private MandelRaster mraster;
-  private int[][] raster;
+  private MandelRaster raster;
 
   public RasterColorMapper(ColorMapper mapper, MandelRaster mr)
   { if (mr==null) throw new MandelException("no raster set");
 
     this.mapper=mapper;
-    this.mraster=mr;
-    this.raster=mr.getRaster();
+    this.raster=mr;
   }
 
   public int getColormapIndex(int x, int y)
   {
-    return mapper.mapColormapIndex(raster[y][x]);
+    return mapper.mapColormapIndex(raster.getData(x, y));
   }
 
   public Color getPixelColor(int x, int y)
   { 
-    return mapper.mapIterationValue(raster[y][x]);
+    return mapper.mapIterationValue(raster.getData(x, y));
   }
 
   public int getPixelRGB(int x, int y)
@@ -51,9 +50,65 @@ public class RasterColorMapper {
   }
 
   public Object getPixelDataElements(int x, int y)
-  { int it=raster[y][x];
-    Object de=mapper.mapIterationValueToDataElements(raster[y][x]);
+  { int it=raster.getData(x, y);
+    Object de=mapper.mapIterationValueToDataElements(it);
     //System.out.println("raster["+x+","+y+"]="+it+"->"+((int[])de)[0]);
     return de;
   }
+
+  ///////////////////////////////////////////////////////////////////////
+  // direct pixel mapping
+  ///////////////////////////////////////////////////////////////////////
+
+  /**
+   * Creates a table mapping iteration values directly to pixel values
+   * of an int based color model. Index 0 is used for the iteration
+   * value 0, index it-minIt+1 for all iteration values of the mapping.
+   * The table is only built if the iteration range is not larger than
+   * the raster, otherwise it is empty and every pixel is mapped through
+   * the mapping.
+   * @return null if there is no int based color model
+   */
+  public int[] createPixelTable()
+  {
+    int[] cm=mapper.getColormapPixels();
+    Mapping m=mapper.getMapping();
+    if (cm==null||m==null) return null;
+    if (m.getSourceSize()>(long)raster.getRX()*raster.getRY()) {
+      return new int[0];
+    }
+
+    int min=m.getMinIt();
+    int[] table=new int[m.getSourceSize()+1];
+    table[0]=cm[m.getColormapIndex(0)];
+    for (int i=1; i<table.length; i++) {
+      table[i]=cm[m.getColormapIndex(min+i-1)];
+    }
+    return table;
+  }
+
+  /**
+   * Maps a row of the raster to pixel values using a table created by
+   * {@link #createPixelTable()}.
+   * @param row buffer for the iteration values of the row
+   */
+  public void mapRow(int y, int[] table, int[] row,
+                     int[] pixels, int offset)
+  {
+    int[] cm=mapper.getColormapPixels();
+    int min=mapper.getMapping().getMinIt()-1;
+    int rx=raster.getRX();
+
+    raster.getRow(y, row);
+    for (int x=0; x<rx; x++) {
+      int v=row[x];
+      int i=v==0?0:v-min;
+      if (i>=0&&i<table.length) {
+        pixels[offset+x]=table[i];
+      }
+      else { // not in table, see Mapping.getColormapIndex
+        pixels[offset+x]=cm[mapper.mapColormapIndex(v)];
+      }
+    }
+  }
 }
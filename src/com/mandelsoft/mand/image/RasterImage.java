@@ -17,7 +17,10 @@
 package com.mandelsoft.mand.image;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.util.concurrent.RecursiveAction;
 import com.mandelsoft.mand.MandelData;
 import com.mandelsoft.mand.MandelException;
 import com.mandelsoft.mand.MandelInfo;
@@ -27,6 +30,7 @@ import com.mandelsoft.mand.cm.ColormapModel.ResizeMode;
 import com.mandelsoft.mand.mapping.Mapper;
 import com.mandelsoft.mand.mapping.Mapping;
 import com.mandelsoft.util.ChangeListener;
+import com.mandelsoft.util.SharedPool;
 
 /**
  *
@@ -34,6 +38,7 @@ import com.mandelsoft.util.ChangeListener;
  */
 public class RasterImage extends BufferedImage implements MandelImage {
   public static boolean debug=false;
+  public static final int MIN_ROWS=32; // rows updated sequentially
 
   private WritableRaster     raster;
 
@@ -166,13 +171,62 @@ public class RasterImage extends BufferedImage implements MandelImage {
       
         //new Throwable().printStackTrace(System.out);
       listeners.firePrepareEvent();
-      for (int y=0; y<getHeight(); y++) {
-        for (int x=0; x<getWidth(); x++) {
-          raster.setDataElements(x, y, rastermapper.getPixelDataElements(x, y));
+      int[] table=rastermapper.createPixelTable();
+      if (table!=null&&raster.getDataBuffer() instanceof DataBufferInt&&
+          raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+        SharedPool.get().invoke(new UpdateTask(table, 0, getHeight()));
+      }
+      else {
+        for (int y=0; y<getHeight(); y++) {
+          for (int x=0; x<getWidth(); x++) {
+            raster.setDataElements(x, y, rastermapper.getPixelDataElements(x, y));
+          }
         }
       }
       listeners.fireChangeEvent();
     }
   }
 
+  /**
+   * Maps a range of rows directly into the int array of the data buffer.
+   * The ranges are split and processed in parallel.
+   */
+  @SuppressWarnings("serial")
+  private class UpdateTask extends RecursiveAction {
+    private int[] table;
+    private int y0;
+    private int y1;
+
+    public UpdateTask(int[] table, int y0, int y1)
+    {
+      this.table=table;
+      this.y0=y0;
+      this.y1=y1;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (y1-y0>MIN_ROWS) {
+        int d=(y0+y1)/2;
+        invokeAll(new UpdateTask(table, y0, d), new UpdateTask(table, d, y1));
+        return;
+      }
+
+      SinglePixelPackedSampleModel sm=
+              (SinglePixelPackedSampleModel)raster.getSampleModel();
+      DataBufferInt db=(DataBufferInt)raster.getDataBuffer();
+      int[] pixels=db.getData();
+      int stride=sm.getScanlineStride();
+      int offset=db.getOffset()-
+                 raster.getSampleModelTranslateY()*stride-
+                 raster.getSampleModelTranslateX();
+      int[] row=new int[getWidth()];
+
+      for (int y=y0; y<y1; y++) {
+        rastermapper.mapRow(y, table, row, pixels, offset+y*stride);
+      }
+    }
+  }
+
 }
@@ -54,17 +54,18 @@ public abstract class MapperSupport implements Mapper {
     }
 
     protected void analyseRaster(MandelRaster r)
-    { int[][] raster=r.getRaster();
+    { int[] row=null;
       minIt=0;
       maxIt=0;
       for (int y=0; y<r.getRY(); y++) {
+        row=r.getRow(y, row);
         for (int x=0; x<r.getRX(); x++) {
-          if (raster[y][x]>maxIt) {
-            maxIt=raster[y][x];
+          if (row[x]>maxIt) {
+            maxIt=row[x];
             if (minIt==0) minIt=maxIt;
           }
-          if (raster[y][x]<minIt && raster[y][x]>0) {
-            minIt=raster[y][x];
+          if (row[x]<minIt && row[x]>0) {
+            minIt=row[x];
           }
         }
       }
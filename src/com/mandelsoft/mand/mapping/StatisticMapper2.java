@@ -82,11 +82,12 @@ public class StatisticMapper2 extends MapperSupport {
       super.analyseRaster(r);
       histogram=new int[getSize()];
 
-      int[][] raster=r.getRaster();
+      int[] row=null;
 
       for (int y=0; y<r.getRY(); y++) {
+        row=r.getRow(y, row);
         for (int x=0; x<r.getRX(); x++) {
-          int i=raster[y][x];
+          int i=row[x];
           if (i>0) {
             histogram[i-minIt]++;
           }
@@ -16,6 +16,8 @@
 
 package com.mandelsoft.mand.meth;
 
+import com.mandelsoft.mand.BatchPixelIterator;
+import com.mandelsoft.mand.ResumablePixelIterator;
 import com.mandelsoft.mand.tools.Mand;
 import java.math.BigDecimal;
 
@@ -23,7 +25,9 @@ import java.math.BigDecimal;
  *
  * @author Uwe Krueger
  */
-public abstract class AbstractDoublePixelIterator extends AbstractPixelIterator {
+public abstract class AbstractDoublePixelIterator extends AbstractPixelIterator
+                                                  implements BatchPixelIterator,
+                                                             ResumablePixelIterator {
   //parameters
 
   protected double bound;
@@ -36,6 +40,12 @@ public abstract class AbstractDoublePixelIterator extends AbstractPixelIterator
   // iteration point
   protected double cx;
   protected double cy;
+  // interior detection
+  protected boolean interiorcheck;
+  // batch iteration
+  private DoubleBatchIterator batch;
+  private double[] bpx;
+  private double[] bpy;
 
   public AbstractDoublePixelIterator(BigDecimal x0,
                                      BigDecimal y0,
@@ -56,6 +66,21 @@ public abstract class AbstractDoublePixelIterator extends AbstractPixelIterator
     this.dry=ry;
   }
 
+  public boolean isInteriorCheck()
+  {
+    return interiorcheck;
+  }
+
+  public boolean isInterior()
+  {
+    return interiorcheck&&isInterior(cx, cy);
+  }
+
+  public void setInteriorCheck(boolean interiorcheck)
+  {
+    this.interiorcheck=interiorcheck;
+  }
+
   public boolean isFast()
   {
     return true;
@@ -71,6 +96,25 @@ public abstract class AbstractDoublePixelIterator extends AbstractPixelIterator
     cy=y0-(y*dy)/dry;
   }
 
+  public int iter(double[] z, int it)
+  {
+    return iter(cx, cy, bound, limit, interiorcheck, z, it);
+  }
+
+  public void iter(int[] xs, int[] ys, int n, int[] its)
+  {
+    if (batch==null) batch=new DoubleBatchIterator();
+    if (bpx==null||bpx.length<n) {
+      bpx=new double[n];
+      bpy=new double[n];
+    }
+    for (int i=0; i<n; i++) {
+      bpx[i]=x0+(xs[i]*dx)/drx;
+      bpy[i]=y0-(ys[i]*dy)/dry;
+    }
+    batch.iter(bpx, bpy, n, bound, limit, interiorcheck, its);
+  }
+
   public BigDecimal getCX()
   {
     return new BigDecimal(cx);
@@ -92,4 +136,134 @@ public abstract class AbstractDoublePixelIterator extends AbstractPixelIterator
     double yd=y.doubleValue();
     return (y0-yd)*dry/dy;
   }
+
+  ///////////////////////////////////////////////////////////////////////
+  // interior detection
+  ///////////////////////////////////////////////////////////////////////
+
+  /**
+   * Checks whether a point is located inside the main cardioid or the
+   * period 2 bulb. Points on the boundary are not treated as interior.
+   */
+  static public boolean isInterior(double cx, double cy)
+  {
+    double y2=cy*cy;
+    double xq=cx-0.25;
+    double q=xq*xq+y2;
+    if (q*(q+xq)<0.25*y2) return true;
+    double x1=cx+1;
+    return x1*x1+y2<0.0625;
+  }
+
+  /**
+   * Iterates a point starting with z=0.
+   * If the interior check is enabled points inside the main cardioid
+   * or the period 2 bulb are rejected without iteration and the orbit is
+   * checked for periodicity using Brent's algorithm: the orbit is
+   * compared to a saved point, which is replaced after 1, 2, 4, ...
+   * iterations. Only an exact match is accepted, such an orbit
+   * will never escape, so the iteration values of escaping points are
+   * never changed. Interior points return limit+1 like a completely
+   * iterated point.
+   */
+  static public int iter(double px, double py, double bound, int limit,
+                         boolean interiorcheck)
+  {
+    if (!interiorcheck) return iter(px, py, bound, limit);
+    if (isInterior(px, py)) return limit+1;
+
+    double x=0;
+    double y=0;
+    double x2=0;
+    double y2=0;
+    double sx=0;
+    double sy=0;
+    int period=1;
+    int n=0;
+    int it=0;
+
+    while (x2+y2<bound&&++it<=limit) {
+      double xn=x2-y2+px;
+      double yn=2*x*y+py;
+      x=xn;
+      x2=x*x;
+      y=yn;
+      y2=y*y;
+      if (x==sx&&y==sy) return limit+1;
+      if (++n==period) {
+        sx=x;
+        sy=y;
+        n=0;
+        period<<=1;
+      }
+    }
+    return it;
+  }
+
+  static public int iter(double px, double py, double bound, int limit)
+  {
+    double x=0;
+    double y=0;
+    double x2=0;
+    double y2=0;
+    int it=0;
+
+    while (x2+y2<bound&&++it<=limit) {
+      double xn=x2-y2+px;
+      double yn=2*x*y+py;
+      x=xn;
+      x2=x*x;
+      y=yn;
+      y2=y*y;
+    }
+    return it;
+  }
+
+  /**
+   * Continues the iteration of a point with the orbit point z reached
+   * after it iterations and stores the last orbit point in z.
+   * Because the complete orbit is kept in z the result is identical
+   * to the one of a complete iteration. For interior points detected
+   * by a periodic orbit z is the point of the cycle found, it
+   * will never escape, too. Points detected by the cardioid or bulb
+   * check leave z untouched.
+   */
+  static public int iter(double px, double py, double bound, int limit,
+                         boolean interiorcheck, double[] z, int it)
+  {
+    if (interiorcheck&&isInterior(px, py)) return limit+1;
+
+    double x=z[0];
+    double y=z[1];
+    double x2=x*x;
+    double y2=y*y;
+    double sx=x;
+    double sy=y;
+    int period=1;
+    int n=0;
+
+    while (x2+y2<bound&&++it<=limit) {
+      double xn=x2-y2+px;
+      double yn=2*x*y+py;
+      x=xn;
+      x2=x*x;
+      y=yn;
+      y2=y*y;
+      if (interiorcheck) {
+        if (x==sx&&y==sy) {
+          it=limit+1;
+          break;
+        }
+        if (++n==period) {
+          sx=x;
+          sy=y;
+          n=0;
+          period<<=1;
+        }
+      }
+    }
+    z[0]=x;
+    z[1]=y;
+    return it;
+  }
 }
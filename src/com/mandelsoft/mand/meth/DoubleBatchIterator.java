@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.meth;
+
+/**
+ * Double iteration of a batch of pixels.
+ *
+ * The pixels are distributed to a fixed number of lanes. Groups of four
+ * lanes are iterated in lockstep in local variables for blocks of
+ * {@link #BLOCK} iterations without any bail out check, so that the
+ * independent calculations of the lanes can be executed in parallel by
+ * the processor. After every block the lanes are checked: because the
+ * bail out radius is larger than 2 an escaping orbit never returns, so a
+ * lane that is still inside after the block did not escape within the
+ * block. Escaped lanes are iterated again from the state at the beginning
+ * of the block one step at a time to get the exact iteration count.
+ * Finished lanes are refilled with the next pixel, if there are no more
+ * pixels the remaining lanes are finished one by one.
+ *
+ * The results are identical to the iteration of
+ * {@link AbstractDoublePixelIterator#iter(double,double,double,int,boolean)}.
+ *
+ * @author Uwe Krueger
+ */
+public class DoubleBatchIterator {
+  static public final int LANES=8; // multiple of 4
+  static public final int BLOCK=32;
+
+  // lane state
+  private final int[] index=new int[LANES];   // pixel index, -1 for free
+  private final int[] count=new int[LANES];   // executed iterations
+  private final double[] cx=new double[LANES];
+  private final double[] cy=new double[LANES];
+  private final double[] x=new double[LANES];
+  private final double[] y=new double[LANES];
+  // state at beginning of block
+  private final double[] bx=new double[LANES];
+  private final double[] by=new double[LANES];
+  // periodicity check
+  private final double[] sx=new double[LANES];
+  private final double[] sy=new double[LANES];
+  private final int[] blocks=new int[LANES];
+  private final int[] period=new int[LANES];
+  private final boolean[] hit=new boolean[LANES];
+
+  private int active;
+
+  public DoubleBatchIterator()
+  {
+    for (int k=0; k<LANES; k++) index[k]=-1;
+  }
+
+  public void iter(double[] px, double[] py, int n,
+                   double bound, int limit, boolean interiorcheck,
+                   int[] its)
+  {
+    int next=0;
+
+    if (bound<=4||limit<BLOCK) {
+      // block check not possible
+      for (int i=0; i<n; i++) {
+        its[i]=AbstractDoublePixelIterator.iter(px[i], py[i], bound, limit,
+                                                interiorcheck);
+      }
+      return;
+    }
+
+    while (true) {
+      // fill free lanes
+      for (int k=0; k<LANES; k++) {
+        while (index[k]<0&&next<n) {
+          int i=next++;
+          if (interiorcheck&&AbstractDoublePixelIterator.isInterior(px[i], py[i])) {
+            its[i]=limit+1;
+          }
+          else {
+            index[k]=i;
+            cx[k]=px[i];
+            cy[k]=py[i];
+            period[k]=1;
+            active++;
+          }
+        }
+      }
+      if (active==0) break;
+      if (next>=n&&active<=LANES/2) {
+        // not worth to iterate empty lanes
+        for (int k=0; k<LANES; k++) {
+          if (index[k]<0) continue;
+          its[index[k]]=iter(x[k], y[k], cx[k], cy[k],
+                             bound, limit, count[k], interiorcheck);
+          free(k);
+        }
+        break;
+      }
+
+      System.arraycopy(x, 0, bx, 0, LANES);
+      System.arraycopy(y, 0, by, 0, LANES);
+      for (int k=0; k<LANES; k+=4) {
+        iterBlock(k, interiorcheck);
+      }
+
+      // check lanes
+      for (int k=0; k<LANES; k++) {
+        if (index[k]<0) continue;
+        if (!(x[k]*x[k]+y[k]*y[k]<bound)) {
+          // escaped within block
+          its[index[k]]=iter(bx[k], by[k], cx[k], cy[k],
+                             bound, limit, count[k], false);
+          free(k);
+        }
+        else {
+          count[k]+=BLOCK;
+          if (limit-count[k]<BLOCK) {
+            its[index[k]]=iter(x[k], y[k], cx[k], cy[k],
+                               bound, limit, count[k], false);
+            free(k);
+          }
+          else if (interiorcheck) {
+            if (hit[k]) {
+              its[index[k]]=limit+1;
+              free(k);
+            }
+            else if (++blocks[k]==period[k]) {
+              sx[k]=x[k];
+              sy[k]=y[k];
+              blocks[k]=0;
+              period[k]<<=1;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // iterate a group of four lanes for one block
+  private void iterBlock(int k, boolean interiorcheck)
+  {
+    double x0=x[k],   y0=y[k],   cx0=cx[k],   cy0=cy[k];
+    double x1=x[k+1], y1=y[k+1], cx1=cx[k+1], cy1=cy[k+1];
+    double x2=x[k+2], y2=y[k+2], cx2=cx[k+2], cy2=cy[k+2];
+    double x3=x[k+3], y3=y[k+3], cx3=cx[k+3], cy3=cy[k+3];
+    double t;
+
+    if (interiorcheck) {
+      double sx0=sx[k],   sy0=sy[k];
+      double sx1=sx[k+1], sy1=sy[k+1];
+      double sx2=sx[k+2], sy2=sy[k+2];
+      double sx3=sx[k+3], sy3=sy[k+3];
+      boolean h0=false, h1=false, h2=false, h3=false;
+
+      for (int s=0; s<BLOCK; s++) {
+        t=x0*x0-y0*y0+cx0; y0=2*x0*y0+cy0; x0=t;
+        t=x1*x1-y1*y1+cx1; y1=2*x1*y1+cy1; x1=t;
+        t=x2*x2-y2*y2+cx2; y2=2*x2*y2+cy2; x2=t;
+        t=x3*x3-y3*y3+cx3; y3=2*x3*y3+cy3; x3=t;
+        // an exact match with the saved point is a periodic orbit
+        h0|=x0==sx0&y0==sy0;
+        h1|=x1==sx1&y1==sy1;
+        h2|=x2==sx2&y2==sy2;
+        h3|=x3==sx3&y3==sy3;
+      }
+      hit[k]=h0;
+      hit[k+1]=h1;
+      hit[k+2]=h2;
+      hit[k+3]=h3;
+    }
+    else {
+      for (int s=0; s<BLOCK; s++) {
+        t=x0*x0-y0*y0+cx0; y0=2*x0*y0+cy0; x0=t;
+        t=x1*x1-y1*y1+cx1; y1=2*x1*y1+cy1; x1=t;
+        t=x2*x2-y2*y2+cx2; y2=2*x2*y2+cy2; x2=t;
+        t=x3*x3-y3*y3+cx3; y3=2*x3*y3+cy3; x3=t;
+      }
+    }
+    x[k]=x0;   y[k]=y0;
+    x[k+1]=x1; y[k+1]=y1;
+    x[k+2]=x2; y[k+2]=y2;
+    x[k+3]=x3; y[k+3]=y3;
+  }
+
+  private void free(int k)
+  {
+    active--;
+    index[k]=-1;
+    count[k]=0;
+    cx[k]=cy[k]=0;
+    x[k]=y[k]=0;
+    sx[k]=sy[k]=0;
+    blocks[k]=0;
+    hit[k]=false;
+  }
+
+  // continue the iteration of a pixel after it iterations
+  static private int iter(double x, double y, double px, double py,
+                          double bound, int limit, int it,
+                          boolean interiorcheck)
+  {
+    double x2=x*x;
+    double y2=y*y;
+    double sx=x;
+    double sy=y;
+    int period=1;
+    int n=0;
+
+    while (x2+y2<bound&&++it<=limit) {
+      double xn=x2-y2+px;
+      double yn=2*x*y+py;
+      x=xn;
+      x2=x*x;
+      y=yn;
+      y2=y*y;
+      if (interiorcheck) {
+        if (x==sx&&y==sy) return limit+1;
+        if (++n==period) {
+          sx=x;
+          sy=y;
+          n=0;
+          period<<=1;
+        }
+      }
+    }
+    return it;
+  }
+}
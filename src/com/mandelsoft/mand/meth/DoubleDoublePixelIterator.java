@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.meth;
+
+import com.mandelsoft.mand.tools.Mand;
+import java.math.BigDecimal;
+
+/**
+ * Pure java pixel iterator using double-double arithmetic.
+ *
+ * A number is represented by an unevaluated sum of two doubles (hi+lo)
+ * giving a mantissa of about 106 bits. This covers pixel distances
+ * down to {@link #MIN_PIXEL_SIZE} and replaces the native long double
+ * iteration, which is only available on windows platforms.
+ *
+ * @author Uwe Krueger
+ */
+public class DoubleDoublePixelIterator extends AbstractBigDecimalPixelIterator {
+  static public final double MIN_PIXEL_SIZE=1e-30;
+
+  static private final double SPLIT=134217729.0; // 2^27+1
+
+  private double bound;
+  private double cxh;
+  private double cxl;
+  private double cyh;
+  private double cyl;
+
+  // result of the last double-double operation
+  private double rh;
+  private double rl;
+
+  public DoubleDoublePixelIterator(BigDecimal x0,
+                                   BigDecimal y0,
+                                   BigDecimal dx,
+                                   BigDecimal dy,
+                                   int rx,
+                                   int ry,
+                                   int limit)
+  {
+    super(x0, y0, dx, dy, rx, ry, limit);
+    bound=Mand.BOUND;
+  }
+
+  @Override
+  public void setX(int x)
+  {
+    super.setX(x);
+    cxh=cx.doubleValue();
+    cxl=sub(cx, new BigDecimal(cxh)).doubleValue();
+  }
+
+  @Override
+  public void setY(int y)
+  {
+    super.setY(y);
+    cyh=cy.doubleValue();
+    cyl=sub(cy, new BigDecimal(cyh)).doubleValue();
+  }
+
+  public int iter()
+  {
+    double xh=0, xl=0;
+    double yh=0, yl=0;
+    double x2h=0, x2l=0;
+    double y2h=0, y2l=0;
+    int it=0;
+
+    while (true) {
+      add(x2h, x2l, y2h, y2l);
+      if (rh+rl>=bound||++it>limit) break;
+
+      // y=2xy+cy
+      mul(xh, xl, yh, yl);
+      add(2*rh, 2*rl, cyh, cyl);
+      yh=rh;
+      yl=rl;
+      // x=x2-y2+cx
+      add(x2h, x2l, -y2h, -y2l);
+      add(rh, rl, cxh, cxl);
+      xh=rh;
+      xl=rl;
+
+      sqr(xh, xl);
+      x2h=rh;
+      x2l=rl;
+      sqr(yh, yl);
+      y2h=rh;
+      y2l=rl;
+    }
+    return it;
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // double-double arithmetic
+  ///////////////////////////////////////////////////////////////////////
+
+  private void add(double ah, double al, double bh, double bl)
+  {
+    // two sum of high and low parts
+    double s=ah+bh;
+    double v=s-ah;
+    double e=(ah-(s-v))+(bh-v);
+    double t=al+bl;
+    v=t-al;
+    double f=(al-(t-v))+(bl-v);
+
+    e+=t;
+    double h=s+e;
+    e=e-(h-s);
+    e+=f;
+    rh=h+e;
+    rl=e-(rh-h);
+  }
+
+  private void mul(double ah, double al, double bh, double bl)
+  {
+    double p=ah*bh;
+    double t=SPLIT*ah;
+    double ahh=t-(t-ah);
+    double ahl=ah-ahh;
+    t=SPLIT*bh;
+    double bhh=t-(t-bh);
+    double bhl=bh-bhh;
+    double e=((ahh*bhh-p)+ahh*bhl+ahl*bhh)+ahl*bhl;
+
+    e+=ah*bl+al*bh;
+    rh=p+e;
+    rl=e-(rh-p);
+  }
+
+  private void sqr(double ah, double al)
+  {
+    double p=ah*ah;
+    double t=SPLIT*ah;
+    double ahh=t-(t-ah);
+    double ahl=ah-ahh;
+    double e=((ahh*ahh-p)+2*ahh*ahl)+ahl*ahl;
+
+    e+=2*ah*al;
+    rh=p+e;
+    rl=e-(rh-p);
+  }
+}
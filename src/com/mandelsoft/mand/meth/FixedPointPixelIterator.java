@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.meth;
+
+import com.mandelsoft.mand.PixelIterator;
+import com.mandelsoft.mand.tools.Mand;
+import com.mandelsoft.mand.util.FixedPoint;
+import java.math.BigDecimal;
+
+/**
+ * Arbitrary precision pixel iterator using mutable {@link FixedPoint}
+ * numbers. The number of limbs is derived from the precision required
+ * for the pixel distance plus some guard bits. The iteration itself
+ * does not allocate any objects.
+ *
+ * @author Uwe Krueger
+ */
+public class FixedPointPixelIterator extends AbstractBigDecimalPixelIterator {
+  static public final int GUARD_BITS=64;
+
+  private FixedPoint bound;
+  private FixedPoint fcx;
+  private FixedPoint fcy;
+
+  // iteration state
+  private FixedPoint x;
+  private FixedPoint y;
+  private FixedPoint x2;
+  private FixedPoint y2;
+  private FixedPoint t;
+
+  public FixedPointPixelIterator(BigDecimal x0,
+                                 BigDecimal y0,
+                                 BigDecimal dx,
+                                 BigDecimal dy,
+                                 int rx,
+                                 int ry,
+                                 int limit)
+  {
+    super(x0, y0, dx, dy, rx, ry, limit);
+    int f=FixedPoint.getLimbs(precision+GUARD_BITS);
+
+    bound=new FixedPoint(f, new BigDecimal(Mand.BOUND));
+    fcx=new FixedPoint(f);
+    fcy=new FixedPoint(f);
+    x=new FixedPoint(f);
+    y=new FixedPoint(f);
+    x2=new FixedPoint(f);
+    y2=new FixedPoint(f);
+    t=new FixedPoint(f);
+  }
+
+  public int getLimbs()
+  {
+    return x.getLimbs();
+  }
+
+  @Override
+  public void setX(int x)
+  {
+    super.setX(x);
+    fcx.set(cx);
+  }
+
+  @Override
+  public void setY(int y)
+  {
+    super.setY(y);
+    fcy.set(cy);
+  }
+
+  public int iter()
+  {
+    int it=0;
+
+    x.setZero();
+    y.setZero();
+    x2.setZero();
+    y2.setZero();
+
+    while (t.add(x2, y2).compareTo(bound)<0&&++it<=limit) {
+      // 2xy=(x+y)^2-x^2-y^2
+      t.add(x, y);
+      t.square(t);
+      t.sub(t, x2);
+      t.sub(t, y2);
+      y.add(t, fcy);
+      x.sub(x2, y2);
+      x.add(x, fcx);
+      x2.square(x);
+      y2.square(y);
+    }
+    return it;
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // benchmark
+  ///////////////////////////////////////////////////////////////////////
+
+  static private long bench(PixelIterator pi, int n)
+  {
+    long start=System.currentTimeMillis();
+    for (int i=0; i<n; i++) {
+      pi.setX(i);
+      pi.setY(i);
+      pi.iter();
+    }
+    return System.currentTimeMillis()-start;
+  }
+
+  static public void main(String[] args)
+  {
+    BigDecimal x0=new BigDecimal("-0.743643887037158704752191506114774");
+    BigDecimal y0=new BigDecimal("0.131825904205311970493132056385139");
+    int limit=2000;
+    int n=20;
+
+    for (int mag=30; mag<=60; mag+=10) {
+      BigDecimal d=BigDecimal.ONE.movePointLeft(mag);
+      PixelIterator bd=new MandelbrotPixelIteratorFactory.BigDecimalMandIterator(
+                                           x0, y0, d, d, n, n, limit);
+      FixedPointPixelIterator fp=new FixedPointPixelIterator(
+                                           x0, y0, d, d, n, n, limit);
+      bench(fp, n); // warm up
+      long tbd=bench(bd, n);
+      long tfp=bench(fp, n);
+      System.out.println("1e-"+mag+": precision "+fp.getPrecision()+
+                         " ("+fp.getLimbs()+" limbs): big decimal "+tbd+
+                         "ms, fixed point "+tfp+"ms, gain "+
+                         (tfp==0?"-":""+(tbd/(double)tfp)));
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.meth;
+
+import com.mandelsoft.mand.PixelIterator;
+import java.math.BigDecimal;
+
+/**
+ * An iteration engine creates pixel iterators for a range of pixel
+ * distances. Engines are registered at the {@link IterationEngineRegistry}.
+ *
+ * @author Uwe Krueger
+ */
+public abstract class IterationEngine {
+  private String name;
+  private double minpixelsize;
+
+  /**
+   * @param name         name used for selection and calibration
+   * @param minpixelsize pixel distances must be larger than this value,
+   *                     0 for arbitrary precision
+   */
+  protected IterationEngine(String name, double minpixelsize)
+  {
+    this.name=name;
+    this.minpixelsize=minpixelsize;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public double getMinPixelSize()
+  {
+    return minpixelsize;
+  }
+
+  public boolean isAvailable()
+  {
+    return true;
+  }
+
+  public boolean isValid(BigDecimal pixelsize)
+  {
+    if (!isAvailable()) return false;
+    return minpixelsize==0||pixelsize.doubleValue()>minpixelsize;
+  }
+
+  public abstract PixelIterator createPixelIterator(BigDecimal x0,
+                                                    BigDecimal y0,
+                                                    BigDecimal dx,
+                                                    BigDecimal dy,
+                                                    int rx,
+                                                    int ry,
+                                                    int limit,
+                                                    boolean interiorcheck);
+
+  @Override
+  public String toString()
+  {
+    return name;
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.meth;
+
+import com.mandelsoft.mand.PixelIterator;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Properties;
+
+/**
+ * Speed calibration of iteration engines.
+ *
+ * Every engine is measured by a short micro benchmark at some
+ * magnifications (decimal exponents of the pixel size) it is valid for.
+ * The result is the time per iteration in nanoseconds. Iterations
+ * skipped by a series approximation are not counted as calculated,
+ * therefore it is disabled for the measurement. Results are
+ * calculated on demand and cached in a property file, which is
+ * discarded if the java runtime, the platform or the measurement
+ * changes. Several processes may share the file. It is written to a
+ * temporary file renamed into place, and entries found in the file
+ * meanwhile are kept.
+ *
+ * @author Uwe Krueger
+ */
+public class IterationEngineCalibration {
+  static public final String CALIBRATION_FILE=".mandtool-engines";
+  static public final int[] MAGNIFICATIONS={ 6, 14, 22, 29, 50, 100, 200, 300 };
+
+  static private final String SYSTEM="system";
+  static private final String VERSION="2";
+  static private final long BUDGET=100000000L; // ns per measurement
+  static private final int SIZE=16;
+  static private final int LIMIT=1000;
+  static private final BigDecimal X0=new BigDecimal("-0.743643887037158704752191506114774");
+  static private final BigDecimal Y0=new BigDecimal("0.131825904205311970493132056385139");
+
+  private File file;
+  private Properties cache;
+  private boolean log;
+
+  public IterationEngineCalibration()
+  {
+    this(new File(System.getProperty("user.home"), CALIBRATION_FILE));
+  }
+
+  public IterationEngineCalibration(File file)
+  {
+    this.file=file;
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public void setVerbose(boolean b)
+  {
+    log=b;
+  }
+
+  private void log(String msg)
+  {
+    if (log) System.out.println(msg);
+  }
+
+  static private String getSystem()
+  {
+    return VERSION+"/"+System.getProperty("os.arch")+"/"+
+           System.getProperty("java.vm.name")+"/"+
+           System.getProperty("java.version");
+  }
+
+  static private String getKey(IterationEngine e, int mag)
+  {
+    return e.getName()+"."+mag;
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // cost access
+  ///////////////////////////////////////////////////////////////////////
+
+  /**
+   * Returns the time per iteration of an engine for the calibrated
+   * magnification nearest to the given one, or 0 if not valid.
+   */
+  synchronized
+  public double getCost(IterationEngine e, int mag)
+  {
+    int found=-1;
+
+    for (int m:MAGNIFICATIONS) {
+      if (!e.isValid(BigDecimal.ONE.movePointLeft(m))) continue;
+      if (found<0||Math.abs(m-mag)<Math.abs(found-mag)) found=m;
+    }
+    if (found<0) return 0;
+    return getCalibratedCost(e, found);
+  }
+
+  synchronized
+  public double getCalibratedCost(IterationEngine e, int mag)
+  {
+    load();
+    String v=cache.getProperty(getKey(e, mag));
+    if (v==null) {
+      double c=measure(e, mag);
+      cache.setProperty(getKey(e, mag), Double.toString(c));
+      save();
+      return c;
+    }
+    try {
+      return Double.parseDouble(v);
+    }
+    catch (NumberFormatException ex) {
+      cache.remove(getKey(e, mag));
+      return getCalibratedCost(e, mag);
+    }
+  }
+
+  /**
+   * Recalibrates all valid engines of a registry.
+   */
+  synchronized
+  public void calibrate(IterationEngineRegistry reg)
+  {
+    load();
+    for (IterationEngine e:reg.getEngines()) {
+      for (int m:MAGNIFICATIONS) {
+        cache.remove(getKey(e, m));
+        if (e.isValid(BigDecimal.ONE.movePointLeft(m))) {
+          cache.setProperty(getKey(e, m), Double.toString(measure(e, m)));
+        }
+      }
+    }
+    save();
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // cache file
+  ///////////////////////////////////////////////////////////////////////
+
+  private void load()
+  {
+    if (cache!=null) return;
+    cache=read();
+    if (cache.isEmpty()&&file.exists()) log("engine calibration outdated");
+    cache.setProperty(SYSTEM, getSystem());
+  }
+
+  // reads the file, it is empty if missing or outdated
+  private Properties read()
+  {
+    Properties p=new Properties();
+    if (file.exists()) {
+      InputStream is=null;
+      try {
+        is=new FileInputStream(file);
+        p.load(is);
+      }
+      catch (IOException ex) {
+        System.out.println("cannot read engine calibration "+file+": "+ex);
+        p.clear();
+      }
+      finally {
+        if (is!=null) try {
+          is.close();
+        }
+        catch (IOException ex) {
+        }
+      }
+      if (!getSystem().equals(p.getProperty(SYSTEM))) {
+        p.clear();
+      }
+    }
+    return p;
+  }
+
+  private void save()
+  {
+    // keep entries written by other processes meanwhile
+    Properties p=read();
+    for (String k:p.stringPropertyNames()) {
+      if (cache.getProperty(k)==null) cache.setProperty(k, p.getProperty(k));
+    }
+
+    File tmp=null;
+    OutputStream os=null;
+    try {
+      tmp=File.createTempFile(file.getName(), ".tmp",
+                              file.getAbsoluteFile().getParentFile());
+      os=new FileOutputStream(tmp);
+      cache.store(os, "mandtool iteration engine calibration (ns/iteration)");
+      os.close();
+      os=null;
+      if (!tmp.renameTo(file)) {
+        // platforms not replacing existing files
+        file.delete();
+        if (!tmp.renameTo(file)) throw new IOException("cannot replace file");
+      }
+      tmp=null;
+    }
+    catch (IOException ex) {
+      System.out.println("cannot write engine calibration "+file+": "+ex);
+    }
+    finally {
+      if (os!=null) try {
+        os.close();
+      }
+      catch (IOException ex) {
+      }
+      if (tmp!=null) tmp.delete();
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // benchmark
+  ///////////////////////////////////////////////////////////////////////
+
+  private double measure(IterationEngine e, int mag)
+  {
+    BigDecimal d=BigDecimal.ONE.movePointLeft(mag).multiply(new BigDecimal(SIZE));
+    PixelIterator pi=e.createPixelIterator(X0, Y0, d, d, SIZE, SIZE,
+                                           LIMIT, false);
+    if (pi instanceof PerturbationPixelIterator) {
+      ((PerturbationPixelIterator)pi).setSeriesApproximation(false);
+    }
+    run(pi, BUDGET); // warm up
+    double c=run(pi, BUDGET/2);
+    for (int i=0; i<2; i++) {
+      c=Math.min(c, run(pi, BUDGET/2));
+    }
+    System.out.println("calibrated engine "+e.getName()+" for 1e-"+mag+
+                       ": "+c+"ns/iteration");
+    return c;
+  }
+
+  // returns time per iteration in ns
+  private double run(PixelIterator pi, long budget)
+  {
+    long start=System.nanoTime();
+    long its=0;
+    long t;
+
+    for (int i=0; ; i=(i+1)%(SIZE*SIZE)) {
+      pi.setX(i%SIZE);
+      pi.setY(i/SIZE);
+      its+=pi.iter();
+      t=System.nanoTime()-start;
+      if (t>=budget) break;
+    }
+    return (double)t/its;
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.meth;
+
+import com.mandelsoft.mand.MandIter;
+import com.mandelsoft.mand.MandelSpec;
+import com.mandelsoft.mand.PixelIterator;
+import com.mandelsoft.mand.util.MandArith;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Registry of the available iteration engines.
+ *
+ * For a given image specification the fastest engine valid for its
+ * pixel distance is selected. The double engine is always used as long
+ * as it is valid. Otherwise the speed of the engines is taken from
+ * the {@link IterationEngineCalibration}. Because the measurement is
+ * not exact an engine is only preferred to an earlier registered one,
+ * if it is significantly faster. Without calibration data the
+ * first valid engine in registration order is used.
+ *
+ * An engine can be forced or excluded with the system properties
+ * {@link #PROP_ENGINE} and {@link #PROP_EXCLUDE} (comma separated list)
+ * or by the tools. A forced engine is only used if it is valid for the
+ * requested pixel distance.
+ *
+ * @author Uwe Krueger
+ */
+public class IterationEngineRegistry extends MandArith {
+  static public final String PROP_ENGINE="mandtool.engine";
+  static public final String PROP_EXCLUDE="mandtool.engine.exclude";
+  static public final String PROP_CALIBRATE="mandtool.engine.calibrate";
+
+  static public final String DOUBLE="double";
+  static public final String DOUBLEDOUBLE="doubledouble";
+  static public final String PERTURBATION="perturbation";
+  static public final String NATIVE="native";
+  static public final String FIXEDPOINT="fixedpoint";
+  static public final String BIGDECIMAL="bigdecimal";
+
+  // required speed up to prefer a later engine
+  static private final double MARGIN=1.5;
+
+  static private IterationEngineRegistry registry;
+
+  synchronized
+  static public IterationEngineRegistry getDefault()
+  {
+    if (registry==null) {
+      registry=new IterationEngineRegistry();
+      registry.registerStandardEngines();
+      registry.setForced(System.getProperty(PROP_ENGINE));
+      String ex=System.getProperty(PROP_EXCLUDE);
+      if (ex!=null) {
+        for (String e:ex.split(",")) {
+          if (e.trim().length()>0) registry.exclude(e.trim());
+        }
+      }
+      if (!"false".equals(System.getProperty(PROP_CALIBRATE))) {
+        registry.setCalibration(new IterationEngineCalibration());
+      }
+    }
+    return registry;
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+
+  private List<IterationEngine> engines;
+  private String forced;
+  private Set<String> excluded;
+  private IterationEngineCalibration calibration;
+
+  public IterationEngineRegistry()
+  {
+    engines=new ArrayList<IterationEngine>();
+    excluded=new HashSet<String>();
+  }
+
+  synchronized
+  public void register(IterationEngine e)
+  {
+    if (getEngine(e.getName())!=null) {
+      throw new IllegalArgumentException("engine "+e.getName()+
+                                         " already registered");
+    }
+    engines.add(e);
+  }
+
+  synchronized
+  public IterationEngine getEngine(String name)
+  {
+    for (IterationEngine e:engines) {
+      if (e.getName().equals(name)) return e;
+    }
+    return null;
+  }
+
+  synchronized
+  public List<IterationEngine> getEngines()
+  {
+    return new ArrayList<IterationEngine>(engines);
+  }
+
+  synchronized
+  public String getForced()
+  {
+    return forced;
+  }
+
+  synchronized
+  public void setForced(String name)
+  {
+    if (name!=null&&getEngine(name)==null) {
+      throw new IllegalArgumentException("unknown iteration engine "+name);
+    }
+    forced=name;
+  }
+
+  synchronized
+  public void exclude(String name)
+  {
+    if (getEngine(name)==null) {
+      throw new IllegalArgumentException("unknown iteration engine "+name);
+    }
+    excluded.add(name);
+  }
+
+  synchronized
+  public boolean isExcluded(String name)
+  {
+    return excluded.contains(name);
+  }
+
+  synchronized
+  public IterationEngineCalibration getCalibration()
+  {
+    return calibration;
+  }
+
+  synchronized
+  public void setCalibration(IterationEngineCalibration calibration)
+  {
+    this.calibration=calibration;
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // selection
+  ///////////////////////////////////////////////////////////////////////
+
+  static public BigDecimal getPixelSize(BigDecimal dx, BigDecimal dy,
+                                        int rx, int ry)
+  {
+    BigDecimal px=div(dx, rx);
+    BigDecimal py=div(dy, ry);
+    return px.compareTo(py)<0?px:py;
+  }
+
+  // decimal exponent of the pixel size
+  static public int getMagnification(BigDecimal pixelsize)
+  {
+    return pixelsize.scale()-pixelsize.precision()+1;
+  }
+
+  synchronized
+  public List<IterationEngine> getCandidates(BigDecimal pixelsize)
+  {
+    List<IterationEngine> list=new ArrayList<IterationEngine>();
+    for (IterationEngine e:engines) {
+      if (!excluded.contains(e.getName())&&e.isValid(pixelsize)) {
+        list.add(e);
+      }
+    }
+    return list;
+  }
+
+  public IterationEngine select(BigDecimal dx, BigDecimal dy, int rx, int ry)
+  {
+    BigDecimal pixelsize=getPixelSize(dx, dy, rx, ry);
+    IterationEngineCalibration cal;
+    List<IterationEngine> list;
+
+    synchronized (this) {
+      if (forced!=null) {
+        IterationEngine e=getEngine(forced);
+        if (e.isValid(pixelsize)) return e;
+        System.out.println("engine "+forced+" not valid for pixel size "+
+                           pixelsize+": ignored");
+      }
+
+      list=getCandidates(pixelsize);
+      if (list.isEmpty()) {
+        throw new IllegalStateException("no iteration engine available for "+
+                                        "pixel size "+pixelsize);
+      }
+      if (list.size()==1||calibration==null) return list.get(0);
+
+      // double is exact for its range and by far the fastest engine
+      IterationEngine e=getEngine(DOUBLE);
+      if (list.contains(e)) return e;
+      cal=calibration;
+    }
+
+    // a missing calibration is measured, this must not block the registry
+    int mag=getMagnification(pixelsize);
+    IterationEngine found=null;
+    double cost=0;
+    for (IterationEngine c:list) {
+      double t=cal.getCost(c, mag);
+      if (t<=0) return list.get(0); // no calibration data
+      // later engines must be significantly faster
+      if (found==null||t*MARGIN<cost) {
+        found=c;
+        cost=t;
+      }
+    }
+    return found;
+  }
+
+  public PixelIterator createPixelIterator(MandelSpec mi)
+  {
+    return createPixelIterator(mi.getXMin(), mi.getYMax(),
+                               mi.getDX(), mi.getDY(),
+                               mi.getRX(), mi.getRY(),
+                               mi.getLimitIt(), mi.isInteriorCheck());
+  }
+
+  public PixelIterator createPixelIterator(BigDecimal x0,
+                                           BigDecimal y0,
+                                           BigDecimal dx,
+                                           BigDecimal dy,
+                                           int rx,
+                                           int ry,
+                                           int limit,
+                                           boolean interiorcheck)
+  {
+    IterationEngine e=select(dx, dy, rx, ry);
+    System.out.println(e.getName()+" iteration mode");
+    return e.createPixelIterator(x0, y0, dx, dy, rx, ry, limit,
+                                 interiorcheck);
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // standard engines
+  ///////////////////////////////////////////////////////////////////////
+
+  /**
+   * Registers the standard engines. The order is used if no
+   * calibration data is available.
+   */
+  public void registerStandardEngines()
+  {
+    register(new IterationEngine(DOUBLE, 5e-16) {
+      public PixelIterator createPixelIterator(BigDecimal x0, BigDecimal y0,
+                                               BigDecimal dx, BigDecimal dy,
+                                               int rx, int ry, int limit,
+                                               boolean interiorcheck)
+      {
+        AbstractDoublePixelIterator pi=
+                new MandelbrotPixelIteratorFactory.DoubleMandIterator(
+                                             x0, y0, dx, dy, rx, ry, limit);
+        pi.setInteriorCheck(interiorcheck);
+        return pi;
+      }
+    });
+
+    register(new IterationEngine(DOUBLEDOUBLE,
+                                 DoubleDoublePixelIterator.MIN_PIXEL_SIZE) {
+      public PixelIterator createPixelIterator(BigDecimal x0, BigDecimal y0,
+                                               BigDecimal dx, BigDecimal dy,
+                                               int rx, int ry, int limit,
+                                               boolean interiorcheck)
+      {
+        return new DoubleDoublePixelIterator(x0, y0, dx, dy, rx, ry, limit);
+      }
+    });
+
+    register(new IterationEngine(PERTURBATION,
+                                 PerturbationPixelIterator.MIN_PIXEL_SIZE) {
+      public PixelIterator createPixelIterator(BigDecimal x0, BigDecimal y0,
+                                               BigDecimal dx, BigDecimal dy,
+                                               int rx, int ry, int limit,
+                                               boolean interiorcheck)
+      {
+        return new PerturbationPixelIterator(x0, y0, dx, dy, rx, ry, limit);
+      }
+    });
+
+    register(new IterationEngine(NATIVE, 0) {
+      @Override
+      public boolean isAvailable()
+      {
+        return MandIter.useDLL;
+      }
+
+      public PixelIterator createPixelIterator(BigDecimal x0, BigDecimal y0,
+                                               BigDecimal dx, BigDecimal dy,
+                                               int rx, int ry, int limit,
+                                               boolean interiorcheck)
+      {
+        return new MandelbrotPixelIteratorFactory.LongDoubleMandIterator(
+                                             x0, y0, dx, dy, rx, ry, limit);
+      }
+    });
+
+    register(new IterationEngine(FIXEDPOINT, 0) {
+      public PixelIterator createPixelIterator(BigDecimal x0, BigDecimal y0,
+                                               BigDecimal dx, BigDecimal dy,
+                                               int rx, int ry, int limit,
+                                               boolean interiorcheck)
+      {
+        return new FixedPointPixelIterator(x0, y0, dx, dy, rx, ry, limit);
+      }
+    });
+
+    register(new IterationEngine(BIGDECIMAL, 0) {
+      public PixelIterator createPixelIterator(BigDecimal x0, BigDecimal y0,
+                                               BigDecimal dx, BigDecimal dy,
+                                               int rx, int ry, int limit,
+                                               boolean interiorcheck)
+      {
+        return new MandelbrotPixelIteratorFactory.BigDecimalMandIterator(
+                                             x0, y0, dx, dy, rx, ry, limit);
+      }
+    });
+  }
+}
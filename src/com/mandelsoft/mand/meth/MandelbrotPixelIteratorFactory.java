@@ -29,18 +29,10 @@ import com.mandelsoft.mand.util.MandArith;
  */
 public class MandelbrotPixelIteratorFactory extends MandArith
                                             implements PixelIteratorFactory {
-  static private BigDecimal br=new BigDecimal(5.e-16);
-  
+
   public PixelIterator createPixelIterator(MandelSpec mi)
   {
-    BigDecimal x0=mi.getXMin();
-    BigDecimal y0=mi.getYMax();
-    BigDecimal dx=mi.getDX();
-    BigDecimal dy=mi.getDY();
-    int rx=mi.getRX();
-    int ry=mi.getRY();
-    return createPixelIterator(x0,y0,dx,dy,rx,ry,
-                               mi.getLimitIt());
+    return IterationEngineRegistry.getDefault().createPixelIterator(mi);
   }
 
   static public PixelIterator createPixelIterator(BigDecimal x0,
@@ -51,22 +43,26 @@ public class MandelbrotPixelIteratorFactory extends MandArith
                                                   int ry,
                                                   int limit)
   {
-    if (div(dx,rx).compareTo(br)>0 && div(dy,ry).compareTo(br)>0) {
-      System.out.println("double iteration mode");
-      return new DoubleMandIterator(x0,y0,dx,dy,rx,ry,limit);
-    }
-    if (MandIter.useDLL) {
-      System.out.println("long double iteration mode");
-      return new LongDoubleMandIterator(x0,y0,dx,dy,rx,ry,limit);
-    }
-    System.out.println("big decimal iteration mode");
-    return new BigDecimalMandIterator(x0,y0,dx,dy,rx,ry,limit);
+    return createPixelIterator(x0,y0,dx,dy,rx,ry,limit,true);
+  }
+
+  static public PixelIterator createPixelIterator(BigDecimal x0,
+                                                  BigDecimal y0,
+                                                  BigDecimal dx,
+                                                  BigDecimal dy,
+                                                  int rx,
+                                                  int ry,
+                                                  int limit,
+                                                  boolean interiorcheck)
+  {
+    return IterationEngineRegistry.getDefault().createPixelIterator(
+                                   x0,y0,dx,dy,rx,ry,limit,interiorcheck);
   }
 
   /////////////////////////////////////////////////////////////////////////
   // double iterator
   /////////////////////////////////////////////////////////////////////////
-  private static class DoubleMandIterator extends AbstractDoublePixelIterator {
+  static class DoubleMandIterator extends AbstractDoublePixelIterator {
    
     public DoubleMandIterator(BigDecimal x0,
                               BigDecimal y0,
@@ -81,32 +77,14 @@ public class MandelbrotPixelIteratorFactory extends MandArith
     
     public int iter()
     {
-      return iter(0.0, 0.0, cx, cy, bound, limit);
-    }
-
-    private static int iter(double x, double y, double px, double py,
-            double bound, int limit)
-    {
-      double x2=x*x;
-      double y2=y*y;
-      int it=0;
-
-      while (x2+y2<bound&&++it<=limit) {
-        double xn=x2-y2+px;
-        double yn=2*x*y+py;
-        x=xn;
-        x2=x*x;
-        y=yn;
-        y2=y*y;
-      }
-      return it;
+      return iter(cx, cy, bound, limit, interiorcheck);
     }
   }
 
   /////////////////////////////////////////////////////////////////////////
   // long double iterator
   /////////////////////////////////////////////////////////////////////////
-  private static class LongDoubleMandIterator extends AbstractBigDecimalPixelIterator {
+  static class LongDoubleMandIterator extends AbstractBigDecimalPixelIterator {
 
     protected String bound;
     protected String scx;
@@ -149,7 +127,7 @@ public class MandelbrotPixelIteratorFactory extends MandArith
   // big decimal iterator
   /////////////////////////////////////////////////////////////////////////
 
-  private static class BigDecimalMandIterator extends AbstractBigDecimalPixelIterator {
+  static class BigDecimalMandIterator extends AbstractBigDecimalPixelIterator {
     private int cnt;
     private BigDecimal bound;
 
@@ -0,0 +1,321 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.meth;
+
+import com.mandelsoft.mand.tools.Mand;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Pixel iterator for deep zooms based on perturbation theory.
+ *
+ * A single reference orbit Z(n) is calculated with BigDecimal precision
+ * for the center pixel of the image. For all other pixels only the
+ * difference dz(n)=z(n)-Z(n) is iterated in double precision:
+ * <pre>
+ *   dz(n+1) = 2*Z(n)*dz(n) + dz(n)^2 + dc
+ * </pre>
+ * Glitches (the orbit of the pixel gets closer to zero than to the
+ * reference orbit, |Z+dz|&lt;|dz|) and the end of the reference orbit
+ * are handled by rebasing the pixel to the start of the reference orbit
+ * (dz:=Z+dz, n:=0), so no second reference is required.
+ *
+ * Optionally the first iterations are skipped with a cubic series
+ * approximation dz(n)=A(n)*dc+B(n)*dc^2+C(n)*dc^3 that is valid for
+ * all pixels of the image.
+ *
+ * Tolerance: the iteration counts match the {@link BigDecimal} iteration
+ * except for pixels whose orbit finally touches the bail out radius
+ * within double rounding distance. Such pixels may differ by one
+ * iteration. Pixels below a pixel distance of {@link #MIN_PIXEL_SIZE}
+ * cannot be represented by double deltas and must use another iterator.
+ *
+ * @author Uwe Krueger
+ */
+public class PerturbationPixelIterator extends AbstractBigDecimalPixelIterator {
+  static public final double MIN_PIXEL_SIZE=1e-290;
+  static public final double SA_TOLERANCE=1e-12;
+
+  static public boolean debug=false;
+  static public boolean useSeriesApproximation=true;
+
+  private double bound;
+  private int refx;
+  private int refy;
+  private double sdx;
+  private double sdy;
+
+  private int px;
+  private int py;
+  private double dcx;
+  private double dcy;
+
+  private boolean seriesapproximation;
+  private Reference reference;
+
+  public PerturbationPixelIterator(BigDecimal x0,
+                                   BigDecimal y0,
+                                   BigDecimal dx,
+                                   BigDecimal dy,
+                                   int rx,
+                                   int ry,
+                                   int limit)
+  {
+    super(x0, y0, dx, dy, rx, ry, limit);
+    bound=Mand.BOUND;
+    refx=rx/2;
+    refy=ry/2;
+    sdx=div(dx, drx).doubleValue();
+    sdy=div(dy, dry).doubleValue();
+    seriesapproximation=useSeriesApproximation;
+  }
+
+  public boolean isSeriesApproximation()
+  {
+    return seriesapproximation;
+  }
+
+  /**
+   * Enables or disables the series approximation for this iterator.
+   * It must be set before the first iteration.
+   */
+  public void setSeriesApproximation(boolean b)
+  {
+    seriesapproximation=b;
+  }
+
+  @Override
+  public void setX(int x)
+  {
+    px=x;
+    dcx=(x-refx)*sdx;
+  }
+
+  @Override
+  public void setY(int y)
+  {
+    py=y;
+    dcy=(refy-y)*sdy;
+  }
+
+  @Override
+  public BigDecimal getCX()
+  {
+    return add(x0, div(mul(dx, px), drx));
+  }
+
+  @Override
+  public BigDecimal getCY()
+  {
+    return sub(y0, div(mul(dy, py), dry));
+  }
+
+  public int iter()
+  {
+    Reference ref=getReference();
+    double[] zr=ref.zr;
+    double[] zi=ref.zi;
+    int last=ref.length-1;
+    double dzr;
+    double dzi;
+    int n;
+    int m;
+
+    if (ref.skip>0) {
+      // start with series approximation
+      double ur=dcx/ref.scale;
+      double ui=dcy/ref.scale;
+      double u2r=ur*ur-ui*ui;
+      double u2i=2*ur*ui;
+      double u3r=u2r*ur-u2i*ui;
+      double u3i=u2r*ui+u2i*ur;
+      dzr=ref.ar*ur-ref.ai*ui+ref.br*u2r-ref.bi*u2i+ref.cr*u3r-ref.ci*u3i;
+      dzi=ref.ar*ui+ref.ai*ur+ref.br*u2i+ref.bi*u2r+ref.cr*u3i+ref.ci*u3r;
+      n=m=ref.skip;
+    }
+    else {
+      dzr=dzi=0;
+      n=m=0;
+    }
+
+    while (true) {
+      double Zr=zr[m];
+      double Zi=zi[m];
+      double x=Zr+dzr;
+      double y=Zi+dzi;
+      double r=x*x+y*y;
+
+      if (r>=bound) return n;
+      if (++n>limit) return n;
+      if (r<dzr*dzr+dzi*dzi||m==last) {
+        // glitch or end of reference: rebase to start of reference orbit
+        dzr=x;
+        dzi=y;
+        Zr=Zi=0;
+        m=0;
+      }
+      double tr=2*(Zr*dzr-Zi*dzi)+dzr*dzr-dzi*dzi+dcx;
+      dzi=2*(Zr*dzi+Zi*dzr)+2*dzr*dzi+dcy;
+      dzr=tr;
+      m++;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // reference orbit
+  ///////////////////////////////////////////////////////////////////////
+
+  static private Reference cache;
+
+  private Reference getReference()
+  {
+    if (reference==null) {
+      synchronized (PerturbationPixelIterator.class) {
+        if (cache==null||!cache.matches(this)) {
+          cache=new Reference(this);
+        }
+        reference=cache;
+      }
+    }
+    return reference;
+  }
+
+  static private class Reference {
+    // key
+    private BigDecimal x0;
+    private BigDecimal y0;
+    private BigDecimal dx;
+    private BigDecimal dy;
+    private int rx;
+    private int ry;
+    private int limit;
+    private boolean sa;
+
+    // reference orbit
+    private double[] zr;
+    private double[] zi;
+    private int length;
+
+    // series approximation (coefficients scaled by the maximal delta)
+    private int skip;
+    private double scale;
+    private double ar, ai;
+    private double br, bi;
+    private double cr, ci;
+
+    public Reference(PerturbationPixelIterator pi)
+    {
+      x0=pi.x0;
+      y0=pi.y0;
+      dx=pi.dx;
+      dy=pi.dy;
+      rx=pi.rx;
+      ry=pi.ry;
+      limit=pi.limit;
+      sa=pi.seriesapproximation;
+
+      calcOrbit(pi);
+      if (sa) calcSeries(pi);
+    }
+
+    public boolean matches(PerturbationPixelIterator pi)
+    {
+      return x0.equals(pi.x0)&&y0.equals(pi.y0)&&
+             dx.equals(pi.dx)&&dy.equals(pi.dy)&&
+             rx==pi.rx&&ry==pi.ry&&limit==pi.limit&&
+             sa==pi.seriesapproximation;
+    }
+
+    private void calcOrbit(PerturbationPixelIterator pi)
+    {
+      MathContext mc=new MathContext((int)(pi.getPrecision()*Math.log10(2))+10);
+      BigDecimal cx=add(pi.x0, div(mul(pi.dx, pi.refx), pi.drx));
+      BigDecimal cy=sub(pi.y0, div(mul(pi.dy, pi.refy), pi.dry));
+      BigDecimal bound=new BigDecimal(pi.bound);
+      BigDecimal x=BigDecimal.ZERO;
+      BigDecimal y=BigDecimal.ZERO;
+      BigDecimal x2=BigDecimal.ZERO;
+      BigDecimal y2=BigDecimal.ZERO;
+      int n=0;
+
+      zr=new double[Math.min(limit+1, 1024)];
+      zi=new double[zr.length];
+      // Z(0)=0
+      while (n<limit&&x2.add(y2, mc).compareTo(bound)<0) {
+        BigDecimal xn=x2.subtract(y2, mc).add(cx, mc);
+        y=x.multiply(y, mc).multiply(b2, mc).add(cy, mc);
+        x=xn;
+        x2=x.multiply(x, mc);
+        y2=y.multiply(y, mc);
+        if (++n>=zr.length) grow(n+1);
+        zr[n]=x.doubleValue();
+        zi[n]=y.doubleValue();
+      }
+      length=n+1;
+      if (debug) System.out.println("reference orbit: "+length);
+    }
+
+    private void grow(int n)
+    {
+      int l=Math.min(Math.max(n, zr.length*2), limit+1);
+      double[] r=new double[l];
+      double[] i=new double[l];
+      System.arraycopy(zr, 0, r, 0, zr.length);
+      System.arraycopy(zi, 0, i, 0, zi.length);
+      zr=r;
+      zi=i;
+    }
+
+    private void calcSeries(PerturbationPixelIterator pi)
+    {
+      double mx=Math.max(pi.refx, pi.rx-pi.refx)*pi.sdx;
+      double my=Math.max(pi.refy, pi.ry-pi.refy)*pi.sdy;
+      double escape=Math.sqrt(pi.bound);
+      double tar=0, tai=0, tbr=0, tbi=0, tcr=0, tci=0;
+
+      scale=Math.sqrt(mx*mx+my*my);
+      skip=0;
+      for (int n=0; n<length-1; n++) {
+        double Zr=zr[n];
+        double Zi=zi[n];
+        // A'=2ZA+1, B'=2ZB+A^2, C'=2ZC+2AB (scaled)
+        double nar=2*(Zr*tar-Zi*tai)+scale;
+        double nai=2*(Zr*tai+Zi*tar);
+        double nbr=2*(Zr*tbr-Zi*tbi)+tar*tar-tai*tai;
+        double nbi=2*(Zr*tbi+Zi*tbr)+2*tar*tai;
+        double ncr=2*(Zr*tcr-Zi*tci)+2*(tar*tbr-tai*tbi);
+        double nci=2*(Zr*tci+Zi*tcr)+2*(tar*tbi+tai*tbr);
+        tar=nar; tai=nai;
+        tbr=nbr; tbi=nbi;
+        tcr=ncr; tci=nci;
+
+        double a=Math.hypot(tar, tai);
+        double d=a+Math.hypot(tbr, tbi)+Math.hypot(tcr, tci);
+        double z=Math.hypot(zr[n+1], zi[n+1]);
+        if (Double.isInfinite(d)||Double.isNaN(d)) break;
+        if (Math.hypot(tcr, tci)>SA_TOLERANCE*a) break;
+        if (z<2*d||z+d>=escape) break;
+        skip=n+1;
+        ar=tar; ai=tai;
+        br=tbr; bi=tbi;
+        cr=tcr; ci=tci;
+      }
+      if (debug) System.out.println("series approximation: skipping "+skip+
+                                    " iterations");
+    }
+  }
+}
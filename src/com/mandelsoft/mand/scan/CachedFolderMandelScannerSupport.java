@@ -18,7 +18,8 @@ package com.mandelsoft.mand.scan;
 
 import com.mandelsoft.mand.QualifiedMandelName;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import com.mandelsoft.mand.MandelData;
 import com.mandelsoft.io.AbstractFile;
 import com.mandelsoft.mand.ColormapName;
@@ -35,10 +36,10 @@ import com.mandelsoft.mand.scan.MandelScanner.Filter;
 public abstract class CachedFolderMandelScannerSupport extends FolderMandelScannerSupport {
   static public boolean debug=false;
   
-  protected HashMap<AbstractFile,MandelInfo> infos=
-          new HashMap<AbstractFile,MandelInfo>();
-  protected HashMap<AbstractFile,MandelData> colormaps=
-          new HashMap<AbstractFile,MandelData>();
+  protected Map<AbstractFile,MandelInfo> infos=
+          new ConcurrentHashMap<AbstractFile,MandelInfo>();
+  protected Map<AbstractFile,MandelData> colormaps=
+          new ConcurrentHashMap<AbstractFile,MandelData>();
   protected boolean initial=true;
 
   public CachedFolderMandelScannerSupport(Filter filter, boolean setup)
@@ -74,7 +75,7 @@ public abstract class CachedFolderMandelScannerSupport extends FolderMandelScann
 
         try {
           MandelData md=super.getInfo();
-          if (md!=null) infos.put(getFile(), info);
+          if (md!=null && md.getInfo()!=null) infos.put(getFile(), md.getInfo());
           return md;
         }
         catch (IOException io) {
@@ -200,7 +201,7 @@ public abstract class CachedFolderMandelScannerSupport extends FolderMandelScann
             n=MandelFileName.create(e.getFilename());
             if (n==null) return;
             add(create(af=createAbstractFile(e),n.getQualifiedName(), h));
-            if (h.hasInfo()) infos.put(af,e.getInfo());
+            if (h.hasInfo() && e.getInfo()!=null) infos.put(af,e.getInfo());
           }
           //System.out.println("      used");
         }
@@ -244,25 +245,39 @@ public abstract class CachedFolderMandelScannerSupport extends FolderMandelScann
     return updated;
   }
 
+  /*
+   * The folder is locked before the update lock is taken, because
+   * changes of the folder are propagated holding the folder and
+   * requiring the update lock.
+   * Lookups continue to use the old content until the rescan is finished.
+   */
   protected void rescan(boolean verbose, boolean read)
   { boolean updated=true;
 
+    MandelFolderCache mcache=getCache();
     lock();
-    startUpdate();
     try {
-      MandelFolderCache mcache=getCache();
-      if (mcache!=null) {
-        updated=rescanCached(mcache,verbose,read);
-      }
-      else {
-        updated=rescanNonCached(verbose, read);
+      synchronized (updateLock) {
+        startUpdate();
+        startRescan();
+        try {
+          if (mcache!=null) {
+            updated=rescanCached(mcache,verbose,read);
+          }
+          else {
+            updated=rescanNonCached(verbose, read);
+          }
+        }
+        finally {
+          finishRescan();
+          initial=false;
+          finishUpdate();
+          //if (debug) dump();
+        }
       }
     }
     finally {
       releaseLock();
-      initial=false;
-      finishUpdate();
-      //if (debug) dump();
     }
   }
 
@@ -17,7 +17,6 @@
 package com.mandelsoft.mand.scan;
 
 import com.mandelsoft.mand.ColormapName;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -25,13 +24,14 @@ import com.mandelsoft.mand.MandelName;
 import com.mandelsoft.mand.QualifiedMandelName;
 import com.mandelsoft.mand.util.MandUtils;
 import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  *
  * @author Uwe Krueger
  */
 public abstract class CompoundMandelScannerSupport extends MandelScannerSupport {
-  protected List<MandelScanner> list=new ArrayList<MandelScanner>();
+  protected List<MandelScanner> list=new CopyOnWriteArrayList<MandelScanner>();
   private Listener              listener=new Listener();
 
   public CompoundMandelScannerSupport()
@@ -79,20 +79,42 @@ public abstract class CompoundMandelScannerSupport extends MandelScannerSupport
     else {
       //System.out.println("filtered mandel names");
       for (MandelScanner s:scanners) {
-        for (MandelName n:s.getMandelNames()) {
-          if (!set.contains(n)) {
-            Set<MandelHandle> hs=s.getMandelHandles(n);
-            if (hs!=null) for (MandelHandle h:hs) {
-              if (filter(h.getHeader())) {
-                set.add(n);
-                break;
-              }
-            }
+        addFiltered(set,s,s.getMandelNames());
+      }
+    }
+    return set;
+  }
+
+  protected Set<MandelName> _getSiblingNames(Collection<MandelScanner> scanners,
+                                             MandelName name)
+  {
+    Set<MandelName> set=new HashSet<MandelName>();
+    if (scanners==null) return set;
+    for (MandelScanner s:scanners) {
+      if (!isFiltered()) {
+        set.addAll(s.getSiblingNames(name));
+      }
+      else {
+        addFiltered(set,s,s.getSiblingNames(name));
+      }
+    }
+    return set;
+  }
+
+  private void addFiltered(Set<MandelName> set, MandelScanner s,
+                           Set<MandelName> names)
+  {
+    for (MandelName n:names) {
+      if (!set.contains(n)) {
+        Set<MandelHandle> hs=s.getMandelHandles(n);
+        if (hs!=null) for (MandelHandle h:hs) {
+          if (filter(h.getHeader())) {
+            set.add(n);
+            break;
           }
         }
       }
     }
-    return set;
   }
 
   protected Set<MandelHandle> _getMandelHandles(Collection<MandelScanner> scanners,
@@ -213,6 +235,11 @@ public abstract class CompoundMandelScannerSupport extends MandelScannerSupport
     return _getMandelNames(list);
   }
 
+  protected Set<MandelName> _getSiblingNames(MandelName name)
+  {
+    return _getSiblingNames(list,name);
+  }
+
   protected Set<MandelHandle> _getMandelHandles(MandelName name)
   {
     return _getMandelHandles(list,name);
@@ -244,6 +271,13 @@ public abstract class CompoundMandelScannerSupport extends MandelScannerSupport
     return _getMandelNames();
   }
 
+  @Override
+  synchronized
+  public Set<MandelName> getSiblingNames(MandelName name)
+  {
+    return _getSiblingNames(name);
+  }
+
   @Override
   synchronized
   public Set<MandelHandle> getMandelHandles(MandelName name)
@@ -318,17 +352,22 @@ public abstract class CompoundMandelScannerSupport extends MandelScannerSupport
   // general
   /////////////////////////////////////////////////////////////////////////
 
-  synchronized
+  // the nested scanners are rescanned without holding this scanner,
+  // because they propagate their changes to it
   public void rescan(boolean verbose)
   {
 
     if (debug) System.out.println("*** rescan compound scanner");
     //new Throwable().printStackTrace();
-    startUpdate();
+    synchronized (this) {
+      startUpdate();
+    }
     for (MandelScanner s:list) {
       s.rescan(verbose);
     }
-    finishUpdate();
+    synchronized (this) {
+      finishUpdate();
+    }
   }
 
   /////////////////////////////////////////////////////////////////////////
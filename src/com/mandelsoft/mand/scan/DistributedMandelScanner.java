@@ -88,6 +88,14 @@ public class DistributedMandelScanner extends CompoundMandelScannerSupport
   //////////////////////////////////////////////////////////////////////////
   // basic methods to be implemented for support class
 
+  @Override
+  protected Set<MandelName> _getSiblingNames(MandelName name)
+  {
+    String label=name.getLabel();
+    if (label==null) return scanner.getSiblingNames(name);
+    return _getSiblingNames(scanners.get(label),name);
+  }
+
   @Override
   protected Set<MandelHandle> _getMandelHandles(MandelName name)
   {
@@ -136,6 +144,12 @@ public class DistributedMandelScanner extends CompoundMandelScannerSupport
     return _getMandelHandle(scanners.get(label),name);
   }
 
+  @Override
+  public synchronized Set<MandelName> getSiblingNames(MandelName name)
+  {
+    return _getSiblingNames(name);
+  }
+
   @Override
   public synchronized Set<MandelHandle> getMandelHandles(MandelName name)
   {
@@ -56,6 +56,22 @@ public class FilteredMandelScanner extends MandelScannerSupport {
     return set;
   }
 
+  @Override
+  protected Set<MandelName> _getSiblingNames(MandelName name)
+  {
+    Set<MandelName> set=new HashSet<MandelName>();
+
+    for (MandelName n:scanner.getSiblingNames(name)) {
+      for (MandelHandle h:scanner.getMandelHandles(n)) {
+        if (filter(h.getHeader())) {
+          set.add(n);
+          break;
+        }
+      }
+    }
+    return set;
+  }
+
   protected Set<MandelHandle> _getMandelHandles(MandelName name)
   { Set<MandelHandle> set=new HashSet<MandelHandle>();
 
@@ -92,6 +108,13 @@ public class FilteredMandelScanner extends MandelScannerSupport {
     return _getMandelNames();
   }
 
+  @Override
+  synchronized
+  public Set<MandelName> getSiblingNames(MandelName name)
+  {
+    return _getSiblingNames(name);
+  }
+
   @Override
   synchronized
   public Set<MandelHandle> getMandelHandles(MandelName name)
@@ -117,12 +140,15 @@ public class FilteredMandelScanner extends MandelScannerSupport {
   // general
   ////////////////////////////////////////////////////////////////////////
 
-  synchronized
   public void rescan(boolean verbose)
   {
-    startUpdate();
+    synchronized (this) {
+      startUpdate();
+    }
     scanner.rescan(verbose);
-    finishUpdate();
+    synchronized (this) {
+      finishUpdate();
+    }
   }
 
   ////////////////////////////////////////////////////////////////////////
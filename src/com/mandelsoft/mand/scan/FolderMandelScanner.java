@@ -85,10 +85,28 @@ public class FolderMandelScanner extends CachedFolderMandelScannerSupport {
     folder.releaseLock();
   }
 
+  @Override
+  protected void rescan(boolean verbose, boolean read)
+  {
+    if (folder.hasCache()) {
+      // the cache is updated holding the folder
+      synchronized (folder) {
+        super.rescan(verbose, read);
+      }
+    }
+    else {
+      super.rescan(verbose, read);
+    }
+  }
+
   @Override
   protected boolean rescanNonCached(boolean verbose, boolean read)
   {
     int cnt=0;
+    if (read && !initial && folder.isWatched()) {
+      // changes are already propagated by the folder watcher
+      return false;
+    }
     clear();
     System.out.println("scanning folder "+folder.getFolder());
     if (debug) System.out.println("  reading directory....");
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import com.mandelsoft.io.AbstractFile;
 import com.mandelsoft.io.FileAbstractFile;
 import com.mandelsoft.mand.ColormapName;
@@ -39,15 +40,36 @@ import com.mandelsoft.mand.util.MandUtils;
 
 /*
  * generally caching the relevant folder contents in memory
+ *
+ * Lookups use the current content without locking. Modifications are
+ * serialized by the update lock. The nested maps are never modified,
+ * but replaced, and a rescan builds a new content replacing the current
+ * one when finished, so lookups never wait for modifications.
  */
 public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
   public static boolean debug=false;
 
-  private Map<MandelName, Map<AbstractFile,MandelHandle>>    mandels;
-  private Map<ColormapName,Map<AbstractFile,ColormapHandle>> colmaps;
+  private static class Content {
+    private Map<MandelName, Map<AbstractFile,MandelHandle>>    mandels;
+    private Map<ColormapName,Map<AbstractFile,ColormapHandle>> colmaps;
 
-  private Map<AbstractFile,ElementHandle<?>> files;
-  
+    private Map<AbstractFile,ElementHandle<?>> files;
+    private MandelNameIndex index;
+
+    public Content()
+    {
+      mandels=new ConcurrentHashMap<MandelName,Map<AbstractFile,MandelHandle>>();
+      colmaps=new ConcurrentHashMap<ColormapName,Map<AbstractFile,ColormapHandle>>();
+      files=new ConcurrentHashMap<AbstractFile,ElementHandle<?>>();
+      index=new MandelNameIndex();
+    }
+  }
+
+  private volatile Content content;
+  private Content          building; // content of a running rescan
+  private boolean          rescan;
+
+  protected final Object updateLock=new Object();
 
   protected FolderMandelScannerSupport()
   {
@@ -60,9 +82,7 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
 
   protected FolderMandelScannerSupport(Filter filter, boolean setup)
   { super(filter);
-    mandels=new HashMap<MandelName,Map<AbstractFile,MandelHandle>>();
-    colmaps=new HashMap<ColormapName,Map<AbstractFile,ColormapHandle>>();
-    files=new HashMap<AbstractFile,ElementHandle<?>>();
+    content=new Content();
   }
 
   //////////////////////////////////////////////////////////////////////////
@@ -72,25 +92,31 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
   protected Set<MandelName> _getMandelNames()
   {
     if (debug) System.out.println(this+" lookup mandel names ");
-    return (mandels.keySet());
+    return (content.mandels.keySet());
+  }
+
+  protected Set<MandelName> _getSiblingNames(MandelName name)
+  {
+    if (debug) System.out.println(this+" lookup siblings "+name);
+    return content.index.getSiblingNames(name);
   }
 
   protected Set<MandelHandle> _getMandelHandles(MandelName name)
   {
     if (debug) System.out.println(this+" lookup headers "+name);
-    return valueSet(mandels, name);
+    return valueSet(content.mandels, name);
   }
 
   protected Set<ColormapName> _getColormapNames()
   {
     if (debug) System.out.println(this+" lookup colmaps");
-    return (colmaps.keySet());
+    return (content.colmaps.keySet());
   }
 
   protected Set<ColormapHandle> _getColormapHandles(ColormapName name)
   {
     if (debug) System.out.println(this+" lookup "+name);
-    return valueSet(colmaps, name);
+    return valueSet(content.colmaps, name);
   }
 
   ////////////////////////////////////////////////////////////////////////
@@ -99,33 +125,62 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
 
   ////////////////////////////////////////////////////////////////////////
   // avoid unneccessary copy of set, beacuse it is already copied
+  // or unmodifiable
   //
   @Override
-  synchronized
   public Set<MandelHandle> getMandelHandles(MandelName name)
   {
     return _getMandelHandles(name);
   }
 
   @Override
-  synchronized
+  public Set<MandelName> getSiblingNames(MandelName name)
+  {
+    return _getSiblingNames(name);
+  }
+
+  @Override
   public Set<ColormapHandle> getColormapHandles(ColormapName name)
   {
     return _getColormapHandles(name);
   }
 
   //////////////////////////////////////////////////////////////////////////
+  // use a single content for composed results
 
+  @Override
+  public Set<MandelHandle> getMandelHandles()
+  { Set<MandelHandle> set=new HashSet<MandelHandle>();
+    Content c=content;
+
+    for (Map<AbstractFile,MandelHandle> sub:c.mandels.values()) {
+      set.addAll(sub.values());
+    }
+    return set;
+  }
+
+  @Override
+  public Set<ElementHandle<?>> getAllHandles()
+  { Set<ElementHandle<?>> set=new HashSet<ElementHandle<?>>();
+    Content c=content;
+
+    for (Map<AbstractFile,MandelHandle> sub:c.mandels.values()) {
+      set.addAll(sub.values());
+    }
+    for (Map<AbstractFile,ColormapHandle> sub:c.colmaps.values()) {
+      set.addAll(sub.values());
+    }
+    return set;
+  }
 
   ////////////////////////////////////////////////////////////////////////
   // optimized implementation for support class
 
   @Override
-  synchronized
   public MandelHandle getMandelInfo(MandelName name)
   {
     if (debug) System.out.println(this+" lookup info "+name);
-    Map<AbstractFile, MandelHandle> sub=mandels.get(name);
+    Map<AbstractFile, MandelHandle> sub=content.mandels.get(name);
     if (sub==null) return null;
     Set<AbstractFile> set=new HashSet<AbstractFile>(sub.keySet());
     while (!set.isEmpty()) {
@@ -150,11 +205,10 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
   }
 
   @Override
-  synchronized
   public MandelHandle getMandelData(MandelName name)
   {
     if (debug) System.out.println(this+" lookup data "+name);
-    Map<AbstractFile, MandelHandle> sub=mandels.get(name);
+    Map<AbstractFile, MandelHandle> sub=content.mandels.get(name);
     if (sub==null) return null;
     Set<AbstractFile> set=new HashSet<AbstractFile>(sub.keySet());
     while (!set.isEmpty()) {
@@ -185,11 +239,37 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
   protected void clear()
   {
     if (debug) System.out.println("clearing "+this);
-    startUpdate(true);
-    mandels.clear();
-    files.clear();
-    colmaps.clear();
-    finishUpdate();
+    synchronized (updateLock) {
+      startUpdate(true);
+      if (rescan) building=new Content();
+      else content=new Content();
+      finishUpdate();
+    }
+  }
+
+  /*
+   * Modifications done between startRescan and finishRescan become
+   * visible at once, if the content has been cleared in between.
+   * Both must be called holding the update lock.
+   */
+  protected void startRescan()
+  {
+    rescan=true;
+  }
+
+  protected void finishRescan()
+  {
+    if (building!=null) {
+      content=building;
+      building=null;
+    }
+    rescan=false;
+  }
+
+  // content to be modified
+  private Content target()
+  {
+    return building!=null?building:content;
   }
   
   protected <K,H> Set<H> valueSet(Map<K, Map<AbstractFile,H>> map, K name)
@@ -203,7 +283,6 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
   }
 
   @Override
-  synchronized
   public String toString()
   {
     String id=super.toString();
@@ -211,17 +290,19 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
     if (ix>=0) id=id.substring(ix);
     else id="";
 
-    return files.size()+"/"+mandels.size()+"/"+colmaps.size()+id;
+    Content c=content;
+    return c.files.size()+"/"+c.mandels.size()+"/"+c.colmaps.size()+id;
   }
 
   protected void dump()
   {
     System.out.println(toString()+":");
-    dump(mandels);
+    dump(content.mandels);
   }
 
   ////////////////////////////////////////////////////////////////////////////
   // generic map util
+  // nested maps are replaced to keep them unmodified for lookups
 
   protected <K,H> void dump(Map<K,Map<AbstractFile,H>> map)
   {
@@ -236,9 +317,12 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
     Map<AbstractFile,H> sub=map.get(name);
     if (sub==null) {
       sub=new HashMap<AbstractFile,H>();
-      map.put(name, sub);
+    }
+    else {
+      sub=new HashMap<AbstractFile,H>(sub);
     }
     sub.put(h.getFile(), h);
+    map.put(name, sub);
   }
 
   protected <K,H> H remove(Map<K,Map<AbstractFile,H>> map,
@@ -247,10 +331,14 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
     H h=null;
     Map<AbstractFile,H> sub=map.get(name);
     if (sub!=null) {
+      sub=new HashMap<AbstractFile,H>(sub);
       h=sub.remove(f);
       if (sub.isEmpty()) {
         map.remove(name);
       }
+      else if (h!=null) {
+        map.put(name, sub);
+      }
       if (debug) {
         if (h==null) {
           if (debug) {
@@ -278,16 +366,22 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
   protected void add(MandelHandle h)
   {
     //System.out.println("  adding mandel "+h.getFile());
-    add(mandels,h.getName().getMandelName(),h);
-    files.put(h.getFile(), h);
-    notifyAddMandelFile(h);
+    synchronized (updateLock) {
+      Content c=target();
+      add(c.mandels,h.getName().getMandelName(),h);
+      c.index.add(h.getName().getMandelName());
+      c.files.put(h.getFile(), h);
+      notifyAddMandelFile(h);
+    }
   }
 
   protected void add(ColormapHandle h)
   {
     //System.out.println("  adding colormap "+h.getFile());
-    add(colmaps,h.getName(),h);
-    notifyAddColormap(h);
+    synchronized (updateLock) {
+      add(target().colmaps,h.getName(),h);
+      notifyAddColormap(h);
+    }
   }
 
   protected MandelHandle create(AbstractFile f, QualifiedMandelName n,
@@ -351,35 +445,40 @@ public abstract class FolderMandelScannerSupport extends MandelScannerSupport {
     MandelHandle mh;
     ColormapHandle ch;
     
-    try {
-      String base=f.getName();
-      int ix=base.lastIndexOf('.');
-      if (ix>0) base=base.substring(0,ix);
-      MandelFileName n=MandelFileName.create(f);
-      if (debug) System.out.println(toString()+": remove mandel file "+f+": "+n);
-      if (files.remove(f)==null) {
-        if (debug) System.out.println("  file not registered");
-      }
-      if (n!=null) {
-        mh=remove(mandels,n.getQualifiedName().getMandelName(),f);
-        if (mh!=null) {
-          notifyRemoveMandelFile(mh);
+    synchronized (updateLock) {
+      Content c=target();
+      try {
+        String base=f.getName();
+        int ix=base.lastIndexOf('.');
+        if (ix>0) base=base.substring(0,ix);
+        MandelFileName n=MandelFileName.create(f);
+        if (debug) System.out.println(toString()+": remove mandel file "+f+": "+n);
+        if (c.files.remove(f)==null) {
+          if (debug) System.out.println("  file not registered");
+        }
+        if (n!=null) {
+          MandelName mn=n.getQualifiedName().getMandelName();
+          mh=remove(c.mandels,mn,f);
+          if (!c.mandels.containsKey(mn)) c.index.remove(mn);
+          if (mh!=null) {
+            notifyRemoveMandelFile(mh);
+          }
+          else {
+            if (debug) System.out.println("  header not registered");
+          }
+        }
+        ColormapName cn=new ColormapName(base);
+        ch=remove(c.colmaps, cn, f);
+        if (ch!=null) {
+          notifyRemoveColormap(ch);
         }
         else {
-          if (debug) System.out.println("  header not registered");
+          if (debug) System.out.println("  colormap not registerd");
         }
       }
-      ColormapName cn=new ColormapName(base);
-      ch=remove(colmaps, cn, f);
-      if (ch!=null) {
-        notifyRemoveColormap(ch);
-      }
-      else {
-        if (debug) System.out.println("  colormap not registerd");
+      catch (IllegalArgumentException ex) {
+        //ignore
       }
     }
-    catch (IllegalArgumentException ex) {
-      //ignore
-    }
   }
 }
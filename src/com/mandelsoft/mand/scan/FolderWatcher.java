@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches mandel folders for changes using the change notification
+ * of the file system.
+ * Changes are collected per folder until the folder settles and are then
+ * passed to the folder, which propagates them to its listeners like
+ * changes done by itself. If the notification is not available for a
+ * folder, it has to be rescanned as before.
+ *
+ * @author Uwe Krueger
+ */
+public class FolderWatcher implements Runnable {
+  static public boolean debug=false;
+  static public boolean enabled=true;
+
+  static public long SETTLE=1000;     // quiet time before changes are passed
+  static public long MAX_DELAY=5000;  // maximal delay of changes
+
+  static private FolderWatcher watcher;
+  static private boolean failed;
+
+  synchronized
+  static public FolderWatcher getWatcher()
+  {
+    if (watcher==null && !failed && enabled) {
+      try {
+        watcher=new FolderWatcher();
+      }
+      catch (IOException ex) {
+        System.err.println("folder watching not possible: "+ex);
+        failed=true;
+      }
+      catch (UnsupportedOperationException ex) {
+        System.err.println("folder watching not possible: "+ex);
+        failed=true;
+      }
+    }
+    return watcher;
+  }
+
+  /**
+   * Watch a folder.
+   * @return false if the folder cannot be watched
+   */
+  static public boolean watch(MandelFolder f)
+  {
+    FolderWatcher w=getWatcher();
+    return w!=null && w.register(f);
+  }
+
+  /**
+   * Returns whether all folders requested so far are watched.
+   * Otherwise folders have to be rescanned regularly to notice
+   * changes.
+   */
+  synchronized
+  static public boolean isActive()
+  {
+    return watcher!=null && !watcher.incomplete;
+  }
+
+  ////////////////////////////////////////////////////////////////////
+
+  private static class Changes {
+    private Set<File> files=new LinkedHashSet<File>();
+    private boolean   overflow;
+  }
+
+  private WatchService service;
+  private Map<WatchKey,MandelFolder> keys; // guarded by the watcher
+  private volatile boolean incomplete;
+
+  private Map<MandelFolder,Changes> pending;
+  private long since;
+  private long last;
+
+  private FolderWatcher() throws IOException
+  {
+    service=FileSystems.getDefault().newWatchService();
+    keys=new HashMap<WatchKey,MandelFolder>();
+    pending=new LinkedHashMap<MandelFolder,Changes>();
+
+    Thread t=new Thread(this,"folder watcher");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /*
+   * The key is registered and published under the lock used by the
+   * watcher thread for its lookups. Otherwise events arriving before
+   * the key is published would not find their folder and get lost.
+   */
+  synchronized
+  private boolean register(MandelFolder f)
+  {
+    try {
+      Path p=f.getFolder().toPath();
+      keys.put(p.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_DELETE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY), f);
+      if (debug) System.out.println("watching "+f);
+      return true;
+    }
+    catch (IOException ex) {
+      System.err.println("cannot watch "+f+": "+ex);
+    }
+    catch (UnsupportedOperationException ex) {
+      System.err.println("cannot watch "+f+": "+ex);
+    }
+    incomplete=true;
+    return false;
+  }
+
+  public void run()
+  {
+    while (true) {
+      try {
+        WatchKey key;
+        if (pending.isEmpty()) {
+          key=service.take();
+        }
+        else {
+          long cur=System.currentTimeMillis();
+          long d=Math.min(last+SETTLE, since+MAX_DELAY)-cur;
+          key=d>0?service.poll(d, TimeUnit.MILLISECONDS):null;
+        }
+        if (key!=null) {
+          collect(key);
+        }
+        else {
+          dispatch();
+        }
+      }
+      catch (InterruptedException ex) {
+        return;
+      }
+      catch (ClosedWatchServiceException ex) {
+        return;
+      }
+    }
+  }
+
+  private Changes getChanges(MandelFolder f)
+  {
+    Changes c=pending.get(f);
+    if (c==null) {
+      if (pending.isEmpty()) since=System.currentTimeMillis();
+      c=new Changes();
+      pending.put(f, c);
+    }
+    return c;
+  }
+
+  synchronized
+  private MandelFolder getFolder(WatchKey key)
+  {
+    return keys.get(key);
+  }
+
+  synchronized
+  private void unregister(WatchKey key)
+  {
+    keys.remove(key);
+  }
+
+  private void collect(WatchKey key)
+  {
+    MandelFolder f=getFolder(key);
+    last=System.currentTimeMillis();
+    for (WatchEvent<?> e:key.pollEvents()) {
+      if (f==null) continue;
+      if (e.kind()==StandardWatchEventKinds.OVERFLOW) {
+        if (debug) System.out.println("overflow for "+f);
+        getChanges(f).overflow=true;
+      }
+      else {
+        File file=new File(f.getFolder(),e.context().toString());
+        if (debug) System.out.println(e.kind()+" "+file);
+        getChanges(f).files.add(file);
+      }
+    }
+    if (!key.reset()) {
+      // folder not accessible anymore, fall back to rescan
+      unregister(key);
+      if (f!=null) {
+        System.err.println("stop watching "+f);
+        incomplete=true;
+        f.setWatched(false);
+        getChanges(f).overflow=true;
+      }
+    }
+  }
+
+  private void dispatch()
+  {
+    for (Map.Entry<MandelFolder,Changes> e:pending.entrySet()) {
+      Changes c=e.getValue();
+      try {
+        e.getKey().handleChanges(c.files, c.overflow);
+      }
+      catch (Exception ex) {
+        System.err.println("cannot handle changes for "+e.getKey()+": "+ex);
+      }
+    }
+    pending.clear();
+  }
+}
@@ -18,9 +18,13 @@ package com.mandelsoft.mand.scan;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import com.mandelsoft.io.FolderLock;
+import com.mandelsoft.mand.ColormapName;
+import com.mandelsoft.mand.MandelConstants;
+import com.mandelsoft.mand.MandelFileName;
 import java.util.HashMap;
 
 /**
@@ -41,12 +45,16 @@ public class MandelFolder extends FolderLock  {
     if (m==null) {
       if (debug) System.out.println("      create new mandel folder");
       m=new MandelFolder(f);
+      m.setWatched(FolderWatcher.watch(m));
       map.put(f,m);
     }
     return m;
   }
 
   private MandelFolderCache cache;
+  private volatile boolean watched;
+  // last modification of files handled, whose change events are pending
+  private Map<File,Long> handled=new HashMap<File,Long>();
 
   public MandelFolder(File f) throws IOException
   {
@@ -75,6 +83,20 @@ public class MandelFolder extends FolderLock  {
     return cache!=null;
   }
 
+  /**
+   * Returns whether changes of the folder are reported by the
+   * {@link FolderWatcher}, so that a rescan is not required to notice them.
+   */
+  public boolean isWatched()
+  {
+    return watched;
+  }
+
+  void setWatched(boolean b)
+  {
+    watched=b;
+  }
+
   synchronized void createCache() throws IOException
   {
     if (cache==null) {
@@ -137,6 +159,7 @@ public class MandelFolder extends FolderLock  {
   protected void _handleRemoved(File f) throws IOException
   {
     boolean full=false;
+    if (watched) handled.put(f,0L);
     if (cache!=null) {
       full=cache.update();
       if (cache.removeFile(f))
@@ -206,6 +229,7 @@ public class MandelFolder extends FolderLock  {
     boolean full=false;
     MandelFolderCache.Entry e=null;
 
+    if (watched) handled.put(f,f.lastModified());
     if (cache!=null) {
       full=cache.update();
       e=cache.addFile(f);
@@ -238,6 +262,69 @@ public class MandelFolder extends FolderLock  {
     }
   }
 
+  /*
+   * Handle changes reported by the folder watcher. Changes already handled
+   * by this object are skipped, all others are propagated like changes
+   * done by this object.
+   */
+  synchronized
+  void handleChanges(Collection<File> files, boolean overflow)
+                     throws IOException
+  {
+    boolean full=overflow;
+
+    lock();
+    try {
+      if (cache!=null) {
+        full|=cache.update();
+      }
+      if (overflow) {
+        handled.clear();
+      }
+      if (full) {
+        folderUpdated(getFolder());
+      }
+      for (File f:files) {
+        if (!isMandelFile(f)) continue;
+        long lm=f.lastModified();
+        Long h=handled.remove(f);
+        if (h!=null && h==lm) continue;
+        if (cache!=null) {
+          MandelFolderCache.Entry e=cache.get(f.getName());
+          if (e==null ? lm==0 : e.getLastModified()==lm) continue;
+        }
+        if (lm==0) {
+          if (debug) System.out.println("%%% detected removal of "+f);
+          _handleRemoved(f);
+        }
+        else if (f.isFile()) {
+          if (debug) System.out.println("%%% detected change of "+f);
+          _handleAdded(f);
+        }
+        handled.remove(f);
+      }
+    }
+    finally {
+      releaseLock();
+    }
+  }
+
+  /*
+   * Check for a file name accepted by the scanners. Iteration states and
+   * journals use mandel names, too, but are no mandel files.
+   */
+  static private boolean isMandelFile(File f)
+  {
+    String n=f.getName();
+    if (n.startsWith(".")) return false;
+    if (n.endsWith(MandelConstants.COLORMAP_SUFFIX)) {
+      return ColormapName.create(f)!=null;
+    }
+    if (n.endsWith(MandelConstants.ITERSTATE_SUFFIX)||
+        n.endsWith(MandelConstants.JOURNAL_SUFFIX)) return false;
+    return MandelFileName.create(f)!=null;
+  }
+
   @Override
   public String toString()
   {
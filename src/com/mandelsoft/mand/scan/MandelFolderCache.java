@@ -17,20 +17,58 @@
 package com.mandelsoft.mand.scan;
 
 import com.mandelsoft.io.FileAbstractFile;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import com.mandelsoft.mand.MandelData;
 import com.mandelsoft.io.AbstractFile;
-import com.mandelsoft.mand.ColormapName;
-import com.mandelsoft.mand.MandelName;
+import com.mandelsoft.mand.MandelFileName;
+import com.mandelsoft.mand.MandelHeader;
+import com.mandelsoft.mand.MandelInfo;
 
 /**
+ * The cache of a folder consists of the cache file written by a complete
+ * write and a change log. Added and removed entries are appended to the
+ * log, so that a single change does not rewrite the complete cache.
+ * The log is compacted into the cache file if it gets too long compared
+ * to the number of entries.
+ *
+ * Log records are framed by their length and a CRC, reading stops at the
+ * first incomplete or corrupted record left by an interrupted append. The
+ * cache file is replaced by renaming a temporary file and the log is
+ * removed afterwards. Pending changes are appended to the log before the
+ * cache file is replaced, or the log is discarded if it is incomplete.
+ * Because replaying a change is idempotent, a log left over by an
+ * interrupted compaction then still yields the correct view.
  *
  * @author Uwe Krüger
  */
 public class MandelFolderCache extends MandelInventory {
   static public final String cachefile=".mcache";
+  static public final String logfile=".mcache.log";
+
+  static private final int LOG_MAGIC=0x763199;
+  static private final int LOG_ADD=1;
+  static private final int LOG_REMOVE=2;
+  static private final int COMPACT_MIN=256;        // minimal log records
+  static private final int MAX_RECORD=1024*1024;
 
   static public boolean isCached(File f)
   {
@@ -40,8 +78,15 @@ public class MandelFolderCache extends MandelInventory {
 
   //////////////////////////////////////////////////////////////////////////
   private AbstractFile file;
+  private AbstractFile log;
   private boolean valid;
   private long timestamp;
+  private long logstate;  // log size or timestamp when read
+  private long logpos;    // end of the last valid log record
+  private int  logcnt;    // records in the log
+  private ByteArrayOutputStream changes=new ByteArrayOutputStream();
+  private int  changecnt; // records not yet written
+  private boolean full;   // complete write required
 
   public MandelFolderCache(File f) throws IOException
   {
@@ -50,12 +95,14 @@ public class MandelFolderCache extends MandelInventory {
     }
 
     file=new FileAbstractFile(f);
+    log=file.getParent().getSub(logfile);
     read();
   }
 
   public MandelFolderCache(AbstractFile f) throws IOException
   {
     this.file=f;
+    this.log=f.getParent().getSub(logfile);
     read();
   }
 
@@ -78,20 +125,29 @@ public class MandelFolderCache extends MandelInventory {
 
   private void read(AbstractFile f) throws IOException
   {
+    changes.reset();
+    changecnt=0;
+    full=false;
+    cache.clear();
     read(f.getInputStream(), f.toString());
     timestamp=f.getLastModified();
+    readLog(0);
   }
 
+  /**
+   * Writes the changes since the last read or write. The changes are
+   * appended to the log, the complete cache is written if required or
+   * if the log gets too long.
+   */
   public void write() throws IOException
   {
     if (file.isFile()) {
-      File cachefile=new File(file.getFile().getPath());
-      try {
-        write(new FileOutputStream(cachefile),cachefile.toString());
-        valid=true;
+      if (full||!valid||
+          logcnt+changecnt>Math.max(COMPACT_MIN, cache.size()/4)) {
+        compact();
       }
-      finally {
-        timestamp=cachefile.lastModified();
+      else if (changecnt>0) {
+        append();
       }
     }
     else {
@@ -99,6 +155,241 @@ public class MandelFolderCache extends MandelInventory {
     }
   }
 
+  /*
+   * Before the cache file is replaced the log must describe the new
+   * cache state, so that it can be replayed on top of both cache files.
+   * Therefore the pending changes are appended first. If the changes are
+   * not completely recorded the log is discarded before.
+   */
+  private void compact() throws IOException
+  {
+    File cachefile=new File(file.getFile().getPath());
+    File tmp=new File(cachefile.getPath()+".tmp");
+    if (!full&&valid&&changecnt>0) {
+      try {
+        append();
+      }
+      catch (IOException io) {
+        System.out.println("cannot append cache log "+log+": "+io);
+        full=true;
+      }
+    }
+    if ((full||!valid)&&!discardLog()) {
+      throw new IOException("cannot discard cache log "+log);
+    }
+    try {
+      write(new FileOutputStream(tmp),cachefile.toString());
+      if (!tmp.renameTo(cachefile)) {
+        // platforms not replacing existing files
+        cachefile.delete();
+        if (!tmp.renameTo(cachefile)) {
+          throw new IOException("cannot replace "+cachefile);
+        }
+      }
+      valid=true;
+      full=false;
+      changes.reset();
+      changecnt=0;
+      if (!discardLog()) {
+        // the log still matches the new cache
+        System.out.println("cannot remove cache log "+log);
+      }
+      logpos=0;
+      logcnt=0;
+      logstate=getLogState();
+    }
+    finally {
+      timestamp=cachefile.lastModified();
+    }
+  }
+
+  // the log is removed or at least truncated
+  private boolean discardLog()
+  {
+    File lf=log.getFile();
+    if (!lf.exists()||lf.delete()) return true;
+    try {
+      RandomAccessFile raf=new RandomAccessFile(lf, "rw");
+      try {
+        raf.setLength(0);
+      }
+      finally {
+        raf.close();
+      }
+      return true;
+    }
+    catch (IOException io) {
+      return false;
+    }
+  }
+
+  // an incomplete record left by an interrupted append is cut off
+  private void append() throws IOException
+  {
+    RandomAccessFile raf=new RandomAccessFile(log.getFile(), "rw");
+    try {
+      if (logpos==0) {
+        raf.setLength(0);
+        raf.writeInt(LOG_MAGIC);
+        logpos=raf.getFilePointer();
+      }
+      else {
+        raf.setLength(logpos);
+        raf.seek(logpos);
+      }
+      raf.write(changes.toByteArray());
+      logpos+=changes.size();
+      logcnt+=changecnt;
+      changes.reset();
+      changecnt=0;
+    }
+    catch (IOException io) {
+      full=true;
+      throw io;
+    }
+    finally {
+      raf.close();
+      logstate=getLogState();
+    }
+  }
+
+  private long getLogState()
+  {
+    if (log.isFile()) return log.getFile().length();
+    return log.getLastModified();
+  }
+
+  /*
+   * Read the log starting at the given position.
+   * @return false if the log does not contain the given position anymore
+   */
+  private boolean readLog(long pos) throws IOException
+  {
+    DataInputStream dis;
+
+    logstate=getLogState();
+    try {
+      dis=new DataInputStream(new BufferedInputStream(log.getInputStream()));
+    }
+    catch (IOException io) {
+      // no log
+      logpos=0;
+      logcnt=0;
+      return pos==0;
+    }
+    try {
+      if (pos==0) {
+        logpos=0;
+        logcnt=0;
+        try {
+          if (dis.readInt()!=LOG_MAGIC) {
+            System.out.println("ignoring illegal cache log "+log);
+            return true;
+          }
+        }
+        catch (EOFException eof) {
+          return true;
+        }
+        pos=4;
+      }
+      else {
+        long n=pos;
+        while (n>0) {
+          long s=dis.skip(n);
+          if (s<=0) return false;
+          n-=s;
+        }
+      }
+      logpos=pos;
+
+      byte[] record;
+      while ((record=readRecord(dis))!=null) {
+        apply(record);
+        logpos+=record.length+8;
+        logcnt++;
+      }
+      return true;
+    }
+    finally {
+      dis.close();
+    }
+  }
+
+  private byte[] readRecord(DataInputStream dis) throws IOException
+  {
+    try {
+      int len=dis.readInt();
+      if (len<=0||len>MAX_RECORD) return null;
+      byte[] record=new byte[len];
+      dis.readFully(record);
+      CRC32 crc=new CRC32();
+      crc.update(record);
+      if (dis.readInt()!=(int)crc.getValue()) return null;
+      return record;
+    }
+    catch (EOFException eof) {
+      return null;
+    }
+  }
+
+  private void apply(byte[] record) throws IOException
+  {
+    DataInputStream dis=new DataInputStream(new ByteArrayInputStream(record));
+    int op=dis.readInt();
+    switch (op) {
+      case LOG_ADD:
+        Entry e=readEntry(dis, dis.readInt());
+        cache.put(e.getFilename(), e);
+        break;
+      case LOG_REMOVE:
+        cache.remove(dis.readUTF());
+        break;
+      default:
+        throw new IOException("unknown cache log record "+op);
+    }
+  }
+
+  // changes are not recorded if the complete cache must be written
+  private void record(int op, String name, Entry e)
+  {
+    if (full) return;
+    try {
+      ByteArrayOutputStream bos=new ByteArrayOutputStream();
+      DataOutputStream dos=new DataOutputStream(bos);
+      dos.writeInt(op);
+      if (e!=null) writeEntry(dos, e);
+      else dos.writeUTF(name);
+      dos.flush();
+      byte[] record=bos.toByteArray();
+      CRC32 crc=new CRC32();
+      crc.update(record);
+      dos=new DataOutputStream(changes);
+      dos.writeInt(record.length);
+      dos.write(record);
+      dos.writeInt((int)crc.getValue());
+      changecnt++;
+    }
+    catch (IOException io) {
+      full=true;
+    }
+  }
+
+  @Override
+  public Entry add(String filename, int flags, MandelInfo info, long lm)
+  {
+    Entry e=super.add(filename, flags, info, lm);
+    record(LOG_ADD, filename, e);
+    return e;
+  }
+
+  @Override
+  public boolean remove(String name)
+  {
+    if (!super.remove(name)) return false;
+    record(LOG_REMOVE, name, null);
+    return true;
+  }
+
   public boolean removeFile(File f)
   {
     if (file.isFile()) {
@@ -142,72 +433,156 @@ public class MandelFolderCache extends MandelInventory {
       read(file);
       return true;
     }
+    if (getLogState()!=logstate) {
+      if (!readLog(logpos)) read(file);
+      return true;
+    }
     return false;
   }
 
-  private static class UncachedScanner extends FolderMandelScanner {
-    public UncachedScanner(File d) throws IOException
+  /**
+   * Number of threads reading the files of a folder for {@link #recreate}.
+   */
+  static public int READERS=8;
+
+  /*
+   * Cache data of a file read by recreate.
+   */
+  private static class Header {
+    private int flags;
+    private MandelInfo info;
+
+    public Header(int flags, MandelInfo info)
     {
-      super(d, MandelScanner.ALL);
+      this.flags=flags;
+      this.info=info;
     }
+  }
 
-    @Override
-    protected MandelFolderCache getCache()
-    {
+  /*
+   * Read only the header and the info of a mandel file.
+   * @return null if the file is no mandel file
+   */
+  static private Header readHeader(File f) throws IOException
+  {
+    DataInputStream dis;
+    int flags;
+
+    try {
+      dis=new DataInputStream(new BufferedInputStream(
+                                  new FileInputStream(f),1024));
+    }
+    catch (IOException io) {
       return null;
     }
+    try {
+      try {
+        if (dis.readInt()!=MandelData.MAGIC) return null;
+        flags=dis.readInt();
+        if (!new MandelHeader(flags).isColormap()&&
+            MandelFileName.create(f)==null) return null;
+      }
+      catch (IOException io) {
+        return null;
+      }
+      catch (IllegalArgumentException ex) {
+        return null;
+      }
+      MandelInfo info=null;
+      if ((flags&C_INFO)!=0) {
+        info=new MandelInfo();
+        info.read(dis,false);
+      }
+      return new Header(flags, info);
+    }
+    finally {
+      dis.close();
+    }
+  }
+
+  /*
+   * Reads the headers of a list of files with a limited number of
+   * threads. The files are distributed dynamically, so that large or
+   * slow files do not delay a complete partition.
+   */
+  private static class HeaderReader implements Runnable {
+    private File[] files;
+    private Header[] headers;
+    private AtomicInteger next=new AtomicInteger();
+    private AtomicInteger done=new AtomicInteger();
+    private volatile IOException failure;
 
-    @Override
-    protected void lock()
+    public HeaderReader(File[] files)
     {
+      this.files=files;
+      this.headers=new Header[files.length];
+    }
+
+    public void run()
+    {
+      int i;
+      while (failure==null&&(i=next.getAndIncrement())<files.length) {
+        if (!files[i].isFile()||files[i].getName().startsWith(".")) continue;
+        try {
+          headers[i]=readHeader(files[i]);
+        }
+        catch (IOException ex) {
+          System.out.println("ignoring "+files[i]+": "+ex);
+          failure=ex;
+        }
+        if (done.incrementAndGet()%500==0) {
+          System.out.println("  "+done.get());
+        }
+      }
     }
 
-    @Override
-    protected void releaseLock()
+    public Header[] read(int threads) throws IOException
     {
+      threads=Math.max(1, Math.min(threads, files.length));
+      ExecutorService pool=Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<?>> workers=new ArrayList<Future<?>>();
+        for (int t=0; t<threads; t++) {
+          workers.add(pool.submit(this));
+        }
+        for (Future<?> w:workers) {
+          try {
+            w.get();
+          }
+          catch (InterruptedException ex) {
+            throw new InterruptedIOException("recreate interrupted");
+          }
+          catch (ExecutionException ex) {
+            throw new IOException("recreate failed", ex.getCause());
+          }
+        }
+      }
+      finally {
+        pool.shutdownNow();
+      }
+      if (failure!=null) throw failure;
+      return headers;
     }
   }
 
+  /**
+   * Recreates the cache from the files of the folder. Only the header and
+   * the info of the files are read, using up to {@link #READERS} threads.
+   */
   public void recreate() throws IOException
   {
-    int cnt=0;
-
     if (file.isFile()) {
       File folder=new File(file.getFile().getPath()).getParentFile();
-      FolderMandelScanner scan=new UncachedScanner(folder);
-      cache.clear();
+      File[] files=folder.listFiles();
+      if (files==null) throw new IOException("cannot list "+folder);
       System.out.println("setting up cache data...");
-      for (MandelName n:scan.getMandelNames()) {
-        //System.out.println("found "+n);
-        for (MandelHandle h:scan.getMandelHandles(n)) {
-          try {
-            MandelData md=new MandelData(true, h.getFile(), false);
-            add(h.getFile().getName(), h.getHeader().getType(), md.getInfo(),
-                     h.getFile().getLastModified());
-            if (++cnt%500==0) {
-              System.out.println("  "+cnt+" mem="+Runtime.getRuntime().freeMemory());
-              Runtime.getRuntime().gc();
-              Runtime.getRuntime().runFinalization();
-            }
-          }
-          catch (IOException ex) {
-            System.out.println("ignoring "+h.getFile()+": "+ex);
-            throw ex;
-          }
-        }
-      }
-      for (ColormapName c:scan.getColormapNames()) {
-        //System.out.println("found "+c);
-        for (ColormapHandle h:scan.getColormapHandles(c)) {
-          try {
-            MandelData md=new MandelData(true, h.getFile(), false);
-            add(h.getFile().getName(), h.getHeader().getType(), md.getInfo(),
-                     h.getFile().getLastModified());
-          }
-          catch (IOException ex) {
-            System.out.println("ignoring "+h.getFile()+": "+ex);
-            throw ex;
-          }
+      Header[] headers=new HeaderReader(files).read(READERS);
+      full=true;
+      cache.clear();
+      for (int i=0; i<files.length; i++) {
+        Header h=headers[i];
+        if (h!=null) {
+          add(files[i].getName(), h.flags, h.info, files[i].lastModified());
         }
       }
       write();
@@ -149,9 +149,6 @@ public class MandelInventory implements MandelConstants, Iterable<Entry> {
 
     while (true) {
       int flags;
-      MandelInfo info=null;
-      String filename;
-      long lm;
 
       try {
         flags=dis.readInt();
@@ -161,16 +158,27 @@ public class MandelInventory implements MandelConstants, Iterable<Entry> {
         //System.out.println("done.");
         return;
       }
-      filename=dis.readUTF();
-      lm=dis.readLong();
-      if ((flags&M_INFOOMITTED)==0) {
-        if ((flags&C_INFO)!=0) {
-          info=new MandelInfo();
-          info.read(dis, false);
-        }
+      Entry e=readEntry(dis, flags);
+      cache.put(e.filename, e);
+    }
+  }
+
+  // the flags have already been read to detect the end of the stream
+  protected Entry readEntry(DataInputStream dis, int flags) throws IOException
+  {
+    MandelInfo info=null;
+    String filename;
+    long lm;
+
+    filename=dis.readUTF();
+    lm=dis.readLong();
+    if ((flags&M_INFOOMITTED)==0) {
+      if ((flags&C_INFO)!=0) {
+        info=new MandelInfo();
+        info.read(dis, false);
       }
-      cache.put(filename, new Entry(filename, flags, info, lm));
     }
+    return new Entry(filename, flags, info, lm);
   }
 
   private void write(DataOutputStream dos, String msg) throws IOException
@@ -179,16 +187,21 @@ public class MandelInventory implements MandelConstants, Iterable<Entry> {
     dos.writeInt(MAGIC);
 
     for (Entry e:this) {
-      if (e.info==null && (e.flags&C_INFO)!=0) {
-        e.flags|=M_INFOOMITTED;
-      }
-      dos.writeInt(e.flags);
-      dos.writeUTF(e.filename);
-      dos.writeLong(e.getLastModified());
-      if ((e.flags&C_INFO)!=0 && (e.flags&M_INFOOMITTED)==0) {
-        e.info.write(dos,false);
-      }
+      writeEntry(dos, e);
     }
     System.out.println("done.");
   }
+
+  protected void writeEntry(DataOutputStream dos, Entry e) throws IOException
+  {
+    if (e.info==null && (e.flags&C_INFO)!=0) {
+      e.flags|=M_INFOOMITTED;
+    }
+    dos.writeInt(e.flags);
+    dos.writeUTF(e.filename);
+    dos.writeLong(e.getLastModified());
+    if ((e.flags&C_INFO)!=0 && (e.flags&M_INFOOMITTED)==0) {
+      e.info.write(dos,false);
+    }
+  }
 }
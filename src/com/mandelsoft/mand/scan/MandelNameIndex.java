@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.scan;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import com.mandelsoft.mand.MandelName;
+
+/**
+ * Index of mandel names by their sub area sequence.
+ * All names differing only in their last sub area character are
+ * kept in one sorted set registered for the first name of the sequence
+ * (see {@link MandelName#first()}), so the sub areas of an area can be
+ * looked up directly instead of probing the names one by one.
+ * Lookups may be done concurrently to modifications, the sets are
+ * replaced instead of modified. Modifications must be serialized
+ * by the caller.
+ *
+ * @author Uwe Krueger
+ */
+public class MandelNameIndex {
+  private Map<MandelName,SortedSet<MandelName>> index;
+
+  public MandelNameIndex()
+  {
+    index=new ConcurrentHashMap<MandelName,SortedSet<MandelName>>();
+  }
+
+  public void add(MandelName n)
+  {
+    MandelName first=n.first();
+    if (first==null) return;
+    SortedSet<MandelName> set=index.get(first);
+    if (set==null || !set.contains(n)) {
+      set=set==null?new TreeSet<MandelName>():new TreeSet<MandelName>(set);
+      set.add(n);
+      index.put(first, Collections.unmodifiableSortedSet(set));
+    }
+  }
+
+  public void remove(MandelName n)
+  {
+    MandelName first=n.first();
+    if (first==null) return;
+    SortedSet<MandelName> set=index.get(first);
+    if (set!=null && set.contains(n)) {
+      if (set.size()==1) index.remove(first);
+      else {
+        set=new TreeSet<MandelName>(set);
+        set.remove(n);
+        index.put(first, Collections.unmodifiableSortedSet(set));
+      }
+    }
+  }
+
+  public void clear()
+  {
+    index.clear();
+  }
+
+  /**
+   * Returns the indexed names of the sub area sequence of the given name
+   * in the order of the sub area characters.
+   */
+  public Set<MandelName> getSiblingNames(MandelName n)
+  {
+    MandelName first=n.first();
+    Set<MandelName> set=first==null?null:index.get(first);
+    if (set==null) return Collections.emptySet();
+    return set;
+  }
+}
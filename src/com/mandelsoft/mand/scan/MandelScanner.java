@@ -35,6 +35,8 @@ public interface MandelScanner extends MandelConstants {
   public Set<MandelHandle>           getMandelHandles();
 
   public Set<MandelName>             getMandelNames();
+  // names differing only in the last sub area (see MandelName.first())
+  public Set<MandelName>             getSiblingNames(MandelName name);
   public Set<MandelHandle>           getMandelHandles(MandelName name);
   public MandelHandle                getMandelInfo(MandelName name);
   public MandelHandle                getMandelData(MandelName name);
@@ -42,18 +42,22 @@ public class MandelScannerProxy extends MandelScannerListenerSupport {
     return scanner;
   }
 
-  synchronized
   public void setFilter(Filter f)
   {
     scanner.setFilter(f);
   }
 
-  synchronized
+  // the scanner is rescanned without holding the proxy,
+  // because it propagates its changes to the proxy
   public void rescan(boolean verbose)
   {
-    startUpdate();
+    synchronized (this) {
+      startUpdate();
+    }
     scanner.rescan(verbose);
-    finishUpdate();
+    synchronized (this) {
+      finishUpdate();
+    }
   }
 
   public Set<ElementHandle<?>> getAllHandles()
@@ -81,6 +85,11 @@ public class MandelScannerProxy extends MandelScannerListenerSupport {
     return scanner.getMandelNames();
   }
 
+  public Set<MandelName> getSiblingNames(MandelName name)
+  {
+    return scanner.getSiblingNames(name);
+  }
+
   public Set<MandelHandle> getMandelHandles(QualifiedMandelName name)
   {
     return scanner.getMandelHandles(name);
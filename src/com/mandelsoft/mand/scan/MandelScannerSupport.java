@@ -49,11 +49,12 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
     colmaps=filter(colmapHeader);
   }
 
-  synchronized
   public void setFilter(Filter filter)
   {
-    this.filter=filter;
-    colmaps=filter(colmapHeader);
+    synchronized (this) {
+      this.filter=filter;
+      colmaps=filter(colmapHeader);
+    }
     rescan(false);
   }
 
@@ -91,6 +92,7 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
   // will be copied for external versions
 
   abstract protected Set<MandelName> _getMandelNames();
+  abstract protected Set<MandelName> _getSiblingNames(MandelName name);
   abstract protected Set<MandelHandle> _getMandelHandles(MandelName name);
   abstract protected Set<ColormapName> _getColormapNames();
   abstract protected Set<ColormapHandle> _getColormapHandles(ColormapName name);
@@ -104,6 +106,11 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
     return new HashSet<MandelName>(_getMandelNames());
   }
 
+  public Set<MandelName> getSiblingNames(MandelName name)
+  {
+    return new HashSet<MandelName>(_getSiblingNames(name));
+  }
+
   public Set<MandelHandle> getMandelHandles(MandelName name)
   {
     return new HashSet<MandelHandle>(_getMandelHandles(name));
@@ -122,9 +129,10 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
   //////////////////////////////////////////////////////////////////////////
   //////////////////////////////////////////////////////////////////////////
   // default implementations of the rest
+  // composed of the basic methods without holding the scanner, so
+  // lookups do not wait for each other while reading files
   //////////////////////////////////////////////////////////////////////////
 
-  synchronized
   public Set<ElementHandle<?>> getAllHandles()
   { Set<ElementHandle<?>> set=new HashSet<ElementHandle<?>>();
 
@@ -137,7 +145,6 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
     return set;
   }
 
-  synchronized
   public Set<MandelHandle> getMandelHandles()
   { Set<MandelHandle> set=new HashSet<MandelHandle>();
 
@@ -151,7 +158,6 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
   // mandel versions
   //////////////////////////////////////////////////////////////////////////
 
-  synchronized
   public Set<QualifiedMandelName> getQualifiedMandelNames()
   { Set<QualifiedMandelName> set=new HashSet<QualifiedMandelName>();
 
@@ -167,7 +173,6 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
   //////////////////////////////////////////////////////////////////////////
   // mandel name versions
 
-  synchronized
   public MandelHandle getMandelInfo(MandelName name)
   {
     MandelHandle best=null;
@@ -184,7 +189,6 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
     return best;
   }
 
-  synchronized
   public MandelHandle getMandelData(MandelName name)
   {
     MandelHandle best=null;
@@ -225,7 +229,6 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
     return set;
   }
 
-  synchronized
   public MandelHandle getMandelHandle(QualifiedMandelName name)
   {
     MandelHandle best=null;
@@ -237,7 +240,6 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
     return best;
   }
 
-  synchronized
   public MandelHandle getMandelInfo(QualifiedMandelName name)
   {
     Set<MandelHandle> set=getMandelHandles(name);
@@ -263,7 +265,6 @@ public abstract class MandelScannerSupport extends MandelScannerListenerSupport
     return null;
   }
 
-  synchronized
   public MandelHandle getMandelData(QualifiedMandelName name)
   {
     Set<MandelHandle> set=getMandelHandles(name);
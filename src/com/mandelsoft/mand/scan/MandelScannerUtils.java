@@ -125,17 +125,12 @@ public class MandelScannerUtils {
                                   String label, MandelName n,
                                   MandelScanner scan, MandelScanner.Filter f)
   {
-    Set<MandelHandle> subs;
-    MandelName s=n.subAt(label);
-    while (s!=null) {
+    for (MandelName s:scan.getSiblingNames(n.subAt(label))) {
        //System.out.println("checking "+s);
-       if (!(subs=scan.getMandelHandles(s)).isEmpty()) {
-          if (f==null || hasAtLeastOne(subs, f)) {
-            set.add(s);
-          }
-        }
-        s=s.next();
-      }
+       if (f==null || hasAtLeastOne(scan.getMandelHandles(s), f)) {
+         set.add(s);
+       }
+    }
   }
 
   static public Set<MandelName> getSubNames(MandelName n,
@@ -170,15 +165,10 @@ public class MandelScannerUtils {
   private static boolean hasSubNames(String label, MandelName n,
                               MandelScanner scan, MandelScanner.Filter f)
   {
-    Set<MandelHandle> set;
-    MandelName s=n.subAt(label);
-    while (s!=null) {
-       if (!(set=scan.getMandelHandles(s)).isEmpty()) {
-         if (f==null || hasAtLeastOne(set, f)) {
-           return true;
-         }
+    for (MandelName s:scan.getSiblingNames(n.subAt(label))) {
+       if (f==null || hasAtLeastOne(scan.getMandelHandles(s), f)) {
+         return true;
        }
-       s=s.next();
     }
     return false;
   }
@@ -161,6 +161,12 @@ public class MappedMandelScanner extends MandelScannerProxy {
     return mapOutMN(super.getMandelNames());
   }
 
+  @Override
+  public Set<MandelName> getSiblingNames(MandelName name)
+  {
+    return mapOutMN(super.getSiblingNames(mapper.mapIn(name)));
+  }
+
   @Override
   public Set<MandelHandle> getMandelHandles(QualifiedMandelName name)
   {
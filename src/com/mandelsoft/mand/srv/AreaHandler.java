@@ -17,8 +17,10 @@
 package com.mandelsoft.mand.srv;
 
 import java.util.HashSet;
+import com.mandelsoft.mand.IterationState;
 import com.mandelsoft.mand.MandelData;
 import com.mandelsoft.mand.MandelInfo;
+import com.mandelsoft.mand.MandelRaster;
 import com.mandelsoft.mand.PixelIterator;
 import com.mandelsoft.util.ChangeEvent;
 import com.mandelsoft.util.ChangeListener;
@@ -41,6 +43,13 @@ public class AreaHandler implements Request {
   private boolean recalc;
   private Server  server;
   private PixelIterator pi;
+  private IterationState state;   // state to continue limit pixels
+  private IterationState result;  // collected state for the new limit
+  private ChunkSizer sizer;       // optional, fixed size if not set
+  private Journal journal;        // optional journal of answers
+  private int chunk=ChunkSizer.DEFAULT_SIZE; // maximal request size
+  private double itperpixel=-1; // estimated iterations, -1 if unknown
+  private int priority;
 
   private long mtime;
 
@@ -72,6 +81,45 @@ public class AreaHandler implements Request {
     this.pi=pi;
   }
 
+  /**
+   * Sets the iteration state used to continue the iteration of pixels
+   * at the old limit and the state collecting the orbit points of pixels
+   * at the new limit. Both are optional.
+   */
+  public void setIterationState(IterationState state, IterationState result)
+  {
+    this.state=state;
+    this.result=result;
+  }
+
+  public int getPriority()
+  {
+    return priority;
+  }
+
+  public void setPriority(int priority)
+  {
+    this.priority=priority;
+  }
+
+  /**
+   * Sets the sizer used to adapt the request size to the observed
+   * calculation cost. Without a sizer a fixed size is used.
+   */
+  public void setChunkSizer(ChunkSizer sizer)
+  {
+    this.sizer=sizer;
+  }
+
+  /**
+   * Sets the journal used to record the answers and to replay the
+   * answers of an aborted calculation.
+   */
+  public void setJournal(Journal journal)
+  {
+    this.journal=journal;
+  }
+
   public long getMTime()
   {
     return mtime;
@@ -81,12 +129,13 @@ public class AreaHandler implements Request {
   public void initiate()
   {
     startStateSetup();
+    updateChunkSize(!full);
     if (!full) {
       startFrameState();
       // frame already processed, just regularily continue
       // with next state
     }
-    else if (nx*ny<500) {
+    else if (nx*ny<chunk) {
       startCalcRequestState();
       calc("full", sx+(full?0:1), sy+(full?0:1),
                        nx-(full?0:2), ny-(full?0:2));
@@ -129,7 +178,7 @@ public class AreaHandler implements Request {
       }
     }
     if (dx>0 && dy>0) {
-      if (dx*dy>500) {
+      if (dx*dy>chunk) {
         int d;
         if (dx>dy) {
           d=dx/2;
@@ -148,11 +197,27 @@ public class AreaHandler implements Request {
 
   private void initiate(String msg, int x0, int y0, int dx, int dy)
   {
+    if (journal!=null) {
+      CalcRequest req=journal.take(x0,y0,dx,dy);
+      if (req!=null) {
+        log("replayed calc "+msg+": "+x0+", "+y0+", "+dx+", "+dy);
+        transfer(req);
+        return;
+      }
+    }
     CalcRequest req=new CalcRequest(data.getInfo(),x0,y0,dx,dy);
     if (recalc && !put(req)) {
       log("skipped calc "+msg+": "+x0+", "+y0+", "+dx+", "+dy);
       return;
     }
+    if (state!=null) {
+      req.setIterationState(state.getArea(data.getInfo().getRX(),
+                                          x0,y0,dx,dy));
+    }
+    req.setKeepIterationState(result!=null);
+    if (sizer!=null&&itperpixel>=0) {
+      req.setEstimatedTime(sizer.getTime(dx*dy, itperpixel));
+    }
     log("calc "+msg+": "+x0+", "+y0+", "+dx+", "+dy);
     addRequest(req);
   }
@@ -163,14 +228,51 @@ public class AreaHandler implements Request {
       log("sub: "+x0+", "+y0+", "+dx+", "+dy);
       AreaHandler req=new AreaHandler(server, recalc, false, data,
                                       x0, y0, dx, dy);
+      req.setIterationState(state, result);
+      req.setChunkSizer(sizer);
+      req.setJournal(journal);
       addRequest(req);
     }
   }
 
+  /*
+   * The iterations per pixel of an area are estimated by the average
+   * iterations of its frame, if it is already calculated.
+   */
+  private void updateChunkSize(boolean frame)
+  {
+    if (sizer==null) return;
+    if (!frame||nx<2||ny<2) {
+      chunk=sizer.getSize();
+      itperpixel=-1;
+    }
+    else {
+      MandelRaster raster=getRaster();
+      int limit=data.getInfo().getLimitIt();
+      long numit=0;
+      for (int x=sx; x<sx+nx; x++) {
+        numit+=cost(raster.getData(x, sy), limit);
+        numit+=cost(raster.getData(x, sy+ny-1), limit);
+      }
+      for (int y=sy+1; y<sy+ny-1; y++) {
+        numit+=cost(raster.getData(sx, y), limit);
+        numit+=cost(raster.getData(sx+nx-1, y), limit);
+      }
+      itperpixel=(double)numit/(2*nx+2*ny-4);
+      chunk=sizer.getSize(itperpixel);
+    }
+    log("chunk size "+chunk+" for "+sx+", "+sy+", "+nx+", "+ny);
+  }
+
+  static private int cost(int it, int limit)
+  {
+    return it==0?limit:it;
+  }
+
   private boolean constantFrame()
-  { int[][] raster=getRaster();
+  { MandelRaster raster=getRaster();
 
-    int it=raster[sy][sx];
+    int it=raster.getData(sx, sy);
     if (!equals(raster,it,sx+1,   sy,      nx-1,1)) return false;
     if (!equals(raster,it,sx+1,   sy+ny-1, nx-1,1)) return false;
     if (!equals(raster,it,sx,     sy+1,    1,ny-1)) return false;
@@ -178,12 +280,12 @@ public class AreaHandler implements Request {
     return true;
   }
 
-  private boolean equals(int[][] raster, int it, int x0, int y0,
+  private boolean equals(MandelRaster raster, int it, int x0, int y0,
                                                  int dx, int dy)
   {
     for (int y=y0; y<y0+dy; y++) {
       for (int x=x0; x<x0+dx; x++) {
-        if (raster[y][x]!=it) return false;
+        if (raster.getData(x, y)!=it) return false;
       }
     }
     return true;
@@ -191,11 +293,11 @@ public class AreaHandler implements Request {
 
   private void fillFrame()
   {
-    int[][] raster=getRaster();
-    fillFrame(raster,raster[sy][sx],sx+1,sy+1,nx-2,ny-2);
+    MandelRaster raster=getRaster();
+    fillFrame(raster,raster.getData(sx, sy),sx+1,sy+1,nx-2,ny-2);
   }
 
-  private void fillFrame(int[][] raster, int it, int x0, int y0,
+  private void fillFrame(MandelRaster raster, int it, int x0, int y0,
                                                  int dx, int dy)
   { int m=it==0?1:0;
     int cnt=0;
@@ -205,7 +307,7 @@ public class AreaHandler implements Request {
     MandelInfo info=data.getInfo();
     for (int y=y0; y<y0+dy; y++) {
       for (int x=x0; x<x0+dx; x++) {
-        raster[y][x]=it;
+        raster.setData(x, y, it);
         cnt+=it;
         mcnt+=m;
       }
@@ -214,9 +316,9 @@ public class AreaHandler implements Request {
     info.setNumIt(info.getNumIt()+cnt);
   }
 
-  private int[][] getRaster()
+  private MandelRaster getRaster()
   {
-    return data.getRaster().getRaster();
+    return data.getRaster();
   }
 
   /////////////////
@@ -227,23 +329,28 @@ public class AreaHandler implements Request {
     int ny=req.getNY();
     int sx=req.getSX();
     int sy=req.getSY();
-    int[][] raster=getRaster();
+    MandelRaster raster=getRaster();
     MandelInfo info=data.getInfo();
 
     for (int x=0; x<nx; x++) {
       for (int y=0; y<ny; y++) {
         int ax=sx+x;
         int ay=sy+y;
-        raster[ay][ax]=req.getDataRel(x, y);
+        raster.setData(ax, ay, req.getDataRel(x, y));
       }
     }
 
+    if (result!=null&&req.getIterationState()!=null) {
+      result.add(req.getIterationState());
+    }
+
     if (req.getMaxIt()>info.getMaxIt()) info.setMaxIt(req.getMaxIt());
     if (req.getMinIt()<info.getMinIt()) info.setMinIt(req.getMinIt());
     info.setMCnt(info.getMCnt()+req.getMCnt());
     info.setMCCnt(info.getMCCnt()+req.getCCnt());
     info.setNumIt(info.getNumIt()+req.getNumIt());
     mtime+=req.getMTime();
+    if (sizer!=null) sizer.add(req);
   }
 
   private boolean put(CalcRequest req)
@@ -252,7 +359,7 @@ public class AreaHandler implements Request {
     int sx=req.getSX();
     int sy=req.getSY();
     MandelInfo info=data.getInfo();
-    int[][] raster=getRaster();
+    MandelRaster raster=getRaster();
     boolean found=false;
     int minit=info.getMinIt();
     int maxit=info.getMinIt();
@@ -266,7 +373,7 @@ public class AreaHandler implements Request {
       for (int y=0; y<ny; y++) {
         int ax=sx+x;
         int ay=sy+y;
-        int it=raster[ay][ax];
+        int it=raster.getData(ax, ay);
         req.setDataRel(x,y,it);
         //buffer[req.getIndexRel(x, y)]=it;
         if (it==0) {
@@ -356,6 +463,7 @@ public class AreaHandler implements Request {
     if (listener==null) throw new IllegalStateException("illegal area state");
     req.addChangeListener(listener);
     req.setPixelIterator(pi);
+    req.setPriority(priority);
     requests.add(req);
     req.send(server);
   }
@@ -387,6 +495,7 @@ public class AreaHandler implements Request {
   private class CalcRequestChangeListener extends HandlerChangeListener {
     protected void requestProcessed(Request req)
     {
+      if (journal!=null) journal.add((CalcRequest)req);
       transfer((CalcRequest)req);
     }
   }
@@ -404,7 +513,8 @@ public class AreaHandler implements Request {
         fillFrame();
       }
       else {
-        if (nx*ny<500) {
+        updateChunkSize(true);
+        if (nx*ny<chunk) {
           startCalcRequestState();
           calc("full", sx+1, sy+1, nx-2, ny-2);
         }
@@ -15,14 +15,22 @@
  */
 package com.mandelsoft.mand.srv;
 
+import com.mandelsoft.mand.IterationState;
 import com.mandelsoft.mand.MandelSpec;
 import com.mandelsoft.mand.calc.AreaCalculator;
 import com.mandelsoft.mand.calc.CalculationContext;
 import com.mandelsoft.mand.calc.SimpleAreaCalculator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import com.mandelsoft.util.ChangeListener;
 import com.mandelsoft.util.StateChangeSupport;
 
@@ -33,11 +41,36 @@ import com.mandelsoft.util.StateChangeSupport;
 public class CalcRequest extends CalculationContext implements Request {
   static private AreaCalculator calc=new SimpleAreaCalculator();
 
-  static private final int VERSION=1;
+  static private final int VERSION=2;
+
+  /**
+   * Compact binary encoding with run length coded iteration data.
+   * It must be explicitly requested for writing, because older
+   * readers do not understand it. Only this encoding carries the
+   * interior check option of the spec, requests read from the other
+   * encodings are always calculated with interior check.
+   */
+  static public final int COMPACT=3;
+
+  static private final int MIN_DEFLATE=512; // minimal payload to deflate
+
+  // limits for reading requests from peers
+  static public  final int MAX_PIXELS=4*1024*1024; // pixels per request
+  static private final int MAX_DECIMAL=1024;       // bytes of a decimal
+  static private final int MAX_PIXEL_BYTES=30; // encoded data and state
+
+  // compact flags
+  static private final int F_KEEPSTATE=0x01;
+  static private final int F_STATE=0x02;
+  static private final int F_DEFLATED=0x04;
+  static private final int F_NOINTERIOR=0x08; // ignored by older readers
 
   private int version; // found version
   private long reqid;
   private int[] data;   // iteration data
+  private boolean keepstate; // request iteration state for limit pixels
+  private long estimated;    // estimated calculation time (not transferred)
+  private int  priority;     // queue priority (not transferred)
 
   static volatile long lastid=0;
 
@@ -69,6 +102,38 @@ public class CalcRequest extends CalculationContext implements Request {
     this.data=data;
   }
 
+  /**
+   * Return the encoding version this request has been read with.
+   */
+  public int getVersion()
+  {
+    return version;
+  }
+
+  /**
+   * Return the estimated calculation time in milli seconds, 0 if unknown.
+   * It is used by servers to determine the lease time of a request.
+   */
+  public long getEstimatedTime()
+  {
+    return estimated;
+  }
+
+  public void setEstimatedTime(long estimated)
+  {
+    this.estimated=estimated;
+  }
+
+  public int getPriority()
+  {
+    return priority;
+  }
+
+  public void setPriority(int priority)
+  {
+    this.priority=priority;
+  }
+
   public long getReqId()
   {
     return reqid;
@@ -90,6 +155,16 @@ public class CalcRequest extends CalculationContext implements Request {
     this.data=data;
   }
 
+  public boolean isKeepIterationState()
+  {
+    return keepstate;
+  }
+
+  public void setKeepIterationState(boolean keepstate)
+  {
+    this.keepstate=keepstate;
+  }
+
   ///////////////////////////////////////////////////////////////
   // calculation
   ///////////////////////////////////////////////////////////////
@@ -130,21 +205,31 @@ public class CalcRequest extends CalculationContext implements Request {
 
   public void calc()
   {
+    if (keepstate) setResultState(new IterationState(getLimitIt()));
     calc.calc(this);
+    // the collected state replaces the consumed one for the answer
+    setIterationState(getResultState());
+    setResultState(null);
   }
 
   ///////////////////////////////////////////////////////////////
   // io
   ///////////////////////////////////////////////////////////////
 
+  // requests without iteration state are readable by old clients
+  private int getWriteVersion()
+  {
+    return keepstate||getIterationState()!=null?VERSION:1;
+  }
+
   public void write(DataOutputStream dos) throws IOException
   {
-    write(dos,VERSION);
+    write(dos,getWriteVersion());
   }
 
   public void write(DataOutputStream dos, boolean verbose) throws IOException
   {
-    write(dos,VERSION,verbose);
+    write(dos,getWriteVersion(),verbose);
   }
 
   public void write(DataOutputStream dos, int v) throws IOException
@@ -160,6 +245,13 @@ public class CalcRequest extends CalculationContext implements Request {
        case 1: dos.writeInt(v);
                writeV1(dos);
                break;
+       case 2: dos.writeInt(v);
+               writeV1(dos);
+               writeV2(dos);
+               break;
+       case 3: dos.writeInt(v);
+               writeV3(dos);
+               break;
       default: throw new IOException("unknown calc req version "+v);
     }
   }
@@ -196,6 +288,78 @@ public class CalcRequest extends CalculationContext implements Request {
     }
   }
 
+  // additional iteration state
+  private void writeV2(DataOutputStream dos) throws IOException
+  {
+    IterationState s=getIterationState();
+
+    dos.writeBoolean(keepstate);
+    dos.writeBoolean(s!=null);
+    if (s!=null) s.write(dos);
+  }
+
+  // compact encoding
+  private void writeV3(DataOutputStream dos) throws IOException
+  {
+    IterationState s=getIterationState();
+
+    dos.writeLong(reqid);
+
+    writeDecimal(dos,getXM());
+    writeDecimal(dos,getYM());
+    writeDecimal(dos,getDX());
+    writeDecimal(dos,getDY());
+    writeVarLong(dos,getRX());
+    writeVarLong(dos,getRY());
+    writeVarLong(dos,getLimitIt());
+
+    writeVarLong(dos,getSX());
+    writeVarLong(dos,getSY());
+    writeVarLong(dos,getNX());
+    writeVarLong(dos,getNY());
+
+    writeVarLong(dos,getMinIt());
+    writeVarLong(dos,getMaxIt());
+    writeVarLong(dos,getNumIt());
+    writeVarLong(dos,getMTime());
+    writeVarLong(dos,getMCnt());
+    writeVarLong(dos,getCCnt());
+
+    // payload: iteration data and state
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    DataOutputStream pos=new DataOutputStream(bos);
+    writeData(pos,data);
+    if (s!=null) s.write(pos);
+    pos.flush();
+
+    int flags=0;
+    if (keepstate) flags|=F_KEEPSTATE;
+    if (s!=null) flags|=F_STATE;
+    if (!isInteriorCheck()) flags|=F_NOINTERIOR;
+
+    byte[] payload=bos.toByteArray();
+    int raw=payload.length;
+    int len=raw;
+    if (len>=MIN_DEFLATE) {
+      Deflater d=new Deflater();
+      byte[] buf=new byte[len];
+      d.setInput(payload);
+      d.finish();
+      int n=d.deflate(buf);
+      if (d.finished()&&n<len) {
+        flags|=F_DEFLATED;
+        payload=buf;
+        len=n;
+      }
+      d.end();
+    }
+
+    dos.writeByte(flags);
+    if ((flags&F_DEFLATED)!=0) writeVarLong(dos,raw);
+    writeVarLong(dos,len);
+    dos.write(payload,0,len);
+  }
+
   public void read(DataInputStream dis) throws IOException
   {
     read(dis,true);
@@ -208,6 +372,11 @@ public class CalcRequest extends CalculationContext implements Request {
     switch (version) {
       case 1: readV1(dis);
               break;
+      case 2: readV1(dis);
+              readV2(dis);
+              break;
+      case 3: readV3(dis);
+              break;
       default: throw new IOException("unknown calc req version "+version);
     }
   }
@@ -237,16 +406,212 @@ public class CalcRequest extends CalculationContext implements Request {
     setMCnt(dis.readLong());
     setCCnt(dis.readLong());
 
+    int pixels=checkPixels();
     int len=dis.readInt();
 
     if (len==0) data=null;
     else {
+      if (len!=pixels) {
+        throw new IOException("illegal data size "+len);
+      }
+      // read as one block, so that buffered input can detect its size
+      byte[] b=new byte[len*4];
+      dis.readFully(b);
       data=new int[len];
-      for (int i=0; i<len; i++)
-        data[i]=dis.readInt();
+      ByteBuffer.wrap(b).asIntBuffer().get(data);
     }
   }
 
+  private void readV2(DataInputStream dis) throws IOException
+  {
+    keepstate=dis.readBoolean();
+    if (dis.readBoolean()) {
+      IterationState s=new IterationState();
+      s.read(dis,getNX()*getNY());
+      setIterationState(s);
+    }
+    else setIterationState(null);
+  }
+
+  private void readV3(DataInputStream dis) throws IOException
+  {
+    setReqId(dis.readLong());
+
+    setXM(readDecimal(dis));
+    setYM(readDecimal(dis));
+    setDX(readDecimal(dis));
+    setDY(readDecimal(dis));
+    setRX(readVarInt(dis));
+    setRY(readVarInt(dis));
+    setLimitIt(readVarInt(dis));
+
+    setSX(readVarInt(dis));
+    setSY(readVarInt(dis));
+    setNX(readVarInt(dis));
+    setNY(readVarInt(dis));
+
+    setMinIt(readVarInt(dis));
+    setMaxIt(readVarInt(dis));
+    setNumIt(readVarLong(dis));
+    setMTime(readVarLong(dis));
+    setMCnt(readVarLong(dis));
+    setCCnt(readVarLong(dis));
+
+    int pixels=checkPixels();
+    int max=MAX_PIXEL_BYTES*pixels+64;
+    int flags=dis.readUnsignedByte();
+    int size=(flags&F_DEFLATED)!=0?readSize(dis,max):-1;
+    // deflated payloads are only sent if they are smaller
+    byte[] payload=new byte[readSize(dis,size<0?max:size)];
+    dis.readFully(payload);
+
+    if (size>=0) {
+      Inflater i=new Inflater();
+      byte[] buf=new byte[size];
+      i.setInput(payload);
+      try {
+        if (i.inflate(buf)!=size||!i.finished()) {
+          throw new IOException("corrupted calc req payload");
+        }
+      }
+      catch (DataFormatException ex) {
+        throw new IOException("corrupted calc req payload: "+ex.getMessage());
+      }
+      finally {
+        i.end();
+      }
+      payload=buf;
+    }
+
+    DataInputStream pis=new DataInputStream(new ByteArrayInputStream(payload));
+    keepstate=(flags&F_KEEPSTATE)!=0;
+    setInteriorCheck((flags&F_NOINTERIOR)==0);
+    data=readData(pis,pixels);
+    if ((flags&F_STATE)!=0) {
+      IterationState s=new IterationState();
+      s.read(pis,pixels);
+      setIterationState(s);
+    }
+    else setIterationState(null);
+  }
+
+  /////////////////////////////////////////////////////////////
+  // compact encoding primitives
+  /////////////////////////////////////////////////////////////
+
+  // signed values are zigzag encoded in groups of 7 bits
+  static private void writeVarLong(DataOutputStream dos, long v)
+                      throws IOException
+  {
+    v=(v<<1)^(v>>63);
+    while ((v&~0x7FL)!=0) {
+      dos.writeByte((int)((v&0x7F)|0x80));
+      v>>>=7;
+    }
+    dos.writeByte((int)v);
+  }
+
+  static private long readVarLong(DataInputStream dis) throws IOException
+  {
+    long v=0;
+    int shift=0;
+    int b;
+
+    do {
+      if (shift>63) throw new IOException("illegal var long");
+      b=dis.readUnsignedByte();
+      v|=(long)(b&0x7F)<<shift;
+      shift+=7;
+    }
+    while ((b&0x80)!=0);
+    return (v>>>1)^-(v&1);
+  }
+
+  static private int readVarInt(DataInputStream dis) throws IOException
+  {
+    return (int)readVarLong(dis);
+  }
+
+  /*
+   * Sizes are read from the peer, they must be checked before
+   * anything is allocated for them.
+   */
+  static private int readSize(DataInputStream dis, int max) throws IOException
+  {
+    long n=readVarLong(dis);
+    if (n<0||n>max) throw new IOException("illegal size "+n);
+    return (int)n;
+  }
+
+  // the data of a request may never exceed its pixel count
+  private int checkPixels() throws IOException
+  {
+    long n=(long)getNX()*getNY();
+    if (getNX()<0||getNY()<0||n>MAX_PIXELS) {
+      throw new IOException("illegal request size "+getNX()+"x"+getNY());
+    }
+    return (int)n;
+  }
+
+  static private void writeDecimal(DataOutputStream dos, BigDecimal d)
+                      throws IOException
+  {
+    byte[] b=d.unscaledValue().toByteArray();
+    writeVarLong(dos,d.scale());
+    writeVarLong(dos,b.length);
+    dos.write(b);
+  }
+
+  static private BigDecimal readDecimal(DataInputStream dis)
+                            throws IOException
+  {
+    int scale=readVarInt(dis);
+    byte[] b=new byte[readSize(dis,MAX_DECIMAL)];
+    dis.readFully(b);
+    return new BigDecimal(new BigInteger(b),scale);
+  }
+
+  // runs of equal values: value delta and run length
+  static private void writeData(DataOutputStream dos, int[] data)
+                      throws IOException
+  {
+    if (data==null) {
+      writeVarLong(dos,0);
+      return;
+    }
+    writeVarLong(dos,data.length);
+    int last=0;
+    int i=0;
+    while (i<data.length) {
+      int v=data[i];
+      int n=1;
+      while (i+n<data.length&&data[i+n]==v) n++;
+      writeVarLong(dos,(long)v-last);
+      writeVarLong(dos,n-1);
+      last=v;
+      i+=n;
+    }
+  }
+
+  static private int[] readData(DataInputStream dis, int pixels)
+                       throws IOException
+  {
+    int len=readSize(dis,pixels);
+    if (len==0) return null;
+    if (len!=pixels) throw new IOException("illegal data size "+len);
+    int[] data=new int[len];
+    int last=0;
+    int i=0;
+    while (i<len) {
+      int v=(int)(last+readVarLong(dis));
+      int n=readVarInt(dis)+1;
+      if (n<=0||i+n>len) throw new IOException("corrupted calc req data");
+      while (n-->0) data[i++]=v;
+      last=v;
+    }
+    return data;
+  }
+
   /////////////////////////////////////////////////////////////
   // State Change
   /////////////////////////////////////////////////////////////
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand.srv;
+
+/**
+ * Determines the size of calculation requests from the calculation cost
+ * observed for already processed requests.
+ *
+ * The time per iteration is taken from all processed requests of an image,
+ * the number of iterations per pixel is estimated for every area, for
+ * example from the already calculated frame of a sub area. The resulting
+ * request size aims at the configured target time per request.
+ * As long as no cost has been observed the {@link #DEFAULT_SIZE} is used.
+ *
+ * @author Uwe Krueger
+ */
+public class ChunkSizer {
+  static public final int  DEFAULT_SIZE=500;    // pixels
+  static public final int  MIN_SIZE=16;
+  static public final int  MAX_SIZE=64*1024;
+  static public final long DEFAULT_TIME=10*1000; // milli seconds
+  static public final long MIN_OBSERVED=100;     // required observed time
+
+  private long target;
+  private long numit;
+  private long mtime;
+  private long pixels;
+
+  public ChunkSizer()
+  {
+    this(DEFAULT_TIME);
+  }
+
+  public ChunkSizer(long target)
+  {
+    if (target<=0) throw new IllegalArgumentException("target time must be positive");
+    this.target=target;
+  }
+
+  public long getTargetTime()
+  {
+    return target;
+  }
+
+  synchronized
+  public void add(CalcRequest req)
+  {
+    numit+=req.getNumIt();
+    mtime+=req.getMTime();
+    pixels+=req.getNX()*req.getNY();
+  }
+
+  /**
+   * Get the request size for an area with the average iteration count
+   * of all observed requests.
+   */
+  synchronized
+  public int getSize()
+  {
+    if (pixels==0) return DEFAULT_SIZE;
+    return getSize((double)numit/pixels);
+  }
+
+  /**
+   * Get the request size for an area with the given estimated number of
+   * iterations per pixel.
+   */
+  synchronized
+  public int getSize(double itperpixel)
+  {
+    if (mtime<MIN_OBSERVED||numit==0) return DEFAULT_SIZE;
+    double t=itperpixel*mtime/numit; // time per pixel
+    if (t<=0) return MAX_SIZE;
+    double n=target/t;
+    if (n<MIN_SIZE) return MIN_SIZE;
+    if (n>MAX_SIZE) return MAX_SIZE;
+    return (int)n;
+  }
+
+  /**
+   * Get the estimated calculation time in milli seconds for an area
+   * with the given estimated number of iterations per pixel.
+   * @return estimated time or 0 if no cost has been observed
+   */
+  synchronized
+  public long getTime(int pixels, double itperpixel)
+  {
+    if (mtime<MIN_OBSERVED||numit==0) return 0;
+    return (long)(pixels*itperpixel*mtime/numit);
+  }
+
+  @Override
+  synchronized
+  public String toString()
+  {
+    return "chunk sizer: "+numit+" iterations in "+mtime+"ms for "+
+           pixels+" pixels, target "+target+"ms";
+  }
+}
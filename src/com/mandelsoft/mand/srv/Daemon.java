@@ -43,6 +43,9 @@ public class Daemon extends Command {
     int c=0;
     boolean dflag=false; // delete obsolete
     boolean fflag=false; // fast mode
+    boolean zflag=false; // keep iteration state
+    boolean iflag=true;  // interior check
+    long chunktime=ChunkSizer.DEFAULT_TIME;
     List<String> sargs=new ArrayList<String>();
     Class<? extends Server> serverc=DirectServer.class;
     Server server=null;
@@ -58,6 +61,24 @@ public class Daemon extends Command {
           case 'f':
             fflag=true;
             break;
+          case 'z':
+            zflag=true;
+            break;
+          case 'I':
+            iflag=false;
+            break;
+          case 't':
+            if (args.length>c) {
+              try {
+                chunktime=Long.parseLong(args[c++])*1000;
+                if (chunktime<0) Error("non-negative request time expected");
+              }
+              catch (NumberFormatException ex) {
+                Error("request time in seconds expected");
+              }
+            }
+            else Error("request time missing");
+            break;
           case 's':
             if (args.length>c) {
               String n=args[c++];
@@ -104,17 +125,19 @@ public class Daemon extends Command {
       }
     }
     try {
-      service(server, dflag, fflag);
+      service(server, dflag, fflag, zflag, iflag, chunktime);
     }
     catch (IllegalConfigurationException ex) {
       Error("service creation failed: "+ex);
     }
   }
 
-  static private void service(Server server, boolean dflag, boolean fflag)
+  static private void service(Server server, boolean dflag, boolean fflag,
+                              boolean zflag, boolean iflag, long chunktime)
                       throws IllegalConfigurationException
   {
-    Service srv=new Service(server,dflag,fflag);
+    if (!iflag) System.out.println("interior check is off");
+    Service srv=new Service(server,dflag,fflag,zflag,iflag,chunktime);
     srv.run();
   }
   ////////////////////////////////////////////////////////////////////////////
@@ -125,13 +148,20 @@ public class Daemon extends Command {
     Server server;
     boolean dflag;
     boolean fflag;
+    boolean zflag;
+    boolean iflag;
+    long chunktime;
 
-    public Service(Server server, boolean dflag, boolean fflag)
+    public Service(Server server, boolean dflag, boolean fflag,
+                   boolean zflag, boolean iflag, long chunktime)
            throws IllegalConfigurationException
     {
       this.server=server;
       this.dflag=dflag;
       this.fflag=fflag;
+      this.zflag=zflag;
+      this.iflag=iflag;
+      this.chunktime=chunktime;
       env=new Environment(null);
       ignored=new HashSet<AbstractFile>();
       imagescan=env.getImageDataScanner();
@@ -156,6 +186,10 @@ public class Daemon extends Command {
           if (h.getLabel()!=null) continue;
           System.out.println("handle "+h.getFile());
           handler=new ImageHandler(env,h.getFile());
+          handler.setKeepIterationState(zflag);
+          handler.setInteriorCheck(iflag);
+          handler.setChunkTime(chunktime);
+          handler.setPriority(Request.PRIO_HIGH);
           handler.addChangeListener(listener);
           handler.send(server);
           if (handler.isAccepted()) {
@@ -174,6 +208,9 @@ public class Daemon extends Command {
             if (h.getLabel()!=null) continue;
             System.out.println("handle "+h.getFile());
             handler=new ImageHandler(env,h.getFile());
+            handler.setKeepIterationState(zflag);
+            handler.setInteriorCheck(iflag);
+            handler.setChunkTime(chunktime);
             handler.addChangeListener(listener);
             handler.send(server);
             if (handler.isAccepted()) {
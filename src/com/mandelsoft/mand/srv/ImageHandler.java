@@ -22,6 +22,7 @@ import java.util.Date;
 import java.util.Set;
 import com.mandelsoft.mand.Environment;
 import com.mandelsoft.io.FolderLock;
+import com.mandelsoft.mand.IterationState;
 import com.mandelsoft.mand.MandIter;
 import com.mandelsoft.mand.MandelData;
 import com.mandelsoft.io.AbstractFile;
@@ -46,6 +47,10 @@ public class ImageHandler implements Request {
   private MandelFileName name;
   private Environment env;
   private boolean accepted;
+  private boolean keepstate;
+  private boolean interiorcheck=true;
+  private long chunktime=ChunkSizer.DEFAULT_TIME;
+  private int priority=PRIO_NORMAL;
 
   public ImageHandler(Environment env, AbstractFile f)
   {
@@ -53,6 +58,50 @@ public class ImageHandler implements Request {
     this.env=env;
   }
 
+  /**
+   * Enables the persistence of the iteration state of the pixels
+   * at the limit, so a later refinement can continue the iteration.
+   */
+  public void setKeepIterationState(boolean keepstate)
+  {
+    this.keepstate=keepstate;
+  }
+
+  /**
+   * Enables or disables the detection of interior pixels
+   * (see {@link MandelInfo#setInteriorCheck(boolean)}). The setting is
+   * passed with the requests of the image. Remote clients only get it
+   * with the compact request encoding, older clients always check.
+   */
+  public void setInteriorCheck(boolean interiorcheck)
+  {
+    this.interiorcheck=interiorcheck;
+  }
+
+  /**
+   * Sets the target calculation time for a single request in milli seconds.
+   * The request sizes are adapted to the observed calculation cost.
+   * A time of 0 uses requests of a fixed size.
+   */
+  public void setChunkTime(long chunktime)
+  {
+    this.chunktime=chunktime;
+  }
+
+  /**
+   * Sets the priority used to queue the requests of the image.
+   * Requests of a higher priority are served first.
+   */
+  public void setPriority(int priority)
+  {
+    this.priority=priority;
+  }
+
+  public int getPriority()
+  {
+    return priority;
+  }
+
   public boolean isAccepted()
   {
     return accepted;
@@ -163,10 +212,37 @@ public class ImageHandler implements Request {
                                              pi.getMagnification(),starttime);
     server.addImage(data);
     if (!recalc) mi.setTime(0);
-    raster=md.createRaster().getRaster();
+    md.createRaster();
+    if (recalc) {
+      try {
+        state=IterationState.read(IterationState.getFile(file), mi);
+        if (state!=null) {
+          System.out.println("continuing "+state.size()+
+                             " pixels at limit "+state.getLimit());
+        }
+      }
+      catch (IOException io) {
+        System.err.println("*** cannot read iteration state: "+io);
+      }
+    }
+    try {
+      journal=Journal.open(Journal.getFile(file), mi);
+      if (journal.getReplayCount()>0) {
+        System.out.println("replaying "+journal.getReplayCount()+
+                           " journaled requests");
+      }
+    }
+    catch (IOException io) {
+      System.err.println("*** cannot open journal: "+io);
+    }
+    if (keepstate) result=new IterationState(limit);
     AreaHandler area=new AreaHandler(server, recalc, true, md,
                                      0, 0, mi.getRX(), mi.getRY());
     area.setPixelIterator(pi);
+    area.setPriority(priority);
+    area.setIterationState(state, result);
+    if (chunktime>0) area.setChunkSizer(new ChunkSizer(chunktime));
+    area.setJournal(journal);
     area.addChangeListener(new ChangeListener() {
       public void stateChanged(ChangeEvent e)
       {
@@ -189,6 +265,7 @@ public class ImageHandler implements Request {
     server.removeImage(name);
     try {
       write(false);
+      closeJournal(true);
 
       lock.lock();
       try {
@@ -206,9 +283,23 @@ public class ImageHandler implements Request {
       err=io;
       System.err.println("*** "+mandelfile+": "+io);
     }
+    closeJournal(false);
     listeners.fireChangeEvent(this);
   }
 
+  // the journal is kept as long as the image has not been written
+  private void closeJournal(boolean delete)
+  {
+    if (journal==null) return;
+    try {
+      journal.close(delete);
+    }
+    catch (IOException io) {
+      System.err.println("*** cannot write journal: "+io);
+    }
+    journal=null;
+  }
+
   public AbstractFile getMandelFile()
   {
     return mandelfile;
@@ -228,7 +319,9 @@ public class ImageHandler implements Request {
   private MandelInfo mi;
   private PixelIterator pi;
   private int limit;
-  private int[][] raster;
+  private IterationState state;
+  private IterationState result;
+  private Journal journal;
 
   public void setPixelIterator(PixelIterator pi)
   {
@@ -240,6 +333,7 @@ public class ImageHandler implements Request {
     this.md=md;
     this.mi=md.getInfo();
     this.limit=mi.getLimitIt();
+    mi.setInteriorCheck(interiorcheck);
     this.file=env.mapToRasterFile(md.getFile());
   }
 
@@ -274,6 +368,9 @@ public class ImageHandler implements Request {
     if (file==null) throw new IOException("no file specified");
 
     md.write(file,verbose);
+    if (result!=null) {
+      result.write(IterationState.getFile(file), mi);
+    }
     System.out.println(new Date()+": "+file+" done: "+MandUtils.time(md.getInfo().getTime()));
   }
 
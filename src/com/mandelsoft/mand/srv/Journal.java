@@ -0,0 +1,367 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand.srv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import com.mandelsoft.mand.IterationState;
+import com.mandelsoft.mand.MandelConstants;
+import com.mandelsoft.mand.MandelSpec;
+
+/**
+ * Append-only journal of the calculation requests answered for an image.
+ *
+ * The journal is stored beside the raster file (see {@link #getFile(File)})
+ * and removed when the image has been written. If the calculation is
+ * aborted, a new calculation of the same image replays the journal:
+ * requests covered completely by journaled answers are taken from the
+ * journal instead of being sent to the server (see {@link #take}).
+ * Answers are combined if the area has been split differently before,
+ * so the resulting raster and statistic is identical to an uninterrupted
+ * calculation.
+ *
+ * Answers are encoded and appended by a separate writer thread, which
+ * flushes the file whenever all pending answers are written. A record
+ * truncated by the abort of the process is dropped when the journal is
+ * opened again.
+ *
+ * @author Uwe Krueger
+ */
+public class Journal {
+  static public final int MAGIC=0x4D4A524E;
+
+  static private final int VERSION=1;
+
+  private File file;
+  private MandelSpec spec;
+  private TreeMap<Long,CalcRequest> replay;
+  private int replayed;
+
+  private DataOutputStream dos;
+  private List<CalcRequest> pending;
+  private Writer writer;
+  private IOException error;
+
+  private Journal(File file, MandelSpec spec)
+  {
+    this.file=file;
+    this.spec=spec;
+    this.replay=new TreeMap<Long,CalcRequest>();
+    this.pending=new ArrayList<CalcRequest>();
+  }
+
+  static public File getFile(File raster)
+  {
+    String n=raster.getName();
+    int ix=n.lastIndexOf('.');
+    if (ix>=0) n=n.substring(0,ix);
+    return new File(raster.getParentFile(),n+MandelConstants.JOURNAL_SUFFIX);
+  }
+
+  /**
+   * Opens the journal for an image. The answers of an existing journal
+   * for the same image area and limit are loaded for replay.
+   */
+  static public Journal open(File f, MandelSpec spec) throws IOException
+  {
+    Journal j=new Journal(f, spec);
+    long valid=j.load();
+    j.start(valid);
+    return j;
+  }
+
+  /**
+   * Returns the number of journaled answers loaded for replay.
+   */
+  public int getReplayCount()
+  {
+    return replayed;
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // replay
+  ///////////////////////////////////////////////////////////////
+
+  static private long key(int x, int y)
+  {
+    return ((long)y<<32)|x;
+  }
+
+  private byte[] getHeader() throws IOException
+  {
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    DataOutputStream hos=new DataOutputStream(bos);
+    hos.writeInt(MAGIC);
+    hos.writeInt(VERSION);
+    hos.writeUTF(spec.getXM().toString());
+    hos.writeUTF(spec.getYM().toString());
+    hos.writeUTF(spec.getDX().toString());
+    hos.writeUTF(spec.getDY().toString());
+    hos.writeInt(spec.getRX());
+    hos.writeInt(spec.getRY());
+    hos.writeInt(spec.getLimitIt());
+    hos.flush();
+    return bos.toByteArray();
+  }
+
+  // returns the size of the valid part of the journal, 0 for none
+  private long load() throws IOException
+  {
+    if (!file.isFile()) return 0;
+
+    DataInputStream dis=new DataInputStream(
+            new BufferedInputStream(
+            new FileInputStream(file)));
+    long valid=0;
+    try {
+      byte[] header=getHeader();
+      byte[] found=new byte[header.length];
+      dis.readFully(found);
+      if (!Arrays.equals(header, found)) return 0;
+      valid=header.length;
+      long len=file.length();
+      while (true) {
+        int n=dis.readInt();
+        // a record can never exceed the rest of the file, a length
+        // outside is treated like an incomplete last record
+        if (n<0||n>len-valid-4) break;
+        byte[] rec=new byte[n];
+        dis.readFully(rec);
+        CalcRequest req=new CalcRequest();
+        req.read(new DataInputStream(new ByteArrayInputStream(rec)),false);
+        replay.put(key(req.getSX(),req.getSY()), req);
+        valid+=4+rec.length;
+      }
+    }
+    catch (EOFException eof) {
+      // end of journal or incomplete last record
+    }
+    catch (IOException io) {
+      System.err.println("*** "+file+": "+io.getMessage());
+    }
+    finally {
+      dis.close();
+      replayed=replay.size();
+    }
+    return valid;
+  }
+
+  /**
+   * Takes the journaled answer for an area. The area must be covered
+   * completely by journaled answers, which are removed from the replay.
+   * @return the answer or null, if the area must be calculated
+   */
+  synchronized
+  public CalcRequest take(int x0, int y0, int dx, int dy)
+  {
+    if (replay.isEmpty()) return null;
+
+    List<CalcRequest> found=new ArrayList<CalcRequest>();
+    long cnt=0;
+    for (int y=y0; y<y0+dy; y++) {
+      for (CalcRequest r:replay.subMap(key(x0,y),key(x0+dx,y)).values()) {
+        if (r.getSX()+r.getNX()>x0+dx||r.getSY()+r.getNY()>y0+dy) {
+          return null;
+        }
+        found.add(r);
+        cnt+=(long)r.getNX()*r.getNY();
+      }
+    }
+    if (cnt!=(long)dx*dy) return null;
+
+    CalcRequest req;
+    if (found.size()==1) req=found.get(0);
+    else {
+      req=combine(found, x0, y0, dx, dy);
+      if (req==null) return null;
+    }
+    for (CalcRequest r:found) {
+      replay.remove(key(r.getSX(),r.getSY()));
+    }
+    return req;
+  }
+
+  private CalcRequest combine(List<CalcRequest> list,
+                              int x0, int y0, int dx, int dy)
+  {
+    CalcRequest req=new CalcRequest(spec, x0, y0, dx, dy);
+    boolean[] covered=new boolean[dx*dy];
+    IterationState state=null;
+    CalcRequest first=list.get(0);
+
+    req.createData();
+    req.setMinIt(first.getMinIt());
+    req.setMaxIt(first.getMaxIt());
+    for (CalcRequest r:list) {
+      for (int y=0; y<r.getNY(); y++) {
+        for (int x=0; x<r.getNX(); x++) {
+          int rx=r.getSX()+x-x0;
+          int ry=r.getSY()+y-y0;
+          if (covered[ry*dx+rx]) return null; // overlapping answers
+          covered[ry*dx+rx]=true;
+          req.setDataRel(rx, ry, r.getDataRel(x, y));
+        }
+      }
+      if (r.getMinIt()<req.getMinIt()) req.setMinIt(r.getMinIt());
+      if (r.getMaxIt()>req.getMaxIt()) req.setMaxIt(r.getMaxIt());
+      req.setNumIt(req.getNumIt()+r.getNumIt());
+      req.setMCnt(req.getMCnt()+r.getMCnt());
+      req.setCCnt(req.getCCnt()+r.getCCnt());
+      req.setMTime(req.getMTime()+r.getMTime());
+      if (r.getIterationState()!=null) {
+        if (state==null) {
+          state=new IterationState(r.getIterationState().getLimit());
+        }
+        state.add(r.getIterationState());
+      }
+    }
+    req.setIterationState(state);
+    return req;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // writing
+  ///////////////////////////////////////////////////////////////
+
+  private void start(long valid) throws IOException
+  {
+    if (valid>0) {
+      RandomAccessFile raf=new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(valid);
+      }
+      finally {
+        raf.close();
+      }
+    }
+    dos=new DataOutputStream(
+            new BufferedOutputStream(
+            new FileOutputStream(file, valid>0)));
+    if (valid==0) {
+      dos.write(getHeader());
+      dos.flush();
+    }
+    writer=new Writer();
+    writer.start();
+  }
+
+  /**
+   * Appends an answer to the journal. The answer must not be
+   * modified afterwards.
+   */
+  synchronized
+  public void add(CalcRequest req)
+  {
+    if (writer==null) return;
+    pending.add(req);
+    notify();
+  }
+
+  synchronized
+  private List<CalcRequest> next() throws InterruptedException
+  {
+    while (pending.isEmpty()) {
+      if (writer==null) return null;
+      wait();
+    }
+    List<CalcRequest> list=pending;
+    pending=new ArrayList<CalcRequest>();
+    return list;
+  }
+
+  /**
+   * Closes the journal after all pending answers are written.
+   * @param delete remove the journal file
+   */
+  public void close(boolean delete) throws IOException
+  {
+    Writer w;
+    synchronized (this) {
+      w=writer;
+      writer=null;
+      notify();
+    }
+    if (w!=null) {
+      try {
+        w.join();
+      }
+      catch (InterruptedException ex) {
+      }
+      dos.close();
+    }
+    if (delete) file.delete();
+    if (error!=null) throw error;
+  }
+
+  private class Writer extends Thread {
+
+    public Writer()
+    {
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      ByteArrayOutputStream bos=new ByteArrayOutputStream();
+      DataOutputStream rec=new DataOutputStream(bos);
+      List<CalcRequest> list;
+
+      try {
+        while ((list=next())!=null) {
+          if (error!=null) continue;
+          try {
+            for (CalcRequest req:list) {
+              bos.reset();
+              req.write(rec,CalcRequest.COMPACT,false);
+              rec.flush();
+              dos.writeInt(bos.size());
+              bos.writeTo(dos);
+            }
+            dos.flush();
+          }
+          catch (IOException io) {
+            System.err.println("*** "+file+": "+io);
+            error=io;
+          }
+        }
+      }
+      catch (InterruptedException ex) {
+      }
+    }
+  }
+}
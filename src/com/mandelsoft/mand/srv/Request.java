@@ -25,9 +25,15 @@ import com.mandelsoft.util.ChangeListener;
  */
 
 public interface Request {
+  static public final int PRIO_NORMAL = 0;
+  static public final int PRIO_HIGH   = 1; // images of the prio scanner
+
   void send(Server s);
 
   void addChangeListener(ChangeListener l);
   void removeChangeListener(ChangeListener l);
   void setPixelIterator(PixelIterator pi);
+
+  int  getPriority();
+  void setPriority(int prio);
 }
@@ -24,9 +24,10 @@ import com.mandelsoft.util.Queue;
  * @author Uwe Krüger
  */
 
-public class RequestBuffer<T> {
+public class RequestBuffer<T extends Request> {
   private Requests requests;
   private Done done;
+  private volatile int low; // low water mark of the requests
   private boolean log;
 
   public RequestBuffer()
@@ -66,18 +67,37 @@ public class RequestBuffer<T> {
     }
   }
 
-  synchronized
   public T getNextAction() throws InterruptedException
   {
+    return getNextAction(0,0);
+  }
+
+  /**
+   * Waits for a done request or until at most low requests are left.
+   * A timeout other than 0 limits the wait to timeout milli seconds.
+   * @return the done request or null if requests are required or
+   *         the timeout is over.
+   */
+  synchronized
+  public T getNextAction(int low, long timeout) throws InterruptedException
+  {
+    long end=System.currentTimeMillis()+timeout;
+
     log("get next action");
+    this.low=low;
     while (true) {
       log("  check done");
       T e=done.testAndPull();
       if (e!=null) return e;
       log("  check requests");
-      if (requests.isEmpty()) return null;
+      if (requests.size()<=low) return null;
       log("  wait for next action");
-      wait();
+      if (timeout==0) wait();
+      else {
+        long t=end-System.currentTimeMillis();
+        if (t<=0) return null;
+        wait(t);
+      }
     }
   }
 
@@ -90,7 +110,7 @@ public class RequestBuffer<T> {
     return e;
   }
 
-  public class Requests extends Queue<T> {
+  public class Requests extends RequestQueue<T> {
 
     private Requests()
     {
@@ -100,7 +120,7 @@ public class RequestBuffer<T> {
     public T pull() throws InterruptedException
     {
       T e=super.pull();
-      if (isEmpty()) donotify();
+      if (size()<=low) donotify();
       return e;
     }
 
@@ -108,15 +128,7 @@ public class RequestBuffer<T> {
     public boolean remove(Object o)
     {
       boolean e=super.remove(o);
-      if (isEmpty()) donotify();
-      return e;
-    }
-
-    @Override
-    public boolean removeAll(Collection<?> c)
-    {
-      boolean e=super.removeAll(c);
-      if (isEmpty()) donotify();
+      if (size()<=low) donotify();
       return e;
     }
 
@@ -124,7 +136,7 @@ public class RequestBuffer<T> {
     public T testAndPull()
     {
       T e=super.testAndPull();
-      if (isEmpty()) donotify();
+      if (size()<=low) donotify();
       return e;
     }
 
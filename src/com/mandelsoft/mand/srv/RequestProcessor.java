@@ -27,7 +27,7 @@ import com.mandelsoft.util.Queue;
 
 public class RequestProcessor {
   private RequestBuffer<CalcRequest> buffer;
-  private Queue<CalcRequest> queue;
+  private RequestQueue<CalcRequest> queue;
   private Queue<CalcRequest> done;
   private List<Worker> workers;
   private boolean log;
@@ -50,32 +50,54 @@ public class RequestProcessor {
     if (log) System.out.println(m);
   }
 
-  synchronized
   public void sendRequest(CalcRequest req)
   {
     queue.put(req);
   }
 
 
-  synchronized
+  /**
+   * Remove a request not yet processed.
+   * @return true if the request has been removed
+   */
+  public boolean cancelRequest(CalcRequest req)
+  {
+    return queue.remove(req);
+  }
+
   public void syncEmpty() throws InterruptedException
   {
     buffer.syncEmpty();
   }
 
-  synchronized
   public CalcRequest getNextAction() throws InterruptedException
   {
     return buffer.getNextAction();
   }
 
-  synchronized
+  /**
+   * Returns the next answer, or null if at most low requests
+   * are left or the timeout is over (see RequestBuffer).
+   */
+  public CalcRequest getNextAction(int low, long timeout)
+                     throws InterruptedException
+  {
+    return buffer.getNextAction(low, timeout);
+  }
+
+  /**
+   * Returns the number of requests not yet taken by a worker.
+   */
+  public int getPendingRequests()
+  {
+    return queue.size();
+  }
+
   public CalcRequest testAndGetAnswer()
   {
     return buffer.testAndGetDone();
   }
 
-  synchronized
   protected Queue<CalcRequest> getDoneView()
   {
     return done;
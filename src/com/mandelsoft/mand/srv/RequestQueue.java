@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand.srv;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.mandelsoft.util.Queue;
+
+/**
+ * Request queue without a global lock.
+ *
+ * Requests are kept in a lock-free deque per priority level
+ * ({@link Request#getPriority()}), higher priorities are served first and
+ * requests of the same priority in fifo order. To avoid the starvation of
+ * lower priorities, after {@link #FAIR_SHARE} requests served in favour of
+ * waiting lower priority requests the oldest request of the lowest waiting
+ * priority is served.
+ *
+ * Blocking consumers wait on a semaphore counting the queued requests.
+ * Requests removed by other means leave unused permits, which just cause
+ * an additional poll.
+ *
+ * @author Uwe Krueger
+ */
+public class RequestQueue<T extends Request> {
+  static public final int LEVELS=Request.PRIO_HIGH+1;
+  static public final int FAIR_SHARE=16;
+
+  private ConcurrentLinkedDeque<T>[] levels;
+  private AtomicInteger size;
+  private AtomicInteger preferred; // served in favour of lower priorities
+  private Semaphore available;
+
+  @SuppressWarnings({"unchecked","rawtypes"})
+  public RequestQueue()
+  {
+    levels=new ConcurrentLinkedDeque[LEVELS];
+    for (int i=0; i<LEVELS; i++) {
+      levels[i]=new ConcurrentLinkedDeque<T>();
+    }
+    size=new AtomicInteger();
+    preferred=new AtomicInteger();
+    available=new Semaphore(0);
+  }
+
+  static private int getLevel(Request r)
+  {
+    int p=r.getPriority();
+    if (p<0) return 0;
+    if (p>=LEVELS) return LEVELS-1;
+    return p;
+  }
+
+  public int size()
+  {
+    return Math.max(0, size.get());
+  }
+
+  public boolean isEmpty()
+  {
+    return size.get()<=0;
+  }
+
+  public void put(T e)
+  {
+    levels[getLevel(e)].addLast(e);
+    size.incrementAndGet();
+    available.release();
+  }
+
+  /**
+   * Put a request in front of all requests of its priority,
+   * used to repeat requests.
+   */
+  public void putTop(T e)
+  {
+    levels[getLevel(e)].addFirst(e);
+    size.incrementAndGet();
+    available.release();
+  }
+
+  public T pull() throws InterruptedException
+  {
+    while (true) {
+      available.acquire();
+      T e=poll();
+      if (e!=null) return e;
+    }
+  }
+
+  public T testAndPull()
+  {
+    T e=poll();
+    if (e!=null) available.tryAcquire();
+    return e;
+  }
+
+  public boolean remove(Object o)
+  {
+    if (!(o instanceof Request)) return false;
+    if (!levels[getLevel((Request)o)].remove(o)) {
+      // priority may have been changed after queueing
+      boolean found=false;
+      for (int i=0; i<LEVELS&&!found; i++) {
+        found=levels[i].remove(o);
+      }
+      if (!found) return false;
+    }
+    size.decrementAndGet();
+    available.tryAcquire();
+    return true;
+  }
+
+  public void clear()
+  {
+    while (testAndPull()!=null);
+  }
+
+  private T poll()
+  {
+    T e;
+
+    if (preferred.get()>=FAIR_SHARE) {
+      for (int i=0; i<LEVELS; i++) {
+        if ((e=levels[i].pollFirst())!=null) {
+          preferred.set(0);
+          size.decrementAndGet();
+          return e;
+        }
+      }
+    }
+    for (int i=LEVELS-1; i>=0; i--) {
+      if ((e=levels[i].pollFirst())!=null) {
+        if (waiting(i)) preferred.incrementAndGet();
+        else preferred.set(0);
+        size.decrementAndGet();
+        return e;
+      }
+    }
+    return null;
+  }
+
+  private boolean waiting(int level)
+  {
+    for (int i=0; i<level; i++) {
+      if (!levels[i].isEmpty()) return true;
+    }
+    return false;
+  }
+
+  ///////////////////////////////////////////////////////////////////////
+  // benchmark
+  ///////////////////////////////////////////////////////////////////////
+
+  static private class Producer extends Thread {
+    private CalcRequest[] reqs;
+    private RequestQueue<CalcRequest> rq;
+    private Queue<CalcRequest> q;
+
+    Producer(CalcRequest[] reqs,
+             RequestQueue<CalcRequest> rq, Queue<CalcRequest> q)
+    {
+      this.reqs=reqs;
+      this.rq=rq;
+      this.q=q;
+    }
+
+    @Override
+    public void run()
+    {
+      for (CalcRequest r:reqs) {
+        if (rq!=null) rq.put(r);
+        else q.put(r);
+      }
+    }
+  }
+
+  static private class Consumer extends Thread {
+    private int n;
+    private RequestQueue<CalcRequest> rq;
+    private Queue<CalcRequest> q;
+
+    Consumer(int n, RequestQueue<CalcRequest> rq, Queue<CalcRequest> q)
+    {
+      this.n=n;
+      this.rq=rq;
+      this.q=q;
+    }
+
+    @Override
+    public void run()
+    {
+      try {
+        while (n-->0) {
+          if (rq!=null) rq.pull();
+          else q.pull();
+        }
+      }
+      catch (InterruptedException ex) {
+      }
+    }
+  }
+
+  static private long bench(int threads, int n, boolean lockfree)
+                      throws InterruptedException
+  {
+    RequestQueue<CalcRequest> rq=lockfree?new RequestQueue<CalcRequest>():null;
+    Queue<CalcRequest> q=lockfree?null:new Queue<CalcRequest>();
+    Thread[] t=new Thread[2*threads];
+
+    for (int i=0; i<threads; i++) {
+      CalcRequest[] reqs=new CalcRequest[n];
+      for (int j=0; j<n; j++) {
+        reqs[j]=new CalcRequest();
+        reqs[j].setPriority(j%2==0?Request.PRIO_NORMAL:Request.PRIO_HIGH);
+      }
+      t[2*i]=new Consumer(n, rq, q);
+      t[2*i+1]=new Producer(reqs, rq, q);
+    }
+    long start=System.currentTimeMillis();
+    for (Thread th:t) th.start();
+    for (Thread th:t) th.join();
+    return System.currentTimeMillis()-start;
+  }
+
+  static public void main(String[] args) throws InterruptedException
+  {
+    int n=20000;
+
+    bench(4, n/10, true); // warm up
+    bench(4, n/10, false);
+    for (int threads=1; threads<=8; threads*=2) {
+      long tq=bench(threads, n, false);
+      long trq=bench(threads, n, true);
+      System.out.println(threads+" producers/consumers, "+n+
+                         " requests each: queue "+tq+"ms, request queue "+
+                         trq+"ms, gain "+(trq==0?"-":""+(tq/(double)trq)));
+    }
+  }
+}
@@ -16,21 +16,62 @@
  */
 package com.mandelsoft.mand.srv.tcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import com.mandelsoft.mand.srv.CalcRequest;
 import com.mandelsoft.mand.srv.RequestProcessor;
 
 /**
+ * Calculation client for the tcp request server.
+ *
+ * If the server supports protocol version 2 the client leases
+ * up to <code>lease</code> requests with a single round trip
+ * (option <code>-l</code>, default {@link Constants#LEASE}) and keeps them
+ * in the local request queue. The next lease is requested when only a
+ * quarter of a lease is left in the local queue, so that the workers do
+ * not wait for the round trip. If the server has no requests, this
+ * prefetch is suspended for the timeout reported by the server.
+ * The answers are collected and sent together when new requests are
+ * required, when a complete lease has been calculated or at the latest
+ * {@link #HOLD} milli seconds after the oldest of them has been leased,
+ * even if no further request is completed meanwhile.
+ * A lease size of 1 uses the request by request commands of version 1.
+ *
+ * Servers supporting protocol version 3 send the requests in the compact
+ * encoding of {@link CalcRequest}. Answers are always sent in the encoding
+ * of the request, so that older servers never see compact answers.
+ *
+ * Servers supporting protocol version 4 expect a heartbeat renewing the
+ * leases of all requests held by the client every {@link Constants#HEARTBEAT}
+ * milli seconds. Requests whose lease has been lost meanwhile are removed
+ * from the local queue, if their calculation has not yet been started.
+ *
+ * Servers supporting protocol version 6 are not polled when they are empty.
+ * Instead the client waits for requests with {@link Constants#REQ_WAIT}
+ * up to {@link Constants#MAX_WAIT} milli seconds, so that it is woken up
+ * as soon as new requests are queued. The client only waits if it does
+ * not hold any leases, otherwise answers calculated meanwhile could not
+ * be sent and the heartbeat would be blocked.
  *
  * @author Uwe Krüger
  */
 
 public class Client implements Constants, Runnable {
+  /**
+   * Maximal time answers are held after their lease, it is half of the
+   * minimal lease time of servers without lease renewal.
+   */
+  static public final long HOLD=TIMEOUT/2;
 
   private int MAX=30*60;
   private InetAddress host;
@@ -43,6 +84,16 @@ public class Client implements Constants, Runnable {
   private long cnt=0;
   private int version;
   private int servertimeout;
+  private int lease=LEASE;
+  private boolean leasing;
+  private int protocol=VERSION; // protocol version offered to the server
+  private List<CalcRequest> answers=new ArrayList<CalcRequest>();
+  private long first; // lease time of oldest answer
+  private long retry;  // no prefetch before, the server was empty
+  private Map<Long,CalcRequest> leased=new HashMap<Long,CalcRequest>();
+  private Map<Long,Long> leasetime=new HashMap<Long,Long>();
+  private boolean renewing=true;
+  private Heartbeat heartbeat;
   private boolean log=false;
   private boolean verb=true;
 
@@ -89,6 +140,20 @@ public class Client implements Constants, Runnable {
                    }
                    else throw new IllegalArgumentException("number of processors missing");
                    break;
+          case 'l': // lease size
+                   if (args.length>c) {
+                     try {
+                       lease=Integer.parseInt(args[c++]);
+                     }
+                     catch (Exception ex) {
+                       throw new IllegalArgumentException("lease size expected");
+                     }
+                     if (lease<1||lease>MAX_LEASE) {
+                       throw new IllegalArgumentException("lease size must be in 1.."+MAX_LEASE);
+                     }
+                   }
+                   else throw new IllegalArgumentException("lease size missing");
+                   break;
           default:
             throw new IllegalArgumentException("illegal option '"+opt+"'");
         }
@@ -98,15 +163,22 @@ public class Client implements Constants, Runnable {
   }
 
   public Client(InetAddress host, int port, int n)
+  {
+    this(host,port,n,LEASE);
+  }
+
+  public Client(InetAddress host, int port, int n, int lease)
   {
     this.host=host;
     this.port=port;
+    this.lease=lease;
     setup(n);
   }
 
   private void setup(int n)
   {
     proc=new RequestProcessor(n);
+    leasing=lease>1;
   }
 
   private void log(String m)
@@ -120,68 +192,344 @@ public class Client implements Constants, Runnable {
   }
 
   public void run()
-  { int sleep;
-
+  {
+    if (heartbeat==null) {
+      heartbeat=new Heartbeat();
+      heartbeat.start();
+    }
     do {
       CalcRequest req;
+      boolean get;
       try {
         log("next action");
-        req=proc.getNextAction();
-        log(req==null?"-> get next":"-> send answer");
+        int low=getLowWater();
+        req=proc.getNextAction(low, getHoldTime());
+        get=req==null&&proc.getPendingRequests()<=low;
+        log(req!=null?"-> send answer":get?"-> get next":"-> flush answers");
       }
       catch (InterruptedException ex) {
         return;
       }
+      if (leasing) process(req, get);
+      else processSingle(req);
+    }
+    while (true);
+  }
+
+  // number of local requests the next lease is requested at
+  private int getLowWater()
+  {
+    if (!leasing||System.currentTimeMillis()<retry) return 0;
+    return lease/4;
+  }
+
+  // time until the held answers must be sent, 0 for no answers
+  private long getHoldTime()
+  {
+    if (!leasing||answers.isEmpty()) return 0;
+    return Math.max(1, first+HOLD-System.currentTimeMillis());
+  }
+
+  /*
+   * version 1: one request or answer per round trip
+   */
+  private void processSingle(CalcRequest req)
+  { int sleep;
 
-      sleep=10;
-      do {
-        if (connect()) {
-          if (req==null) {
-            req=getRequest();
-            if (req!=null) {
-              sleep=0;
-              proc.sendRequest(req);
-            }
-            else {
-              sleep=servertimeout;
-            }
+    sleep=10;
+    do {
+      if (connect()) {
+        if (req==null&&version>=6) {
+          List<CalcRequest> reqs=waitRequests(1);
+          if (reqs!=null&&!reqs.isEmpty()) {
+            req=reqs.get(0);
+            proc.sendRequest(req);
+          }
+          sleep=reqs==null?servertimeout:0;
+        }
+        else if (req==null) {
+          req=getRequest();
+          if (req!=null) {
+            sleep=0;
+            proc.sendRequest(req);
           }
           else {
-            if (sendAnswer(req)) sleep=0;
-            else sleep=servertimeout;
+            sleep=servertimeout;
           }
         }
-        
-        if (sleep>0) {
-          if (req!=null || (req=proc.testAndGetAnswer())==null) {
-            try {
-              verb("sleep "+sleep);
-              Thread.sleep(sleep*1000);
-              sleep=sleep*2;
-              if (sleep>MAX) sleep=MAX;
-            }
-            catch (InterruptedException ex) {
-            }
+        else {
+          if (sendAnswer(req)) sleep=0;
+          else sleep=servertimeout;
+        }
+      }
+
+      if (sleep>0) {
+        if (req!=null || (req=proc.testAndGetAnswer())==null) {
+          try {
+            verb("sleep "+sleep);
+            Thread.sleep(sleep*1000);
+            sleep=sleep*2;
+            if (sleep>MAX) sleep=MAX;
+          }
+          catch (InterruptedException ex) {
           }
-          if (req!=null) verb("continue with "+req.getReqId());
         }
+        if (req!=null) verb("continue with "+req.getReqId());
       }
-      while (sleep>0);
     }
-    while (true);
+    while (sleep>0);
+  }
+
+  /*
+   * version 2: lease multiple requests and send multiple answers
+   * get is set if the local request queue has reached the low water mark
+   */
+  private void process(CalcRequest req, boolean get)
+  { int sleep;
+    boolean prefetch; // local requests are left
+
+    if (req!=null) {
+      addAnswer(req);
+      while ((req=proc.testAndGetAnswer())!=null) addAnswer(req);
+    }
+    if (!get) {
+      // hold answers until a lease is complete or they get too old
+      if (answers.isEmpty()) return;
+      if (answers.size()<lease &&
+          System.currentTimeMillis()-first<HOLD) return;
+    }
+    prefetch=get&&proc.getPendingRequests()>0;
+
+    sleep=10;
+    do {
+      if (connect()) {
+        if (!answers.isEmpty()) {
+          if (sendAnswers()) sleep=0;
+          else sleep=Math.max(servertimeout,1);
+        }
+        if (answers.isEmpty()&&get) {
+          List<CalcRequest> reqs=version>=6?waitRequests(lease):getRequests(lease);
+          if (reqs!=null&&!reqs.isEmpty()) {
+            sleep=0;
+            for (CalcRequest r:reqs) proc.sendRequest(r);
+          }
+          else if (prefetch) {
+            // continue with the local requests, without asking again
+            // before the server timeout
+            retry=System.currentTimeMillis()+Math.max(servertimeout,1)*1000L;
+            sleep=0;
+          }
+          else if (reqs!=null&&version>=6) {
+            sleep=0; // wait time is over, wait again
+          }
+          else {
+            sleep=servertimeout;
+          }
+        }
+        if (!leasing) {
+          // server does not support leases, fall back to version 1
+          for (CalcRequest r:answers) processSingle(r);
+          answers.clear();
+          if (get) processSingle(null);
+          return;
+        }
+      }
+
+      if (sleep>0) {
+        if ((req=proc.testAndGetAnswer())!=null) {
+          addAnswer(req);
+          verb("continue with "+req.getReqId());
+        }
+        else {
+          try {
+            verb("sleep "+sleep);
+            Thread.sleep(sleep*1000);
+            sleep=sleep*2;
+            if (sleep>MAX) sleep=MAX;
+          }
+          catch (InterruptedException ex) {
+          }
+        }
+      }
+    }
+    while (sleep>0);
+  }
+
+  synchronized
+  private void addAnswer(CalcRequest req)
+  {
+    Long t=leasetime.get(req.getReqId());
+    long l=t==null?System.currentTimeMillis():t;
+
+    if (answers.isEmpty()||l<first) first=l;
+    answers.add(req);
+  }
+
+  // leases are only changed holding the client lock
+  private void addLease(CalcRequest req)
+  {
+    leased.put(req.getReqId(),req);
+    leasetime.put(req.getReqId(),System.currentTimeMillis());
   }
 
+  private CalcRequest removeLease(long id)
+  {
+    leasetime.remove(id);
+    return leased.remove(id);
+  }
+
+  synchronized
+  private List<CalcRequest> getRequests(int size)
+  {  String stat;
+
+     try {
+       os.writeInt(REQ_LEASE);
+       os.writeInt(size);
+       os.flush();
+       stat=is.readUTF();
+       log("lease "+stat);
+       if (stat.equals(Constants.FOUND)) {
+         int n=is.readInt();
+         List<CalcRequest> reqs=new ArrayList<CalcRequest>(n);
+         while (n-->0) {
+           CalcRequest req=new CalcRequest();
+           req.read(is,false);
+           reqs.add(req);
+           addLease(req);
+         }
+         verb("got lease of "+reqs.size());
+         cnt+=reqs.size();
+         return reqs;
+       }
+       if (stat.equals(Constants.EMPTY)) {
+         servertimeout=is.readInt();
+       }
+       else {
+         unsupported(stat);
+       }
+     }
+     catch (IOException io) {
+       System.out.println("lease failed: "+io);
+       close();
+     }
+     return null;
+  }
+
+  /*
+   * version 6: the server replies when requests are available or the
+   * wait time is over. An empty reply is answered by the next wait
+   * without sleeping. With pending leases the server is polled.
+   */
+  synchronized
+  private List<CalcRequest> waitRequests(int size)
+  {  String stat;
+
+     if (!leased.isEmpty()) return getRequests(size);
+     try {
+       log("wait for requests");
+       os.writeInt(REQ_WAIT);
+       os.writeInt(size);
+       os.writeInt(MAX_WAIT);
+       os.flush();
+       stat=is.readUTF();
+       log("wait "+stat);
+       if (stat.equals(Constants.FOUND)) {
+         int n=is.readInt();
+         List<CalcRequest> reqs=new ArrayList<CalcRequest>(n);
+         while (n-->0) {
+           CalcRequest req=new CalcRequest();
+           req.read(is,false);
+           reqs.add(req);
+           addLease(req);
+         }
+         verb("got lease of "+reqs.size());
+         cnt+=reqs.size();
+         return reqs;
+       }
+       if (stat.equals(Constants.EMPTY)) {
+         servertimeout=is.readInt();
+         return new ArrayList<CalcRequest>();
+       }
+       unsupported(stat);
+     }
+     catch (IOException io) {
+       System.out.println("wait failed: "+io);
+       close();
+     }
+     return null;
+  }
+
+  synchronized
+  private boolean sendAnswers()
+  { String stat;
+
+    try {
+      verb("send "+answers.size()+" answers");
+      os.writeInt(REQ_ANSWERS);
+      os.writeInt(answers.size());
+      for (CalcRequest req:answers) {
+        writeAnswer(req);
+      }
+      os.flush();
+      stat=is.readUTF();
+      if (stat.equals(Constants.OK)) {
+        released(answers);
+        return true;
+      }
+      if (stat.equals(Constants.RESET)) {
+        // answers rejected, the server will repeat the requests
+        released(answers);
+        close();
+      }
+      else unsupported(stat);
+    }
+    catch (IOException io) {
+      System.out.println("put failed: "+io);
+      close();
+    }
+    return false;
+  }
+
+  private void released(List<CalcRequest> list)
+  {
+    for (CalcRequest req:list) {
+      removeLease(req.getReqId());
+    }
+    list.clear();
+  }
+
+  // answers use the encoding chosen by the server for the request
+  private void writeAnswer(CalcRequest req) throws IOException
+  {
+    if (req.getVersion()>=CalcRequest.COMPACT) {
+      req.write(os,CalcRequest.COMPACT,false);
+    }
+    else req.write(os,false);
+  }
+
+  // an old server accepts the version but rejects the commands
+  private void unsupported(String stat)
+  {
+    verb("leases not supported by server: "+stat);
+    leasing=false;
+    protocol=1;
+    close();
+  }
+
+  synchronized
   private CalcRequest getRequest()
   {  String stat;
 
      try {
        os.writeInt(REQ_GET);
+       os.flush();
        stat=is.readUTF();
        log("get "+stat);
        if (stat.equals(Constants.FOUND)) {
          CalcRequest req=new CalcRequest();
          req.read(is,false);
          verb("got "+req.getReqId());
+         addLease(req);
          cnt++;
 //         if (cnt%1000==0) {
 //           verb("request lost "+req.getReqId());
@@ -202,14 +550,17 @@ public class Client implements Constants, Runnable {
      return null;
   }
 
+  synchronized
   private boolean sendAnswer(CalcRequest req)
   { String stat;
 
     try {
       verb("send answer "+req.getReqId());
       os.writeInt(REQ_ANS);
-      req.write(os,false);
+      writeAnswer(req);
+      os.flush();
       stat=is.readUTF();
+      removeLease(req.getReqId());
       return true;
     }
     catch (IOException io) {
@@ -219,6 +570,7 @@ public class Client implements Constants, Runnable {
     }
   }
 
+  synchronized
   private boolean connect()
   {
     if (socket!=null) {
@@ -234,10 +586,11 @@ public class Client implements Constants, Runnable {
         verb("connecting "+host+" ...");
         socket=new Socket(host, port);
         try {
-          is=new DataInputStream(socket.getInputStream());
-          os=new DataOutputStream(socket.getOutputStream());
+          is=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+          os=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
           os.writeUTF(PROTOCOL);
-          os.writeInt(VERSION);
+          os.writeInt(protocol);
+          os.flush();
           String stat=is.readUTF();
           if (!stat.equals(OK)) {
             System.out.println(stat);
@@ -245,6 +598,7 @@ public class Client implements Constants, Runnable {
           }
           version=is.readInt();
           log("protocol version is "+version);
+          if (version<2) leasing=false;
         }
         catch (IOException ex) {
           if (is!=null) is.close();
@@ -268,6 +622,7 @@ public class Client implements Constants, Runnable {
     close("");
   }
 
+  synchronized
   private void close(String msg)
   {
     verb("close "+msg);
@@ -286,6 +641,67 @@ public class Client implements Constants, Runnable {
     socket=null;
   }
 
+  /////////////////////////////////////////////////////////////////////////
+  // lease renewal
+  /////////////////////////////////////////////////////////////////////////
+
+  synchronized
+  private void renew()
+  { String stat;
+
+    if (socket==null||version<4||!renewing||leased.isEmpty()) return;
+    try {
+      log("renew "+leased.size()+" leases");
+      os.writeInt(REQ_RENEW);
+      os.writeInt(leased.size());
+      for (long id:leased.keySet()) {
+        os.writeLong(id);
+      }
+      os.flush();
+      stat=is.readUTF();
+      if (stat.equals(Constants.OK)) {
+        int n=is.readInt();
+        while (n-->0) {
+          CalcRequest req=removeLease(is.readLong());
+          if (req!=null&&proc.cancelRequest(req)) {
+            verb("cancel "+req.getReqId());
+          }
+        }
+      }
+      else {
+        verb("renewal not supported by server: "+stat);
+        renewing=false;
+        close();
+      }
+    }
+    catch (IOException io) {
+      System.out.println("renew failed: "+io);
+      close();
+    }
+  }
+
+  private class Heartbeat extends Thread {
+
+    public Heartbeat()
+    {
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      while (true) {
+        try {
+          sleep(HEARTBEAT);
+        }
+        catch (InterruptedException ex) {
+          return;
+        }
+        renew();
+      }
+    }
+  }
+
   static public void main(String[] args)
   {
     try {
@@ -26,7 +26,7 @@ import java.io.IOException;
  */
 
 public class ClientData {
-  public static final int VERSION=1;
+  public static final int VERSION=2;
 
   private String host;
   private Statistic stat;
@@ -65,6 +65,11 @@ public class ClientData {
     stat.requestDone();
   }
 
+  protected synchronized void cancelRequest()
+  {
+    stat.cancelRequest();
+  }
+
   protected synchronized void removeConnection()
   {
     stat.removeConnection();
@@ -116,6 +121,16 @@ public class ClientData {
     return stat.getLastConnected();
   }
 
+  public synchronized long getDuplicates()
+  {
+    return stat.getDuplicates();
+  }
+
+  public synchronized long getLastDuplicate()
+  {
+    return stat.getLastDuplicate();
+  }
+
   public synchronized long getErrors()
   {
     return stat.getErrors();
@@ -141,6 +156,11 @@ public class ClientData {
     stat.addRequest();
   }
 
+  protected synchronized void addDuplicate()
+  {
+    stat.addDuplicate();
+  }
+
   protected synchronized void addError()
   {
     stat.addError();
@@ -167,16 +187,18 @@ public class ClientData {
               throws IOException
   {
     switch (v) {
-       case 1: dos.writeInt(v);
-               writeV1(dos);
+       case 1:
+       case 2: dos.writeInt(v);
+               writeV1(dos,v);
                break;
       default: throw new IOException("unknown host info version "+v);
     }
   }
 
-  private void writeV1(DataOutputStream dos) throws IOException
+  // the statistic is written with the same version
+  private void writeV1(DataOutputStream dos, int v) throws IOException
   {
-    stat.write(dos);
+    stat.write(dos,v);
     dos.writeUTF(host);
     dos.writeBoolean(active);
   }
@@ -185,7 +207,8 @@ public class ClientData {
   {
     int version=dis.readInt();
     switch (version) {
-      case 1: readV1(dis);
+      case 1:
+      case 2: readV1(dis);
               break;
       default: throw new IOException("unknown host data version "+version);
     }
@@ -24,17 +24,38 @@ package com.mandelsoft.mand.srv.tcp;
 public interface Constants {
   static public final int PORT = 8181;
   static public final String PROTOCOL = "MandelRequestProtocol";
-  static public final int VERSION = 1;
+  static public final int VERSION = 6; // 3: compact calc requests
+                                       // 4: lease renewal
+                                       // 5: metrics in server info
+                                       // 6: waiting for requests,
+                                       //    speculation metrics
   //static public final int TIMEOUT = 20*60*1000;
   static public final int TIMEOUT = 60*1000;
-  static public final int TIMEOUTSLEEP = TIMEOUT/2;
+  static public final int TIMEOUTSLEEP = 10*1000;
+  static public final int HEARTBEAT = 10*1000;         // lease renewal period
+  static public final int RENEW_TIMEOUT = 3*HEARTBEAT; // renewed lease
+  static public final int SPECULATION_AGE = 5*1000; // minimal age of a
+                                                    // lease to be duplicated
+  static public final int MAX_WAIT = 5*60*1000; // maximal wait for requests
 
   static public final int REQ_STAT = 0;
   static public final int REQ_GET  = 1;
   static public final int REQ_ANS  = 2;
+  // version 2
+  static public final int REQ_LEASE   = 3; // get multiple requests
+  static public final int REQ_ANSWERS = 4; // send multiple answers
+  // version 4
+  static public final int REQ_RENEW   = 5; // renew leases
+  // version 6
+  static public final int REQ_WAIT    = 6; // lease, waiting for requests
+
+  static public final int LEASE = 16;      // default lease size of clients
+  static public final int MAX_LEASE = 256;
+  static public final int MAX_RENEW = 64*1024;
 
   static public final int MODE_CLIENTS  = 0x01;
   static public final int MODE_IMAGES   = 0x02;
+  static public final int MODE_METRICS  = 0x04;
   static public final int MODE_ALL      = 0xFFFF;
 
   static public final String OK = "OK";
@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand.srv.tcp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with a bounded relative error
+ * in the style of HDR histograms.
+ *
+ * Values below 2*{@link #SUB_BUCKETS} are counted exactly, larger values
+ * in {@link #SUB_BUCKETS} linear sub buckets per power of two, so the
+ * relative error of a reported value is below 1/{@link #SUB_BUCKETS}.
+ * Recording a value is lock-free and does not allocate any memory.
+ *
+ * @author Uwe Krueger
+ */
+public class Histogram {
+  static public final int VERSION=1;
+
+  static public final int SUB_BITS=4;
+  static public final int SUB_BUCKETS=1<<SUB_BITS;
+
+  static private final int LINEAR=2*SUB_BUCKETS;
+  static private final int BUCKETS=LINEAR+(63-SUB_BITS-1)*SUB_BUCKETS;
+
+  private String name;
+  private AtomicLongArray counts;
+  private AtomicLong count;
+  private AtomicLong sum;
+  private AtomicLong max;
+
+  public Histogram()
+  {
+    this("");
+  }
+
+  public Histogram(String name)
+  {
+    this.name=name;
+    this.counts=new AtomicLongArray(BUCKETS);
+    this.count=new AtomicLong();
+    this.sum=new AtomicLong();
+    this.max=new AtomicLong();
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  static private int getIndex(long v)
+  {
+    if (v<LINEAR) return (int)v;
+    int shift=63-Long.numberOfLeadingZeros(v)-SUB_BITS;
+    return LINEAR+(shift-1)*SUB_BUCKETS+(int)(v>>shift)-SUB_BUCKETS;
+  }
+
+  // highest value counted by a bucket
+  static private long getValue(int ix)
+  {
+    if (ix<LINEAR) return ix;
+    int shift=(ix-LINEAR)/SUB_BUCKETS+1;
+    long sub=(ix-LINEAR)%SUB_BUCKETS+SUB_BUCKETS;
+    return ((sub+1)<<shift)-1;
+  }
+
+  public void record(long v)
+  {
+    if (v<0) v=0;
+    counts.incrementAndGet(getIndex(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    long m;
+    while (v>(m=max.get())&&!max.compareAndSet(m, v));
+  }
+
+  public long getCount()
+  {
+    return count.get();
+  }
+
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  public double getMean()
+  {
+    long n=count.get();
+    return n==0?0:sum.get()/(double)n;
+  }
+
+  /**
+   * Returns the value below or equal to which the given percentage
+   * of all recorded values is found.
+   */
+  public long getPercentile(double p)
+  {
+    long n=count.get();
+    if (n==0) return 0;
+    long limit=Math.max(1, (long)Math.ceil(n*p/100));
+    long c=0;
+    for (int i=0; i<BUCKETS; i++) {
+      c+=counts.get(i);
+      if (c>=limit) return Math.min(getValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "n="+getCount()+" mean="+Math.round(getMean())+
+           " p50="+getPercentile(50)+" p90="+getPercentile(90)+
+           " p99="+getPercentile(99)+" max="+getMax();
+  }
+
+  /**
+   * Prints the non-empty buckets with their upper bound,
+   * count and cumulated percentage.
+   */
+  public void print(PrintStream ps)
+  {
+    long n=count.get();
+    long c=0;
+
+    ps.println(name+": "+this);
+    for (int i=0; i<BUCKETS; i++) {
+      long b=counts.get(i);
+      if (b==0) continue;
+      c+=b;
+      ps.println("  "+getValue(i)+"\t"+b+"\t"+
+                 String.format("%.3f", c*100.0/n));
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // io
+  ///////////////////////////////////////////////////////////////
+
+  public void write(DataOutputStream dos) throws IOException
+  {
+    write(dos,VERSION);
+  }
+
+  public void write(DataOutputStream dos, int v) throws IOException
+  {
+    switch (v) {
+       case 1: dos.writeInt(v);
+               writeV1(dos);
+               break;
+      default: throw new IOException("unknown histogram version "+v);
+    }
+  }
+
+  // sparse list of buckets
+  private void writeV1(DataOutputStream dos) throws IOException
+  {
+    int n=0;
+
+    dos.writeUTF(name);
+    dos.writeLong(count.get());
+    dos.writeLong(sum.get());
+    dos.writeLong(max.get());
+    for (int i=0; i<BUCKETS; i++) {
+      if (counts.get(i)!=0) n++;
+    }
+    dos.writeInt(n);
+    for (int i=0; i<BUCKETS&&n>0; i++) {
+      long b=counts.get(i);
+      if (b!=0) {
+        dos.writeShort(i);
+        dos.writeLong(b);
+        n--;
+      }
+    }
+    while (n-->0) { // buckets filled meanwhile
+      dos.writeShort(0);
+      dos.writeLong(0);
+    }
+  }
+
+  public void read(DataInputStream dis) throws IOException
+  {
+    int v=dis.readInt();
+    switch (v) {
+      case 1: readV1(dis);
+              break;
+      default: throw new IOException("unknown histogram version "+v);
+    }
+  }
+
+  private void readV1(DataInputStream dis) throws IOException
+  {
+    name=dis.readUTF();
+    count.set(dis.readLong());
+    sum.set(dis.readLong());
+    max.set(dis.readLong());
+    for (int i=0; i<BUCKETS; i++) counts.set(i, 0);
+    int n=dis.readInt();
+    while (n-->0) {
+      int i=dis.readUnsignedShort();
+      long b=dis.readLong();
+      if (i>=BUCKETS) throw new IOException("illegal histogram bucket "+i);
+      counts.addAndGet(i, b);
+    }
+  }
+}
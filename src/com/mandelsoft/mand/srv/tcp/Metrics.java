@@ -0,0 +1,568 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.mandelsoft.mand.srv.tcp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Operational metrics of a request server.
+ *
+ * Event counters and latency histograms are updated lock-free by the
+ * protocol handlers. The queue depth, the number of active requests and
+ * connections are sampled periodically together with the counters, the
+ * last {@link #MAX_SAMPLES} samples are kept as time series. Per client
+ * the number of answers and calculated pixels is counted.
+ *
+ * Metrics are transferred as part of the {@link ServerInfo} and can be
+ * printed as a report. Samples can additionally be appended to a local
+ * file as tab separated lines for offline analysis.
+ *
+ * @author Uwe Krueger
+ */
+public class Metrics {
+  static public final int VERSION=2;
+  static public final int MAX_SAMPLES=360;
+
+  private long start;
+  private Histogram wait;     // time in queue until first lease
+  private Histogram latency;  // lease until answer
+  private Histogram calc;     // calculation time reported by the client
+  private AtomicLong answers;
+  private AtomicLong pixels;
+  private AtomicLong numit;
+  private AtomicLong requeued;
+  private AtomicLong speculated; // speculative copies of leased requests
+  private AtomicLong discarded;  // answers of cancelled copies
+  private ConcurrentHashMap<String,ClientMetrics> clients;
+  private LinkedList<Sample> samples;
+
+  private File dump;
+
+  public Metrics()
+  {
+    start=System.currentTimeMillis();
+    wait=new Histogram("queue wait (ms)");
+    latency=new Histogram("request latency (ms)");
+    calc=new Histogram("calculation time (ms)");
+    answers=new AtomicLong();
+    pixels=new AtomicLong();
+    numit=new AtomicLong();
+    requeued=new AtomicLong();
+    speculated=new AtomicLong();
+    discarded=new AtomicLong();
+    clients=new ConcurrentHashMap<String,ClientMetrics>();
+    samples=new LinkedList<Sample>();
+  }
+
+  public Metrics(DataInputStream dis) throws IOException
+  {
+    this();
+    read(dis);
+  }
+
+  /**
+   * Sets a file samples are appended to.
+   */
+  public void setDumpFile(File dump)
+  {
+    this.dump=dump;
+  }
+
+  public long getStartTime()
+  {
+    return start;
+  }
+
+  public Histogram getQueueWait()
+  {
+    return wait;
+  }
+
+  public Histogram getLatency()
+  {
+    return latency;
+  }
+
+  public Histogram getCalculationTime()
+  {
+    return calc;
+  }
+
+  public long getAnswers()
+  {
+    return answers.get();
+  }
+
+  public long getPixels()
+  {
+    return pixels.get();
+  }
+
+  public long getNumIt()
+  {
+    return numit.get();
+  }
+
+  public long getRequeued()
+  {
+    return requeued.get();
+  }
+
+  public long getSpeculated()
+  {
+    return speculated.get();
+  }
+
+  public long getDiscarded()
+  {
+    return discarded.get();
+  }
+
+  public Collection<ClientMetrics> getClients()
+  {
+    return Collections.unmodifiableCollection(
+                  new TreeMap<String,ClientMetrics>(clients).values());
+  }
+
+  synchronized
+  public List<Sample> getSamples()
+  {
+    return new ArrayList<Sample>(samples);
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // recording
+  ///////////////////////////////////////////////////////////////
+
+  protected void addLease(long queued)
+  {
+    wait.record(queued);
+  }
+
+  protected void addRequeue()
+  {
+    requeued.incrementAndGet();
+  }
+
+  protected void addSpeculation()
+  {
+    speculated.incrementAndGet();
+  }
+
+  protected void addDiscarded()
+  {
+    discarded.incrementAndGet();
+  }
+
+  protected void addAnswer(String host, long leased, long px, long it,
+                           long mtime)
+  {
+    long cur=System.currentTimeMillis();
+
+    latency.record(cur-leased);
+    calc.record(mtime);
+    answers.incrementAndGet();
+    pixels.addAndGet(px);
+    numit.addAndGet(it);
+
+    ClientMetrics c=clients.get(host);
+    if (c==null) {
+      c=new ClientMetrics(host, cur);
+      ClientMetrics o=clients.putIfAbsent(host, c);
+      if (o!=null) c=o;
+    }
+    c.add(px, cur);
+  }
+
+  /**
+   * Takes a sample of the current state and appends it to the dump file.
+   */
+  protected void sample(int queued, int active, int connections,
+                        long timeouts, long duplicates)
+  {
+    Sample s=new Sample(System.currentTimeMillis(),queued,active,connections,
+                        answers.get(),pixels.get(),timeouts,duplicates,
+                        latency.getPercentile(50),latency.getPercentile(99));
+    Sample last;
+    synchronized (this) {
+      last=samples.isEmpty()?null:samples.getLast();
+      samples.add(s);
+      if (samples.size()>MAX_SAMPLES) samples.removeFirst();
+    }
+    if (dump!=null) {
+      try {
+        boolean header=!dump.exists();
+        PrintStream ps=new PrintStream(new FileOutputStream(dump, true));
+        try {
+          if (header) ps.println(Sample.HEADER);
+          ps.println(s.toString(last));
+        }
+        finally {
+          ps.close();
+        }
+      }
+      catch (IOException io) {
+        System.err.println("*** cannot dump metrics: "+io);
+      }
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // report
+  ///////////////////////////////////////////////////////////////
+
+  public void print(PrintStream ps)
+  {
+    long up=System.currentTimeMillis()-start;
+
+    ps.println("metrics since "+new Date(start));
+    ps.println("answers:  "+answers.get()+" ("+rate(answers.get(), up)+"/s)");
+    ps.println("pixels:   "+pixels.get()+" ("+rate(pixels.get(), up)+"/s)");
+    ps.println("numit:    "+numit.get());
+    ps.println("requeued: "+requeued.get());
+    ps.println("speculated: "+speculated.get()+
+               " (discarded "+discarded.get()+")");
+    wait.print(ps);
+    latency.print(ps);
+    calc.print(ps);
+    ps.println("clients");
+    for (ClientMetrics c:getClients()) {
+      ps.println("  "+c);
+    }
+    ps.println("samples");
+    ps.println(Sample.HEADER);
+    Sample last=null;
+    for (Sample s:getSamples()) {
+      ps.println(s.toString(last));
+      last=s;
+    }
+  }
+
+  static private long rate(long n, long ms)
+  {
+    return ms<=0?0:n*1000/ms;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // io
+  ///////////////////////////////////////////////////////////////
+
+  public void write(DataOutputStream dos) throws IOException
+  {
+    write(dos,VERSION);
+  }
+
+  public void write(DataOutputStream dos, int v) throws IOException
+  {
+    switch (v) {
+       case 1: dos.writeInt(v);
+               writeV1(dos);
+               break;
+       case 2: dos.writeInt(v);
+               writeV1(dos);
+               writeV2(dos);
+               break;
+      default: throw new IOException("unknown metrics version "+v);
+    }
+  }
+
+  private void writeV1(DataOutputStream dos) throws IOException
+  {
+    dos.writeLong(start);
+    dos.writeLong(answers.get());
+    dos.writeLong(pixels.get());
+    dos.writeLong(numit.get());
+    dos.writeLong(requeued.get());
+    wait.write(dos);
+    latency.write(dos);
+    calc.write(dos);
+
+    Collection<ClientMetrics> list=getClients();
+    dos.writeInt(list.size());
+    for (ClientMetrics c:list) {
+      c.write(dos);
+    }
+    List<Sample> s=getSamples();
+    dos.writeInt(s.size());
+    for (Sample e:s) {
+      e.write(dos);
+    }
+  }
+
+  private void writeV2(DataOutputStream dos) throws IOException
+  {
+    dos.writeLong(speculated.get());
+    dos.writeLong(discarded.get());
+  }
+
+  public void read(DataInputStream dis) throws IOException
+  {
+    int v=dis.readInt();
+    switch (v) {
+      case 1: readV1(dis);
+              break;
+      case 2: readV1(dis);
+              readV2(dis);
+              break;
+      default: throw new IOException("unknown metrics version "+v);
+    }
+  }
+
+  private void readV1(DataInputStream dis) throws IOException
+  {
+    start=dis.readLong();
+    answers.set(dis.readLong());
+    pixels.set(dis.readLong());
+    numit.set(dis.readLong());
+    requeued.set(dis.readLong());
+    wait.read(dis);
+    latency.read(dis);
+    calc.read(dis);
+
+    clients.clear();
+    int n=dis.readInt();
+    while (n-->0) {
+      ClientMetrics c=new ClientMetrics(dis);
+      clients.put(c.getHost(), c);
+    }
+    synchronized (this) {
+      samples.clear();
+      n=dis.readInt();
+      while (n-->0) {
+        samples.add(new Sample(dis));
+      }
+    }
+  }
+
+  private void readV2(DataInputStream dis) throws IOException
+  {
+    speculated.set(dis.readLong());
+    discarded.set(dis.readLong());
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // clients
+  ///////////////////////////////////////////////////////////////
+
+  static public class ClientMetrics {
+    private String host;
+    private long answers;
+    private long pixels;
+    private long first;
+    private long last;
+
+    private ClientMetrics(String host, long first)
+    {
+      this.host=host;
+      this.first=first;
+      this.last=first;
+    }
+
+    private ClientMetrics(DataInputStream dis) throws IOException
+    {
+      host=dis.readUTF();
+      answers=dis.readLong();
+      pixels=dis.readLong();
+      first=dis.readLong();
+      last=dis.readLong();
+    }
+
+    synchronized
+    private void add(long px, long time)
+    {
+      answers++;
+      pixels+=px;
+      last=time;
+    }
+
+    public String getHost()
+    {
+      return host;
+    }
+
+    synchronized
+    public long getAnswers()
+    {
+      return answers;
+    }
+
+    synchronized
+    public long getPixels()
+    {
+      return pixels;
+    }
+
+    /**
+     * Returns the pixels per second between the first and the last answer.
+     */
+    synchronized
+    public long getThroughput()
+    {
+      return rate(pixels, last-first);
+    }
+
+    synchronized
+    private void write(DataOutputStream dos) throws IOException
+    {
+      dos.writeUTF(host);
+      dos.writeLong(answers);
+      dos.writeLong(pixels);
+      dos.writeLong(first);
+      dos.writeLong(last);
+    }
+
+    @Override
+    synchronized
+    public String toString()
+    {
+      return host+": "+answers+" answers, "+pixels+" pixels, "+
+             getThroughput()+" pixels/s";
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // samples
+  ///////////////////////////////////////////////////////////////
+
+  static public class Sample {
+    static public final String HEADER="time\tqueued\tactive\tconnections\t"+
+                     "answers\tpixels\ttimeouts\tduplicates\tpixels/s\t"+
+                     "p50 latency\tp99 latency";
+
+    private long time;
+    private int queued;
+    private int active;
+    private int connections;
+    private long answers;
+    private long pixels;
+    private long timeouts;
+    private long duplicates;
+    private long p50;
+    private long p99;
+
+    private Sample(long time, int queued, int active, int connections,
+                   long answers, long pixels, long timeouts, long duplicates,
+                   long p50, long p99)
+    {
+      this.time=time;
+      this.queued=queued;
+      this.active=active;
+      this.connections=connections;
+      this.answers=answers;
+      this.pixels=pixels;
+      this.timeouts=timeouts;
+      this.duplicates=duplicates;
+      this.p50=p50;
+      this.p99=p99;
+    }
+
+    private Sample(DataInputStream dis) throws IOException
+    {
+      time=dis.readLong();
+      queued=dis.readInt();
+      active=dis.readInt();
+      connections=dis.readInt();
+      answers=dis.readLong();
+      pixels=dis.readLong();
+      timeouts=dis.readLong();
+      duplicates=dis.readLong();
+      p50=dis.readLong();
+      p99=dis.readLong();
+    }
+
+    private void write(DataOutputStream dos) throws IOException
+    {
+      dos.writeLong(time);
+      dos.writeInt(queued);
+      dos.writeInt(active);
+      dos.writeInt(connections);
+      dos.writeLong(answers);
+      dos.writeLong(pixels);
+      dos.writeLong(timeouts);
+      dos.writeLong(duplicates);
+      dos.writeLong(p50);
+      dos.writeLong(p99);
+    }
+
+    public long getTime()
+    {
+      return time;
+    }
+
+    public int getQueued()
+    {
+      return queued;
+    }
+
+    public int getActive()
+    {
+      return active;
+    }
+
+    public int getConnections()
+    {
+      return connections;
+    }
+
+    public long getAnswers()
+    {
+      return answers;
+    }
+
+    public long getPixels()
+    {
+      return pixels;
+    }
+
+    public long getTimeouts()
+    {
+      return timeouts;
+    }
+
+    public long getDuplicates()
+    {
+      return duplicates;
+    }
+
+    /**
+     * Returns the line of this sample, the pixel rate is determined
+     * from the previous sample.
+     */
+    public String toString(Sample prev)
+    {
+      long rate=prev==null?0:rate(pixels-prev.pixels, time-prev.time);
+      return time+"\t"+queued+"\t"+active+"\t"+connections+"\t"+
+             answers+"\t"+pixels+"\t"+timeouts+"\t"+duplicates+"\t"+
+             rate+"\t"+p50+"\t"+p99;
+    }
+  }
+}
@@ -16,38 +16,88 @@
  */
 package com.mandelsoft.mand.srv.tcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import com.mandelsoft.mand.MandelFileName;
 import com.mandelsoft.mand.srv.AbstractServer;
 import com.mandelsoft.mand.srv.CalcRequest;
 import com.mandelsoft.mand.srv.ImageData;
+import com.mandelsoft.mand.srv.RequestQueue;
 import com.mandelsoft.util.Queue;
 
 /**
+ * Request server for the tcp calculation farm.
+ *
+ * By default every client connection is served by a dedicated thread
+ * using a blocking socket. With option <code>-n &lt;threads&gt;</code>
+ * the server uses a single selector thread for all connections and
+ * executes the protocol commands on a fixed thread pool, so that
+ * thousands of idle worker connections do not require any thread.
+ * Both modes use the same wire protocol.
+ *
+ * If the request queue is empty, idle clients get speculative copies of
+ * the oldest outstanding requests (see {@link ActiveList#speculate}).
+ * The first answer is used, the other leases of the request are
+ * cancelled and their answers are silently discarded.
+ *
+ * Clients supporting protocol version 6 do not poll an empty server.
+ * They wait for requests with {@link Constants#REQ_WAIT}: the reply is
+ * deferred until requests are queued or the wait time is over. A waiting
+ * connection is parked as a {@link Waiter}, so that an idle server does
+ * neither poll nor keep a thread busy in the non-blocking mode.
+ *
+ * The server collects {@link Metrics}, which are reported to
+ * {@link ServerQuery} and with option <code>-m &lt;file&gt;</code>
+ * sampled into a local file.
  *
  * @author Uwe Krüger
  */
 public class Server extends AbstractServer implements Constants, Runnable {
 
   private ServerSocket socket;
-  private volatile Queue<CalcRequest> requests;
+  private ServerSocketChannel channel;
+  private Selector selector;
+  private ExecutorService pool;
+  private volatile RequestQueue<CalcRequest> requests;
   private volatile Queue<CalcRequest> done;
   private volatile ActiveList active;
   private Handler handler;
   private Timeout timeout;
   private Thread server;
   private volatile StatisticHandler stat;
+  private Metrics metrics;
+  private Map<Long,Long> queued; // queue time of requests not yet leased
+  private ConcurrentLinkedQueue<Waiter> waiting; // clients waiting for
+                                                 // requests
 
   private boolean log=false;
   private boolean verb=true;
@@ -55,6 +105,8 @@ public class Server extends AbstractServer implements Constants, Runnable {
   public Server(String[] args) throws IOException
   {
     int port=PORT;
+    int threads=0;
+    File dump=null;
     int c=0;
 
     while (args.length>c&&args[c].charAt(0)=='-') {
@@ -73,33 +125,79 @@ public class Server extends AbstractServer implements Constants, Runnable {
                    }
                    else throw new IllegalArgumentException("port missing");
                    break;
+          case 'n': // non-blocking io with thread pool
+                   if (args.length>c) {
+                     try {
+                       threads=Integer.parseInt(args[c++]);
+                     }
+                     catch (Exception ex) {
+                       throw new IllegalArgumentException("thread count expected");
+                     }
+                     if (threads<=0) threads=Runtime.getRuntime().availableProcessors();
+                   }
+                   else throw new IllegalArgumentException("thread count missing");
+                   break;
+          case 'm': // metrics dump file
+                   if (args.length>c) {
+                     dump=new File(args[c++]);
+                   }
+                   else throw new IllegalArgumentException("metrics file missing");
+                   break;
           default:
             throw new IllegalArgumentException("illegal option '"+opt+"'");
         }
       }
     }
-    setup(true,port);
+    setup(true,port,threads);
+    metrics.setDumpFile(dump);
   }
 
   public Server(boolean run) throws IOException
   {
-    setup(run,PORT);
+    setup(run,PORT,0);
   }
 
   public Server(boolean run, int port) throws IOException
   {
-    setup(run,port);
+    setup(run,port,0);
+  }
+
+  /**
+   * Create a server.
+   * @param run    start the connection handling in a separate thread
+   * @param port   server port
+   * @param threads  size of the thread pool used for non-blocking io,
+   *                 0 uses one blocking thread per connection
+   */
+  public Server(boolean run, int port, int threads) throws IOException
+  {
+    setup(run,port,threads);
   }
 
-  private void setup(boolean run,int port) throws IOException
+  private void setup(boolean run,int port, int threads) throws IOException
   {
     stat=new StatisticHandler(20);
-    requests=new Queue<CalcRequest>();
+    metrics=new Metrics();
+    queued=new ConcurrentHashMap<Long,Long>();
+    waiting=new ConcurrentLinkedQueue<Waiter>();
+    requests=new RequestQueue<CalcRequest>();
     done=new Queue<CalcRequest>();
     active=new ActiveList();
 
-    System.out.println("starting server at "+port);
-    socket=new ServerSocket(port);
+    if (threads>0) {
+      System.out.println("starting non-blocking server at "+port+
+                         " ("+threads+" threads)");
+      pool=Executors.newFixedThreadPool(threads);
+      selector=Selector.open();
+      channel=ServerSocketChannel.open();
+      channel.socket().bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    else {
+      System.out.println("starting server at "+port);
+      socket=new ServerSocket(port);
+    }
 
     handler=new Handler();
     handler.start();
@@ -121,10 +219,59 @@ public class Server extends AbstractServer implements Constants, Runnable {
     if (verb) System.out.println(m);
   }
 
+  public Metrics getMetrics()
+  {
+    return metrics;
+  }
+
   synchronized
   public void sendRequest(CalcRequest req)
   {
+    queued.put(req.getReqId(), System.currentTimeMillis());
     requests.put(req);
+    wakeup();
+  }
+
+  private void leased(CalcRequest req)
+  {
+    Long t=queued.remove(req.getReqId());
+    if (t!=null) metrics.addLease(System.currentTimeMillis()-t);
+  }
+
+  private void requeue(CalcRequest req)
+  {
+    metrics.addRequeue();
+    requests.putTop(req);
+    wakeup();
+  }
+
+  /*
+   * Wake up all waiting clients. Clients not getting requests
+   * are parked again, therefore the queue is drained before waking
+   * them up.
+   */
+  private void wakeup()
+  {
+    List<Waiter> list=new ArrayList<Waiter>();
+    Waiter w;
+    while ((w=waiting.poll())!=null) {
+      list.add(w);
+    }
+    for (Waiter l:list) {
+      l.wakeup();
+    }
+  }
+
+  /*
+   * Wake up clients whose wait time is over.
+   */
+  private void expireWaiters(long cur)
+  {
+    Iterator<Waiter> i=waiting.iterator();
+    while (i.hasNext()) {
+      Waiter w=i.next();
+      if (w.getDeadline()<=cur&&waiting.remove(w)) w.wakeup();
+    }
   }
 
   synchronized
@@ -160,6 +307,10 @@ public class Server extends AbstractServer implements Constants, Runnable {
 
   public void run()
   {
+    if (selector!=null) {
+      select();
+      return;
+    }
     do {
       try {
         Socket client=socket.accept();
@@ -173,7 +324,312 @@ public class Server extends AbstractServer implements Constants, Runnable {
     while (!abort);
   }
 
-  private class Connection extends Thread {
+  ///////////////////////////////////////////////////////////
+  // protocol commands
+  ///////////////////////////////////////////////////////////
+
+  private void handleStat(int mode, int vers, DataOutputStream os)
+                throws IOException
+  {
+    ServerInfo info=new ServerInfo(stat.getServerData());
+    info.setWeight(stat.getWeight());
+    info.setTimeout(stat.getTimeout());
+
+    if ((mode&MODE_CLIENTS)!=0) {
+      for (ClientData c:stat.getClients()) {
+        info.addClientData(c);
+      }
+    }
+    if ((mode&MODE_IMAGES)!=0) {
+      for (ImageData c:getActiveImages()) {
+        info.addImageData(c);
+      }
+    }
+    if ((mode&MODE_METRICS)!=0) {
+      info.setMetrics(metrics);
+    }
+    // the duplicate statistic requires version 2, metrics version 3,
+    // the speculation metrics version 4
+    info.write(os,vers>=6?4:vers>=5?3:vers>=4?2:1);
+  }
+
+  // requests are sent in the compact encoding if supported by the client
+  static private void writeRequest(CalcRequest req, int vers,
+                                   DataOutputStream os) throws IOException
+  {
+    if (vers>=3) req.write(os,CalcRequest.COMPACT,false);
+    else req.write(os,false);
+  }
+
+  /*
+   * Lease a copy of an outstanding request to an idle client.
+   */
+  private CalcRequest speculate(ClientData client, int vers)
+  {
+    ActiveRequest a=active.speculate(client, vers,
+                                     System.currentTimeMillis());
+    if (a==null) return null;
+    verb("speculative copy of "+a.getReqId()+" for "+client.getHost());
+    metrics.addSpeculation();
+    return a.getRequest();
+  }
+
+  private void handleGet(ClientData client, int vers, DataOutputStream os)
+                throws IOException
+  {
+    CalcRequest req=requests.testAndPull();
+    boolean copy=false;
+
+    if (req==null&&(req=speculate(client, vers))!=null) copy=true;
+    if (req==null) {
+      os.writeUTF(EMPTY);
+      os.writeInt(stat.getTimeout());
+      stat.notifyContact(client, true);
+    }
+    else {
+      if (!copy) active.put(req,client,getLeaseTime(req,vers));
+      try {
+        log("sending "+req.getReqId());
+        os.writeUTF(FOUND);
+        writeRequest(req,vers,os);
+        os.flush();
+        stat.addRequest(client);
+        if (!copy) leased(req);
+        if (requests.isEmpty()) doNotify();
+      }
+      catch (IOException ex) {
+        active.remove(req,client);
+        if (!copy) requeue(req);
+        throw ex;
+      }
+    }
+  }
+
+  /*
+   * Lease up to n requests with a single reply. Without lease renewal
+   * the timeout of the requests grows with their position in the lease,
+   * because a client may process them sequentially. If the queue is empty
+   * a single speculative copy is leased.
+   */
+  private void handleLease(ClientData client, int vers, int n,
+                           DataOutputStream os) throws IOException
+  {
+    if (!lease(client, vers, n, os)) {
+      os.writeUTF(EMPTY);
+      os.writeInt(stat.getTimeout());
+      stat.notifyContact(client, true);
+    }
+  }
+
+  /*
+   * Lease like handleLease. If there is nothing to lease the client is
+   * parked until it is woken up by new requests or the end of its wait
+   * time. The reply is written only if the waiter is not parked.
+   * @return false if the waiter has been parked
+   */
+  private boolean handleWait(Waiter w, DataOutputStream os)
+                  throws IOException
+  {
+    do {
+      if (lease(w.getClient(), w.getVersion(), w.getLeaseSize(), os)) {
+        return true;
+      }
+      if (w.getDeadline()<=System.currentTimeMillis()) {
+        os.writeUTF(EMPTY);
+        os.writeInt(stat.getTimeout());
+        stat.notifyContact(w.getClient(), true);
+        return true;
+      }
+      waiting.add(w);
+      // retry if requests have been queued before parking
+    }
+    while (!requests.isEmpty()&&waiting.remove(w));
+    return false;
+  }
+
+  /*
+   * Write a lease reply if something could be leased.
+   */
+  private boolean lease(ClientData client, int vers, int n,
+                        DataOutputStream os) throws IOException
+  {
+    List<CalcRequest> lease=new ArrayList<CalcRequest>();
+    CalcRequest req;
+    boolean copy=false;
+
+    if (n>MAX_LEASE) n=MAX_LEASE;
+    while (lease.size()<n&&(req=requests.testAndPull())!=null) {
+      lease.add(req);
+    }
+    if (lease.isEmpty()&&(req=speculate(client, vers))!=null) {
+      lease.add(req);
+      copy=true;
+    }
+    if (lease.isEmpty()) return false;
+    else {
+      long timeout=0;
+      if (!copy) for (CalcRequest r:lease) {
+        if (vers>=4) timeout=RENEW_TIMEOUT;
+        else timeout+=getLeaseTime(r,vers);
+        active.put(r,client,timeout);
+      }
+      try {
+        log("sending lease of "+lease.size());
+        os.writeUTF(FOUND);
+        os.writeInt(lease.size());
+        for (CalcRequest r:lease) {
+          writeRequest(r,vers,os);
+        }
+        os.flush();
+        for (CalcRequest r:lease) {
+          stat.addRequest(client);
+          if (!copy) leased(r);
+        }
+        if (requests.isEmpty()) doNotify();
+      }
+      catch (IOException ex) {
+        for (int i=lease.size()-1; i>=0; i--) {
+          active.remove(lease.get(i),client);
+          if (!copy) requeue(lease.get(i));
+        }
+        throw ex;
+      }
+    }
+    return true;
+  }
+
+  private void handleAnswer(ClientData client, CalcRequest req,
+                            DataOutputStream os) throws IOException
+  {
+    receive(client, req);
+    os.writeUTF(OK);
+  }
+
+  private void handleAnswers(ClientData client, List<CalcRequest> answers,
+                             DataOutputStream os) throws IOException
+  {
+    for (CalcRequest req:answers) {
+      receive(client, req);
+    }
+    os.writeUTF(OK);
+  }
+
+  static private List<CalcRequest> readAnswers(DataInputStream is)
+                                   throws IOException
+  {
+    int n=is.readInt();
+    if (n<0||n>MAX_LEASE) throw new IOException("illegal answer count "+n);
+    List<CalcRequest> answers=new ArrayList<CalcRequest>(n);
+    while (n-->0) {
+      CalcRequest req=new CalcRequest();
+      req.read(is,false);
+      answers.add(req);
+    }
+    return answers;
+  }
+
+  /*
+   * The first answer for a request is used. The leases of all other
+   * clients holding the request are cancelled, so that the pending
+   * requests are counted only once.
+   */
+  private void receive(ClientData client, CalcRequest req)
+  {
+    log("got answer "+req.getReqId());
+
+    ActiveRequest a=null;
+    List<ActiveRequest> leases=active.take(req.getReqId());
+    if (leases!=null) {
+      for (ActiveRequest l:leases) {
+        if (l.getClient()==client) a=l;
+        else {
+          verb("cancel lease of "+l.getReqId()+" for "+
+               l.getClient().getHost());
+          stat.cancelRequest(l.getClient());
+        }
+      }
+      if (a!=null) stat.requestDone(client);
+      else {
+        // answer for an expired lease of a re-leased request
+        verb("late answer "+req.getReqId());
+        stat.notifyContact(client, false);
+        a=leases.get(0);
+      }
+    }
+    else {
+      stat.notifyContact(client, false);
+      // expired request still waiting for a new lease
+      a=active.takeExpired(req.getReqId());
+      if (a!=null&&requests.remove(a.getRequest())) {
+        verb("late answer "+req.getReqId());
+      }
+      else if (active.isCancelled(req.getReqId())) {
+        verb("discarded answer "+req.getReqId());
+        metrics.addDiscarded();
+        return;
+      }
+      else {
+        verb("duplicate answer "+req.getReqId());
+        stat.addDuplicate(client);
+        return;
+      }
+    }
+    log("done "+req.getReqId());
+    metrics.addAnswer(client.getHost(), a.getLeaseStart(),
+                      (long)req.getNX()*req.getNY(), req.getNumIt(),
+                      req.getMTime());
+    a.receive(req);
+    done.put(a.getRequest());
+  }
+
+  /*
+   * Clients renewing their leases get short leases, otherwise the lease
+   * time is derived from the estimated calculation time of the request.
+   */
+  static private long getLeaseTime(CalcRequest req, int vers)
+  {
+    if (vers>=4) return RENEW_TIMEOUT;
+    return Math.max(TIMEOUT, 2*req.getEstimatedTime());
+  }
+
+  private void handleRenew(ClientData client, long[] ids, DataOutputStream os)
+                throws IOException
+  {
+    List<Long> lost=new ArrayList<Long>();
+
+    for (long id:ids) {
+      if (!active.renew(id, client, RENEW_TIMEOUT)) lost.add(id);
+    }
+    stat.notifyContact(client, false);
+    if (!lost.isEmpty()) verb("lost leases: "+lost.size());
+    os.writeUTF(OK);
+    os.writeInt(lost.size());
+    for (long id:lost) {
+      os.writeLong(id);
+    }
+  }
+
+  static private long[] readRenew(DataInputStream is) throws IOException
+  {
+    int n=is.readInt();
+    if (n<0||n>MAX_RENEW) throw new IOException("illegal renew count "+n);
+    long[] ids=new long[n];
+    for (int i=0; i<n; i++) {
+      ids[i]=is.readLong();
+    }
+    return ids;
+  }
+
+  private interface ClientConnection {
+    InetAddress getInetAddress();
+    ClientData getClientData();
+  }
+
+  ///////////////////////////////////////////////////////////
+  // blocking connections
+  ///////////////////////////////////////////////////////////
+
+  private class Connection extends Thread implements ClientConnection {
 
     private boolean abort;
     private Socket socket;
@@ -185,8 +641,8 @@ public class Server extends AbstractServer implements Constants, Runnable {
     public Connection(Socket s) throws IOException
     {
       this.socket=s;
-      is=new DataInputStream(socket.getInputStream());
-      os=new DataOutputStream(socket.getOutputStream());
+      is=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      os=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
       this.client=stat.addConnection(this);
       verb("connection from "+client.getHost());
     }
@@ -196,6 +652,11 @@ public class Server extends AbstractServer implements Constants, Runnable {
       return socket;
     }
 
+    public InetAddress getInetAddress()
+    {
+      return socket.getInetAddress();
+    }
+
     public ClientData getClientData()
     {
       return client;
@@ -212,10 +673,11 @@ public class Server extends AbstractServer implements Constants, Runnable {
             close();
             return;
           }
-          vers=is.readInt();
+          vers=Math.min(is.readInt(),VERSION);
           verb("accept "+prot+": "+vers);
           os.writeUTF(OK);
           os.writeInt(vers);
+          os.flush();
         }
         catch (IOException ex) {
           System.out.println("protocol failed: "+ex);
@@ -239,11 +701,27 @@ public class Server extends AbstractServer implements Constants, Runnable {
               case REQ_ANS:
                 handleAnswer();
                 break;
+              case REQ_LEASE:
+                if (vers<2) illegal();
+                else handleLease();
+                break;
+              case REQ_ANSWERS:
+                if (vers<2) illegal();
+                else handleAnswers();
+                break;
+              case REQ_RENEW:
+                if (vers<4) illegal();
+                else handleRenew();
+                break;
+              case REQ_WAIT:
+                if (vers<6) illegal();
+                else handleWait();
+                break;
               default:
-                stat.addError(client);
-                os.writeUTF("illegal command.");
+                illegal();
                 break;
             }
+            if (!abort) os.flush();
           }
           catch (IOException ex) {
             abort=true;
@@ -261,23 +739,7 @@ public class Server extends AbstractServer implements Constants, Runnable {
     private void handleStat()
     {
       try {
-        int mode=is.readInt();
-
-        ServerInfo info=new ServerInfo(stat.getServerData());
-        info.setWeight(stat.getWeight());
-        info.setTimeout(stat.getTimeout());
-
-        if ((mode&MODE_CLIENTS)!=0) {
-          for (ClientData c:stat.getClients()) {
-            info.addClientData(c);
-          }
-        }
-        if ((mode&MODE_IMAGES)!=0) {
-          for (ImageData c:getActiveImages()) {
-            info.addImageData(c);
-          }
-        }
-        info.write(os);
+        Server.this.handleStat(is.readInt(), vers, os);
       }
       catch (IOException io) {
         close();
@@ -286,31 +748,79 @@ public class Server extends AbstractServer implements Constants, Runnable {
 
     private void handleGet()
     {
-      CalcRequest req=requests.testAndPull();
-      if (req==null) {
-        try {
-          os.writeUTF(EMPTY);
-          os.writeInt(stat.getTimeout());
-          stat.notifyContact(client, true);
-        }
-        catch (IOException ex) {
-          close();
+      try {
+        Server.this.handleGet(client, vers, os);
+      }
+      catch (IOException ex) {
+        close();
+      }
+    }
+
+    private void illegal() throws IOException
+    {
+      stat.addError(client);
+      os.writeUTF("illegal command.");
+    }
+
+    private void handleLease()
+    {
+      try {
+        Server.this.handleLease(client, vers, is.readInt(), os);
+      }
+      catch (IOException ex) {
+        close();
+      }
+    }
+
+    private void handleRenew()
+    {
+      try {
+        Server.this.handleRenew(client, readRenew(is), os);
+      }
+      catch (IOException ex) {
+        close();
+      }
+    }
+
+    // the connection thread blocks while the waiter is parked
+    private void handleWait()
+    {
+      try {
+        Waiter w=new Waiter(client, vers, is.readInt(), is.readInt());
+        while (!Server.this.handleWait(w, os)) {
+          w.await();
         }
       }
-      else {
-        ActiveRequest a=active.put(req,client);
+      catch (InterruptedException ex) {
+        close();
+      }
+      catch (IOException ex) {
+        close();
+      }
+    }
+
+    private void handleAnswers()
+    { List<CalcRequest> answers;
+      try {
+        answers=readAnswers(is);
+      }
+      catch (IOException ex) {
+        stat.addError(client);
         try {
-          log("sending "+req.getReqId());
-          os.writeUTF(FOUND);
-          req.write(os,false);
-          stat.addRequest(client);
-          if (requests.isEmpty()) doNotify();
+          os.writeUTF(RESET);
         }
-        catch (IOException ex) {
-          active.remove(req);
-          requests.putTop(req);
-          close();
+        catch (IOException ex1) {
         }
+        close();
+        return;
+      }
+
+      try {
+        Server.this.handleAnswers(client, answers, os);
+      }
+      catch (IOException ex) {
+        stat.addError(client);
+        close();
       }
     }
 
@@ -318,8 +828,6 @@ public class Server extends AbstractServer implements Constants, Runnable {
     { CalcRequest req=new CalcRequest();
       try {
         req.read(is,false);
-        stat.requestDone(client);
-        log("got answer "+req.getReqId());
       }
       catch (IOException ex) {
         stat.addError(client);
@@ -332,15 +840,8 @@ public class Server extends AbstractServer implements Constants, Runnable {
         return;
       }
 
-      ActiveRequest a=active.get(req.getReqId());
-      if (a!=null) {
-        log("done "+req.getReqId());
-        a.receive(req);
-        active.remove(a);
-        done.put(a.getRequest());
-      }
       try {
-        os.writeUTF(OK);
+        Server.this.handleAnswer(client, req, os);
       }
       catch (IOException ex) {
         stat.addError(client);
@@ -364,6 +865,472 @@ public class Server extends AbstractServer implements Constants, Runnable {
     }
   }
 
+  ///////////////////////////////////////////////////////////
+  // non-blocking connections
+  ///////////////////////////////////////////////////////////
+
+  static private final int READ_SIZE=64*1024;
+
+  private ConcurrentLinkedQueue<NioConnection> changed
+          =new ConcurrentLinkedQueue<NioConnection>();
+
+  private void select()
+  {
+    ByteBuffer buffer=ByteBuffer.allocateDirect(READ_SIZE);
+
+    do {
+      try {
+        selector.select();
+        NioConnection conn;
+        while ((conn=changed.poll())!=null) {
+          conn.update();
+        }
+        Iterator<SelectionKey> i=selector.selectedKeys().iterator();
+        while (i.hasNext()) {
+          SelectionKey key=i.next();
+          i.remove();
+          if (!key.isValid()) continue;
+          if (key.isAcceptable()) {
+            accept();
+          }
+          else {
+            conn=(NioConnection)key.attachment();
+            if (key.isReadable()) conn.read(buffer);
+            if (key.isValid()&&key.isWritable()) conn.write();
+          }
+        }
+      }
+      catch (IOException ex) {
+        System.out.println("select failed: "+ex);
+      }
+    }
+    while (!abort);
+  }
+
+  private void accept() throws IOException
+  {
+    final SocketChannel ch=channel.accept();
+    if (ch==null) return;
+    ch.configureBlocking(false);
+    // the client statistic may require a name lookup,
+    // so it is registered outside of the selector thread
+    pool.execute(new Runnable() {
+      public void run()
+      {
+        NioConnection conn=new NioConnection(ch);
+        verb("connection from "+conn.getClientData().getHost());
+        conn.changed();
+      }
+    });
+  }
+
+  /**
+   * A connection served by the selector thread. Received data is collected
+   * in an input buffer and processed by a task on the thread pool, which
+   * executes all completely received commands. An incomplete command is
+   * detected by an EOFException while parsing the buffered data,
+   * it is parsed again when more data has been received. To avoid parsing
+   * large commands again for every received chunk, the parser remembers
+   * the amount of data required by the failed read, a new attempt is
+   * started only if at least this amount is available. The replies are
+   * queued and sent by the selector thread.
+   */
+  private class NioConnection implements ClientConnection, Runnable {
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ClientData client;
+
+    private byte[] in;
+    private int inlen;
+    private int needed;       // minimal input size for the pending command
+    private LinkedList<ByteBuffer> out;
+
+    private int vers;
+    private boolean accepted; // protocol handshake done
+    private boolean busy;     // processing task scheduled
+    private Waiter parked;    // waiting for requests
+    private volatile boolean closing;  // close after sending pending replies
+    private boolean closed;
+
+    public NioConnection(SocketChannel ch)
+    {
+      this.channel=ch;
+      this.in=new byte[256];
+      this.out=new LinkedList<ByteBuffer>();
+      this.client=stat.addConnection(this);
+    }
+
+    public InetAddress getInetAddress()
+    {
+      return channel.socket().getInetAddress();
+    }
+
+    public ClientData getClientData()
+    {
+      return client;
+    }
+
+    private void changed()
+    {
+      changed.add(this);
+      selector.wakeup();
+    }
+
+    //////////////////////////////
+    // selector thread
+
+    synchronized
+    private void update()
+    {
+      if (closed) return;
+      if (closing&&out.isEmpty()) {
+        close();
+        return;
+      }
+      int ops=SelectionKey.OP_READ;
+      if (!out.isEmpty()) ops|=SelectionKey.OP_WRITE;
+      try {
+        if (key==null) key=channel.register(selector, ops, this);
+        else key.interestOps(ops);
+      }
+      catch (IOException ex) {
+        System.out.println("register failed: "+ex);
+        close();
+      }
+    }
+
+    private void read(ByteBuffer buffer)
+    {
+      int n;
+      
+      try {
+        do {
+          buffer.clear();
+          n=channel.read(buffer);
+          if (n>0) {
+            buffer.flip();
+            append(buffer);
+          }
+        }
+        while (n>0);
+      }
+      catch (IOException ex) {
+        System.out.println("connection closed: "+ex);
+        n=-1;
+      }
+      synchronized (this) {
+        if (n<0) close();
+        else if (inlen>0&&inlen>=needed&&!busy&&!closing) {
+          busy=true;
+          pool.execute(this);
+        }
+      }
+    }
+
+    synchronized
+    private void append(ByteBuffer buffer)
+    {
+      int n=buffer.remaining();
+      if (inlen+n>in.length) {
+        byte[] b=new byte[Math.max(inlen+n, 2*in.length)];
+        System.arraycopy(in, 0, b, 0, inlen);
+        in=b;
+      }
+      buffer.get(in, inlen, n);
+      inlen+=n;
+    }
+
+    synchronized
+    private void write()
+    {
+      try {
+        while (!out.isEmpty()) {
+          ByteBuffer b=out.getFirst();
+          channel.write(b);
+          if (b.hasRemaining()) return;
+          out.removeFirst();
+        }
+        update();
+      }
+      catch (IOException ex) {
+        System.out.println("connection closed: "+ex);
+        close();
+      }
+    }
+
+    synchronized
+    private void close()
+    {
+      if (closed) return;
+      closed=true;
+      if (parked!=null) waiting.remove(parked);
+      if (key!=null) key.cancel();
+      try {
+        channel.close();
+      }
+      catch (IOException ex) {
+      }
+      stat.removeConnection(this);
+    }
+
+    //////////////////////////////
+    // thread pool
+
+    public void run()
+    {
+      boolean more;
+
+      do {
+        byte[] b;
+        int len;
+
+        synchronized (this) {
+          if (closed||parked!=null) {
+            busy=false;
+            notifyAll();
+            return;
+          }
+          b=in;
+          len=inlen;
+        }
+        CommandInput bis=new CommandInput(b, len);
+        ByteArrayOutputStream bos=new ByteArrayOutputStream();
+        DataInputStream is=new DataInputStream(bis);
+        DataOutputStream os=new DataOutputStream(bos);
+        int required=0;
+
+        try {
+          while (!closing&&parked==null&&bis.available()>0) {
+            bis.mark(0);
+            if (!handle(is, os)) {
+              required=bis.getNeeded();
+              bis.reset();
+              break;
+            }
+          }
+        }
+        catch (IOException ex) {
+          System.out.println("command failed: "+ex);
+          closing=true;
+        }
+
+        int used=len-bis.available();
+        synchronized (this) {
+          System.arraycopy(in, used, in, 0, inlen-used);
+          inlen-=used;
+          needed=Math.max(required-used, 0);
+          if (bos.size()>0) out.add(ByteBuffer.wrap(bos.toByteArray()));
+          // continue only if enough new data has been received meanwhile
+          more=!closing&&parked==null&&inlen>len-used&&inlen>=needed;
+          busy=more;
+          if (!busy) notifyAll();
+        }
+        if (bos.size()>0||closing) changed();
+      }
+      while (more);
+    }
+
+    // a woken up waiter is served on the thread pool
+    private class NioWaiter extends Waiter {
+      public NioWaiter(int n, int wait)
+      {
+        super(client, vers, n, wait);
+      }
+
+      @Override
+      public void wakeup()
+      {
+        pool.execute(new Runnable() {
+          public void run()
+          {
+            resume(NioWaiter.this);
+          }
+        });
+      }
+    }
+
+    /*
+     * Serve a woken up waiter. Commands received meanwhile are processed
+     * after the deferred reply, which must be queued after the replies of
+     * the preceding commands.
+     */
+    private void resume(Waiter w)
+    {
+      ByteArrayOutputStream bos=new ByteArrayOutputStream();
+      DataOutputStream os=new DataOutputStream(bos);
+
+      synchronized (this) {
+        if (closed||parked!=w) return;
+      }
+      try {
+        if (!handleWait(w, os)) return;
+      }
+      catch (IOException ex) {
+        System.out.println("command failed: "+ex);
+        closing=true;
+      }
+      boolean more;
+      synchronized (this) {
+        while (busy) {
+          try {
+            wait();
+          }
+          catch (InterruptedException ex) {
+          }
+        }
+        parked=null;
+        if (bos.size()>0) out.add(ByteBuffer.wrap(bos.toByteArray()));
+        more=!closing&&!busy&&inlen>0&&inlen>=needed;
+        if (more) busy=true;
+      }
+      changed();
+      if (more) run();
+    }
+
+    // returns false for incomplete commands
+    private boolean handle(DataInputStream is, DataOutputStream os)
+                    throws IOException
+    {
+      try {
+        if (!accepted) {
+          String prot=is.readUTF();
+          if (!PROTOCOL.equals(prot)) {
+            os.writeUTF("wrong protocol");
+            closing=true;
+            return true;
+          }
+          vers=Math.min(is.readInt(),VERSION);
+          verb("accept "+prot+": "+vers);
+          os.writeUTF(OK);
+          os.writeInt(vers);
+          accepted=true;
+          return true;
+        }
+
+        int cmd=is.readInt();
+        log("read cmd "+cmd);
+        switch (cmd) {
+          case REQ_STAT:
+            handleStat(is.readInt(), vers, os);
+            break;
+          case REQ_GET:
+            handleGet(client, vers, os);
+            break;
+          case REQ_ANS:
+            CalcRequest req=new CalcRequest();
+            try {
+              req.read(is,false);
+            }
+            catch (EOFException ex) {
+              throw ex;
+            }
+            catch (Exception ex) {
+              stat.addError(client);
+              os.writeUTF(RESET);
+              closing=true;
+              return true;
+            }
+            handleAnswer(client, req, os);
+            break;
+          case REQ_LEASE:
+            if (vers<2) {
+              stat.addError(client);
+              os.writeUTF("illegal command.");
+            }
+            else handleLease(client, vers, is.readInt(), os);
+            break;
+          case REQ_ANSWERS:
+            if (vers<2) {
+              stat.addError(client);
+              os.writeUTF("illegal command.");
+              break;
+            }
+            List<CalcRequest> answers;
+            try {
+              answers=readAnswers(is);
+            }
+            catch (EOFException ex) {
+              throw ex;
+            }
+            catch (Exception ex) {
+              stat.addError(client);
+              os.writeUTF(RESET);
+              closing=true;
+              return true;
+            }
+            handleAnswers(client, answers, os);
+            break;
+          case REQ_RENEW:
+            if (vers<4) {
+              stat.addError(client);
+              os.writeUTF("illegal command.");
+            }
+            else handleRenew(client, readRenew(is), os);
+            break;
+          case REQ_WAIT:
+            if (vers<6) {
+              stat.addError(client);
+              os.writeUTF("illegal command.");
+              break;
+            }
+            Waiter w=new NioWaiter(is.readInt(), is.readInt());
+            synchronized (this) {
+              parked=w;
+            }
+            if (handleWait(w, os)) {
+              synchronized (this) {
+                parked=null;
+              }
+            }
+            break;
+          default:
+            stat.addError(client);
+            os.writeUTF("illegal command.");
+            break;
+        }
+        return true;
+      }
+      catch (EOFException ex) {
+        return false;
+      }
+    }
+  }
+
+  /*
+   * Input stream for the buffered input of a connection. It remembers
+   * the input size required by the largest read exceeding the available
+   * data. An incomplete command requires at least this size.
+   */
+  static private class CommandInput extends ByteArrayInputStream {
+    private int needed;
+
+    public CommandInput(byte[] buf, int len)
+    {
+      super(buf, 0, len);
+    }
+
+    public int getNeeded()
+    {
+      return needed;
+    }
+
+    @Override
+    synchronized
+    public int read()
+    {
+      if (pos>=count) needed=Math.max(needed, pos+1);
+      return super.read();
+    }
+
+    @Override
+    synchronized
+    public int read(byte[] b, int off, int len)
+    {
+      if (pos+len>count) needed=Math.max(needed, pos+len);
+      return super.read(b, off, len);
+    }
+  }
+
   private class Timeout extends Thread {
     private boolean abort=false;
      
@@ -374,25 +1341,30 @@ public class Server extends AbstractServer implements Constants, Runnable {
     
     @Override
     public void run()
-    { boolean look;
-
+    {
       do {
         try {
           sleep(TIMEOUTSLEEP);
           long cur=System.currentTimeMillis();
           verb("checking timeouts "+cur);
-          look=true;
-          while (look) {
-            ActiveRequest a=active.peek();
-            // if (a!=null) verb("  found "+a.getReqId()+": "+a.getTimeout());
-            if (a!=null && a.getTimeout()<cur) {
-              active.remove(a);
-              a.getClient().addTimeout();
+          for (ActiveRequest a:active.expire(cur)) {
+            stat.addTimeout(a.getClient());
+            if (a.isLast()) {
               verb("repeat "+a.getReqId());
-              requests.putTop(a.getRequest());
+              requeue(a.getRequest());
+            }
+            else {
+              verb("drop lease of "+a.getReqId()+" for "+
+                   a.getClient().getHost());
             }
-            else look=false;
           }
+          // waiting clients may get speculative copies
+          if (requests.isEmpty()&&active.size()>0) wakeup();
+          else expireWaiters(cur);
+          ServerData s=stat.getServerData();
+          metrics.sample(requests.size(), active.size(),
+                         stat.getConnectionCount(),
+                         s.getTimeouts(), s.getDuplicates());
         }
         catch (InterruptedException ex) {
         }
@@ -424,16 +1396,84 @@ public class Server extends AbstractServer implements Constants, Runnable {
     }
   }
 
+  /*
+   * A client waiting for requests. It is woken up once, either by
+   * new requests or by the end of its wait time.
+   */
+  private class Waiter {
+    private ClientData client;
+    private int vers;
+    private int n;
+    private long deadline;
+    private boolean woken;
+
+    public Waiter(ClientData client, int vers, int n, int wait)
+    {
+      this.client=client;
+      this.vers=vers;
+      this.n=n;
+      if (wait>MAX_WAIT) wait=MAX_WAIT;
+      this.deadline=System.currentTimeMillis()+wait;
+    }
+
+    public ClientData getClient()
+    {
+      return client;
+    }
+
+    public int getVersion()
+    {
+      return vers;
+    }
+
+    public int getLeaseSize()
+    {
+      return n;
+    }
+
+    public long getDeadline()
+    {
+      return deadline;
+    }
+
+    synchronized
+    public void wakeup()
+    {
+      woken=true;
+      notify();
+    }
+
+    synchronized
+    public void await() throws InterruptedException
+    {
+      while (!woken) wait();
+      woken=false;
+    }
+  }
+
   private static class ActiveRequest {
     private CalcRequest request;
     private ClientData client;
     private long timeout;
+    private long start;
+    private boolean last; // expired as last lease of the request
 
-    public ActiveRequest(CalcRequest request, ClientData client)
+    public ActiveRequest(CalcRequest request, ClientData client, long timeout)
     {
       this.request=request;
       this.client=client;
-      timeout=System.currentTimeMillis()+TIMEOUT;
+      this.start=System.currentTimeMillis();
+      this.timeout=start+timeout;
+    }
+
+    public long getLeaseStart()
+    {
+      return start;
+    }
+
+    public boolean isLast()
+    {
+      return last;
     }
 
     public CalcRequest getRequest()
@@ -456,10 +1496,16 @@ public class Server extends AbstractServer implements Constants, Runnable {
       return timeout;
     }
 
+    public void renew(long timeout)
+    {
+      this.timeout=System.currentTimeMillis()+timeout;
+    }
+
     synchronized
     public void receive(CalcRequest req)
     {
         request.setData(req.getData());
+        request.setIterationState(req.getIterationState());
         request.setNumIt(req.getNumIt());
         request.setCCnt(req.getCCnt());
         request.setMCnt(req.getMCnt());
@@ -469,62 +1515,183 @@ public class Server extends AbstractServer implements Constants, Runnable {
     }
   }
 
+  /*
+   * Leases of active requests ordered by their timeout. A request may
+   * be leased to several clients by speculation, the requests are kept
+   * in the order of their first lease. Expired requests are remembered
+   * until they are leased again, so that a late answer can still be used
+   * if the request is still waiting in the queue. Requests answered while
+   * leased to other clients are remembered as cancelled to discard the
+   * further answers.
+   */
   static private class ActiveList {
-    private HashMap<Long,ActiveRequest> active;
+    static private final int  MAX_LEASES=2;       // leases per request
+    static private final long CANCEL_TIME=10*TIMEOUT;
+
+    private LinkedHashMap<Long,List<ActiveRequest>> active;
+    private HashMap<Long,ActiveRequest> expired;
+    private HashMap<Long,Long> cancelled;
     private List<ActiveRequest> sequence;
 
     public ActiveList()
     {
-      active=new HashMap<Long,ActiveRequest>();
+      active=new LinkedHashMap<Long,List<ActiveRequest>>();
+      expired=new HashMap<Long,ActiveRequest>();
+      cancelled=new HashMap<Long,Long>();
       sequence=new ArrayList<ActiveRequest>();
     }
 
+    // the sequence is kept sorted by timeout
     synchronized
-    public ActiveRequest put(CalcRequest req, ClientData client)
-    { ActiveRequest a=active.get(req.getReqId());
+    public ActiveRequest put(CalcRequest req, ClientData client, long timeout)
+    { List<ActiveRequest> leases=active.get(req.getReqId());
 
-      if (a==null) {
-        a=new ActiveRequest(req,client);
-        active.put(req.getReqId(),a);
-        sequence.add(a);
+      if (leases==null) {
+        leases=new ArrayList<ActiveRequest>(1);
+        active.put(req.getReqId(),leases);
+        expired.remove(req.getReqId());
       }
+      else {
+        for (ActiveRequest a:leases) {
+          if (a.getClient()==client) return a;
+        }
+      }
+      ActiveRequest a=new ActiveRequest(req,client,timeout);
+      leases.add(a);
+      insert(a);
       return a;
     }
 
+    /**
+     * Lease a copy of the oldest outstanding request, which is leased
+     * for at least {@link Constants#SPECULATION_AGE} or its estimated
+     * calculation time to another client only.
+     * @return the new lease or null
+     */
     synchronized
-    public ActiveRequest get(long reqid)
+    public ActiveRequest speculate(ClientData client, int vers, long cur)
     {
-      ActiveRequest a=active.get(reqid);
-      if (a!=null) sequence.remove(a);
-      return a;
+      for (List<ActiveRequest> leases:active.values()) {
+        ActiveRequest a=leases.get(0);
+        long age=cur-a.getLeaseStart();
+        if (age<SPECULATION_AGE) break;
+        if (leases.size()>=MAX_LEASES||a.getClient()==client) continue;
+        CalcRequest req=a.getRequest();
+        if (age<req.getEstimatedTime()) continue;
+        a=new ActiveRequest(req,client,getLeaseTime(req,vers));
+        leases.add(a);
+        insert(a);
+        return a;
+      }
+      return null;
     }
 
     synchronized
-    public ActiveRequest peek()
+    public int size()
+    {
+      return active.size();
+    }
+
+    private void insert(ActiveRequest a)
     {
-      if (sequence.isEmpty()) return null;
-      return sequence.get(0);
+      int i=sequence.size();
+      while (i>0&&sequence.get(i-1).getTimeout()>a.getTimeout()) i--;
+      sequence.add(i,a);
     }
 
+    private ActiveRequest get(long reqid, ClientData client)
+    {
+      List<ActiveRequest> leases=active.get(reqid);
+      if (leases!=null) for (ActiveRequest a:leases) {
+        if (a.getClient()==client) return a;
+      }
+      return null;
+    }
+
+    /**
+     * Extend the lease of a request held by the given client.
+     * @return false if the request is not leased by this client anymore
+     */
+    synchronized
+    public boolean renew(long reqid, ClientData client, long timeout)
+    {
+      ActiveRequest a=get(reqid,client);
+      if (a==null) return false;
+      sequence.remove(a);
+      a.renew(timeout);
+      insert(a);
+      return true;
+    }
+
+    /**
+     * Remove and return all leases of an active request for an answer.
+     */
     synchronized
-    public void remove(CalcRequest req)
+    public List<ActiveRequest> take(long reqid)
     {
-      remove(req.getReqId());
+      List<ActiveRequest> leases=active.remove(reqid);
+      if (leases!=null) {
+        sequence.removeAll(leases);
+        if (leases.size()>1) {
+          cancelled.put(reqid,System.currentTimeMillis());
+        }
+      }
+      return leases;
     }
 
+    /**
+     * Remove and return an expired request for a late answer.
+     */
     synchronized
-    public void remove(ActiveRequest req)
+    public ActiveRequest takeExpired(long reqid)
     {
-      remove(req.getReqId());
+      return expired.remove(reqid);
     }
 
+    /**
+     * Check for an answer of a cancelled lease.
+     */
     synchronized
-    public void remove(long reqid)
+    public boolean isCancelled(long reqid)
     {
-      ActiveRequest req=active.get(reqid);
-      if (req!=null) {
-        active.remove(reqid);
-        sequence.remove(req);
+      return cancelled.remove(reqid)!=null;
+    }
+
+    /**
+     * Remove the expired leases. If the last lease of a request expires
+     * the request must be repeated.
+     */
+    synchronized
+    public List<ActiveRequest> expire(long cur)
+    {
+      List<ActiveRequest> list=new ArrayList<ActiveRequest>();
+      while (!sequence.isEmpty()&&sequence.get(0).getTimeout()<cur) {
+        ActiveRequest a=sequence.remove(0);
+        List<ActiveRequest> leases=active.get(a.getReqId());
+        leases.remove(a);
+        if (leases.isEmpty()) {
+          active.remove(a.getReqId());
+          expired.put(a.getReqId(),a);
+          a.last=true;
+        }
+        list.add(a);
+      }
+      Iterator<Long> i=cancelled.values().iterator();
+      while (i.hasNext()) {
+        if (i.next()<cur-CANCEL_TIME) i.remove();
+      }
+      return list;
+    }
+
+    synchronized
+    public void remove(CalcRequest req, ClientData client)
+    {
+      ActiveRequest a=get(req.getReqId(),client);
+      if (a!=null) {
+        List<ActiveRequest> leases=active.get(req.getReqId());
+        leases.remove(a);
+        if (leases.isEmpty()) active.remove(req.getReqId());
+        sequence.remove(a);
       }
     }
   }
@@ -540,7 +1707,7 @@ public class Server extends AbstractServer implements Constants, Runnable {
   }
 
   private class StatisticHandler {
-    private List<Connection> connections;
+    private List<ClientConnection> connections;
     private Map<InetAddress,ClientData> clients;
     private ServerData stat;
     private List<Entry> hist;
@@ -553,7 +1720,7 @@ public class Server extends AbstractServer implements Constants, Runnable {
     {
       this.stat=new ServerData();
       this.clients=new HashMap<InetAddress,ClientData>();
-      this.connections=new ArrayList<Connection>();
+      this.connections=new ArrayList<ClientConnection>();
       this.hist=new ArrayList<Entry>();
       this.max=max;
     }
@@ -581,6 +1748,12 @@ public class Server extends AbstractServer implements Constants, Runnable {
       return weight;
     }
 
+    synchronized
+    public int getConnectionCount()
+    {
+      return connections.size();
+    }
+
     synchronized
     public int getTimeout()
     {
@@ -601,9 +1774,9 @@ public class Server extends AbstractServer implements Constants, Runnable {
     }
 
     synchronized
-    protected ClientData addConnection(Connection conn)
+    protected ClientData addConnection(ClientConnection conn)
     {
-      ClientData client=getClientData(conn.getSocket().getInetAddress());
+      ClientData client=getClientData(conn.getInetAddress());
       stat.addConnection(client);
       connections.add(conn);
       new Entry();
@@ -625,17 +1798,27 @@ public class Server extends AbstractServer implements Constants, Runnable {
       stat.addError(client);
     }
 
+    protected synchronized void addDuplicate(ClientData client)
+    {
+      stat.addDuplicate(client);
+    }
+
     protected synchronized void requestDone(ClientData client)
     {
       stat.requestDone(client);
     }
 
+    protected synchronized void cancelRequest(ClientData client)
+    {
+      stat.cancelRequest(client);
+    }
+
     protected synchronized void removeImage()
     {
       stat.removeImage();
     }
 
-    protected synchronized void removeConnection(Connection conn)
+    protected synchronized void removeConnection(ClientConnection conn)
     {
       stat.removeConnection(conn.getClientData());
       connections.remove(conn);
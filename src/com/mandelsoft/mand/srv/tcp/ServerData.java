@@ -26,7 +26,7 @@ import java.io.IOException;
  */
 
 public class ServerData {
-  public static final int VERSION=1;
+  public static final int VERSION=2;
 
   private Statistic stat;
   private long totimg;
@@ -54,6 +54,12 @@ public class ServerData {
     client.requestDone();
   }
 
+  protected synchronized void cancelRequest(ClientData client)
+  {
+    stat.cancelRequest();
+    client.cancelRequest();
+  }
+
   protected synchronized void removeConnection(ClientData client)
   {
     stat.removeConnection();
@@ -119,6 +125,16 @@ public class ServerData {
     return stat.getLastConnected();
   }
 
+  public synchronized long getDuplicates()
+  {
+    return stat.getDuplicates();
+  }
+
+  public synchronized long getLastDuplicate()
+  {
+    return stat.getLastDuplicate();
+  }
+
   public synchronized long getErrors()
   {
     return stat.getErrors();
@@ -146,6 +162,12 @@ public class ServerData {
     stat.addRequest();
   }
 
+  protected synchronized void addDuplicate(ClientData client)
+  {
+    client.addDuplicate();
+    stat.addDuplicate();
+  }
+
   protected synchronized void addError(ClientData client)
   {
     client.addError();
@@ -173,16 +195,18 @@ public class ServerData {
               throws IOException
   {
     switch (v) {
-       case 1: dos.writeInt(v);
-               writeV1(dos);
+       case 1:
+       case 2: dos.writeInt(v);
+               writeV1(dos,v);
                break;
       default: throw new IOException("unknown host info version "+v);
     }
   }
 
-  private void writeV1(DataOutputStream dos) throws IOException
+  // the statistic is written with the same version
+  private void writeV1(DataOutputStream dos, int v) throws IOException
   {
-    stat.write(dos);
+    stat.write(dos,v);
     dos.writeLong(totimg);
     dos.writeLong(imgcnt);
   }
@@ -191,7 +215,8 @@ public class ServerData {
   {
     int version=dis.readInt();
     switch (version) {
-      case 1: readV1(dis);
+      case 1:
+      case 2: readV1(dis);
               break;
       default: throw new IOException("unknown host data version "+version);
     }
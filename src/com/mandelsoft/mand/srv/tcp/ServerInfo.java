@@ -31,13 +31,14 @@ import com.mandelsoft.mand.srv.ImageData;
  */
 
 public class ServerInfo {
-  public static final int VERSION=1;
+  public static final int VERSION=4;
 
   private ServerData server;
   private List<ClientData> clients;
   private List<ImageData> images;
   private int weight;
   private int timeout;
+  private Metrics metrics;
 
   public ServerInfo()
   {
@@ -61,6 +62,12 @@ public class ServerInfo {
     timeout=t;
   }
 
+  synchronized
+  protected void setMetrics(Metrics m)
+  {
+    metrics=m;
+  }
+
   synchronized
   protected void addClientData(ClientData c)
   {
@@ -103,6 +110,15 @@ public class ServerInfo {
     return weight;
   }
 
+  /**
+   * Returns the metrics of the server, if requested.
+   */
+  synchronized
+  public Metrics getMetrics()
+  {
+    return metrics;
+  }
+
   
   ///////////////////////////////////////////////////////////////
   // forward
@@ -134,16 +150,26 @@ public class ServerInfo {
               throws IOException
   {
     switch (v) {
-       case 1: dos.writeInt(v);
-               writeV1(dos);
+       case 1:
+       case 2: dos.writeInt(v);
+               writeV1(dos,v);
+               break;
+       case 3: dos.writeInt(v);
+               writeV1(dos,2);
+               writeV3(dos,1);
+               break;
+       case 4: dos.writeInt(v);
+               writeV1(dos,2);
+               writeV3(dos,2);
                break;
       default: throw new IOException("unknown host info version "+v);
     }
   }
 
-  private void writeV1(DataOutputStream dos) throws IOException
+  // nested data is written with the same version
+  private void writeV1(DataOutputStream dos, int v) throws IOException
   {
-    server.write(dos);
+    server.write(dos,v);
     dos.writeInt(weight);
     dos.writeInt(timeout);
 
@@ -151,7 +177,7 @@ public class ServerInfo {
     else {
       dos.writeInt(clients.size());
       for (ClientData c:clients) {
-        c.write(dos);
+        c.write(dos,v);
       }
     }
 
@@ -164,11 +190,23 @@ public class ServerInfo {
     }
   }
 
+  // version 3 readers only understand metrics version 1
+  private void writeV3(DataOutputStream dos, int mv) throws IOException
+  {
+    dos.writeBoolean(metrics!=null);
+    if (metrics!=null) metrics.write(dos,mv);
+  }
+
   public void read(DataInputStream dis) throws IOException
   {
     int version=dis.readInt();
     switch (version) {
-      case 1: readV1(dis);
+      case 1:
+      case 2: readV1(dis);
+              break;
+      case 3:
+      case 4: readV1(dis);
+              readV3(dis);
               break;
       default: throw new IOException("unknown host data version "+version);
     }
@@ -200,4 +238,10 @@ public class ServerInfo {
       }
     }
   }
+
+  private void readV3(DataInputStream dis) throws IOException
+  {
+    if (dis.readBoolean()) setMetrics(new Metrics(dis));
+    else setMetrics(null);
+  }
 }
@@ -18,7 +18,10 @@ package com.mandelsoft.mand.srv.tcp;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -33,6 +36,7 @@ import com.mandelsoft.mand.srv.ImageData;
 public class ServerQuery implements Constants, Runnable {
   private InetAddress host;
   private int port=PORT;
+  private File dump;
 
   private Socket socket;
   private DataInputStream is;
@@ -72,6 +76,12 @@ public class ServerQuery implements Constants, Runnable {
                    }
                    else throw new IllegalArgumentException("port missing");
                    break;
+          case 'm': // metrics report file
+                   if (args.length>c) {
+                     dump=new File(args[c++]);
+                   }
+                   else throw new IllegalArgumentException("metrics file missing");
+                   break;
           default:
             throw new IllegalArgumentException("illegal option '"+opt+"'");
         }
@@ -120,6 +130,7 @@ public class ServerQuery implements Constants, Runnable {
           System.out.println("last request:                "+new Date(server.getLastRequest()));
           System.out.println("number of timeouts:          "+server.getTimeouts());
           System.out.println("last timeout:                "+new Date(server.getLastTimeout()));
+          System.out.println("number of duplicates:        "+server.getDuplicates());
           System.out.println("total number of connections: "+server.getTotalConCnt());
           System.out.println("number of connections:       "+server.getConCnt());
           System.out.println("last connection:             "+new Date(server.getLastConnected()));
@@ -140,6 +151,31 @@ public class ServerQuery implements Constants, Runnable {
                                      "("+c.getMagnification()+") "+
                                      new Date(c.getStartTime()));
           }
+          Metrics m=info.getMetrics();
+          if (m!=null) {
+            System.out.println("Metrics");
+            System.out.println("  answers:  "+m.getAnswers());
+            System.out.println("  pixels:   "+m.getPixels());
+            System.out.println("  requeued: "+m.getRequeued());
+            System.out.println("  speculated: "+m.getSpeculated()+
+                               " (discarded "+m.getDiscarded()+")");
+            System.out.println("  "+m.getQueueWait().getName()+": "+m.getQueueWait());
+            System.out.println("  "+m.getLatency().getName()+": "+m.getLatency());
+            System.out.println("  "+m.getCalculationTime().getName()+": "+m.getCalculationTime());
+            for (Metrics.ClientMetrics c:m.getClients()) {
+              System.out.println("  "+c);
+            }
+            if (dump!=null) {
+              PrintStream ps=new PrintStream(new FileOutputStream(dump));
+              try {
+                m.print(ps);
+              }
+              finally {
+                ps.close();
+              }
+              System.out.println("metrics written to "+dump);
+            }
+          }
           close("");
         }
         catch (IOException io) {
@@ -26,7 +26,7 @@ import java.io.IOException;
  */
 
 public class Statistic {
-  public static final int VERSION=1;
+  public static final int VERSION=2;
 
   private long totcon;      // total number of connections
   private long concnt;      // number of active connections
@@ -39,6 +39,8 @@ public class Statistic {
   private long lasttimeout; // time of last timeout
   private long errors;      // number errors
   private long lasterror;   // time of last error
+  private long duplicates;  // number of answers already provided by others
+  private long lastduplicate; // time of last duplicate
 
   synchronized
   protected void addConnection()
@@ -77,6 +79,13 @@ public class Statistic {
     notifyContact();
   }
 
+  // request answered by another client
+  synchronized
+  protected void cancelRequest()
+  {
+    pending--;
+  }
+
   synchronized
   protected void addError()
   {
@@ -84,6 +93,13 @@ public class Statistic {
     lasterror=System.currentTimeMillis();
   }
 
+  synchronized
+  protected void addDuplicate()
+  {
+    duplicates++;
+    lastduplicate=System.currentTimeMillis();
+  }
+
   synchronized
   protected long notifyContact()
   {
@@ -155,6 +171,18 @@ public class Statistic {
     return lasterror;
   }
 
+  synchronized
+  public long getDuplicates()
+  {
+    return duplicates;
+  }
+
+  synchronized
+  public long getLastDuplicate()
+  {
+    return lastduplicate;
+  }
+
   synchronized
   public long getLastContact()
   {
@@ -179,6 +207,10 @@ public class Statistic {
        case 1: dos.writeInt(v);
                writeV1(dos);
                break;
+       case 2: dos.writeInt(v);
+               writeV1(dos);
+               writeV2(dos);
+               break;
       default: throw new IOException("unknown host info version "+v);
     }
   }
@@ -198,12 +230,21 @@ public class Statistic {
     dos.writeLong(lasterror);
   }
 
+  private void writeV2(DataOutputStream dos) throws IOException
+  {
+    dos.writeLong(duplicates);
+    dos.writeLong(lastduplicate);
+  }
+
   public void read(DataInputStream dis) throws IOException
   {
     int version=dis.readInt();
     switch (version) {
       case 1: readV1(dis);
               break;
+      case 2: readV1(dis);
+              readV2(dis);
+              break;
       default: throw new IOException("unknown host data version "+version);
     }
   }
@@ -222,4 +263,10 @@ public class Statistic {
     errors=dis.readLong();
     lasterror=dis.readLong();
   }
+
+  private void readV2(DataInputStream dis) throws IOException
+  {
+    duplicates=dis.readLong();
+    lastduplicate=dis.readLong();
+  }
 }
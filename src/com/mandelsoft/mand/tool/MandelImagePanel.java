@@ -372,7 +372,7 @@ public class MandelImagePanel  extends GBCPanel
       Point p=new Point((int)(event.getY()/filterscale),
                         (int)(event.getX()/filterscale));
       r=image.getRasterData();
-      int d=(r.getRaster())[(int)p.getX()][(int)p.getY()];
+      int d=r.getData((int)p.getY(),(int)p.getX());
       return "("+event.getX()+","+event.getY()+"): "+d;
     }
   }
@@ -24,13 +24,22 @@ import com.mandelsoft.mand.MandelException;
 import com.mandelsoft.io.AbstractFile;
 import com.mandelsoft.mand.MandelInfo;
 import com.mandelsoft.mand.MandelName;
+import com.mandelsoft.mand.MandelRaster;
 import com.mandelsoft.mand.PixelIterator;
+import com.mandelsoft.mand.calc.AreaCalculator;
+import com.mandelsoft.mand.calc.CalculationContext;
+import com.mandelsoft.mand.calc.ParallelAreaCalculator;
 import com.mandelsoft.mand.cm.ColormapModel.ResizeMode;
+import com.mandelsoft.mand.meth.IterationEngineRegistry;
+import com.mandelsoft.mand.scan.ColormapHandle;
+import com.mandelsoft.mand.scan.FolderWatcher;
 import com.mandelsoft.mand.scan.MandelFolder;
 import com.mandelsoft.mand.scan.MandelScanner;
+import com.mandelsoft.mand.scan.MandelScannerListener;
 import com.mandelsoft.mand.util.MandUtils;
 import com.mandelsoft.io.FolderLock;
 import com.mandelsoft.mand.QualifiedMandelName;
+import com.mandelsoft.mand.IterationState;
 import com.mandelsoft.mand.scan.MandelHandle;
 import java.io.File;
 import java.io.IOException;
@@ -58,8 +67,14 @@ public class Mand extends Command {
   private MandelInfo mi;
   private PixelIterator pi;
   private int limit;
-  private int[][] raster;
+  private MandelRaster raster;
   private Filter filter;
+  private boolean keepstate;
+  private boolean interiorcheck=true;
+  private IterationState state;   // state to continue limit pixels
+  private IterationState result;  // collected state for the new limit
+  private double[] z=new double[2];
+  private AreaCalculator calculator;
 
   public Mand(MandelData md, QualifiedMandelName n)
   {
@@ -105,6 +120,34 @@ public class Mand extends Command {
     this.filter=filter;
   }
 
+  /**
+   * Sets an area calculator used instead of the built-in sequential
+   * calculation, for example a {@link ParallelAreaCalculator}.
+   */
+  public void setAreaCalculator(AreaCalculator calculator)
+  {
+    this.calculator=calculator;
+  }
+
+  /**
+   * Enables the persistence of the iteration state of the pixels
+   * at the limit, so a later refinement can continue the iteration.
+   */
+  public void setKeepIterationState(boolean keepstate)
+  {
+    this.keepstate=keepstate;
+  }
+
+  /**
+   * Enables or disables the detection of interior pixels
+   * (see {@link MandelInfo#setInteriorCheck(boolean)}). It is enabled
+   * by default.
+   */
+  public void setInteriorCheck(boolean interiorcheck)
+  {
+    this.interiorcheck=interiorcheck;
+  }
+
   public File getFile()
   {
     return file;
@@ -132,10 +175,10 @@ public class Mand extends Command {
               ry);
     }
 
-    int[][] tmpraster=tmp.getRaster().getRaster();
+    MandelRaster tmpraster=tmp.getRaster();
     for (int y=0; y<ry; y++) {
       for (int x=0; x<rx; x++) {
-        if (raster[y][x]!=tmpraster[y][x])
+        if (raster.getData(x, y)!=tmpraster.getData(x, y))
           throw new MandelException("content mismatch");
       }
     }
@@ -155,10 +198,24 @@ public class Mand extends Command {
       return true;
     }
 
-    raster=md.createRaster().getRaster();
+    if (md.getRaster()!=null&&file!=null) {
+      try {
+        state=IterationState.read(IterationState.getFile(file), mi);
+        if (state!=null) {
+          System.out.println("continuing "+state.size()+
+                             " pixels at limit "+state.getLimit());
+        }
+      }
+      catch (IOException io) {
+        System.err.println("*** cannot read iteration state: "+io);
+      }
+    }
+    if (keepstate) result=new IterationState(limit);
+    raster=md.createRaster();
     long start=System.currentTimeMillis();
     try {
-      calc2();
+      if (calculator!=null) calcArea();
+      else calc2();
     }
     catch (ShutdownException ex) {
       aborted=true;
@@ -190,6 +247,7 @@ public class Mand extends Command {
 
   private void setupContext()
   {
+    mi.setInteriorCheck(interiorcheck);
     pi=MandIter.createPixelIterator(mi);
 
     rx=mi.getRX();
@@ -225,35 +283,40 @@ public class Mand extends Command {
   }
 
   private boolean aborted;
-  private long lastcheck=0;
+  private volatile long lastcheck=0;
   static private final long TIMEOUT = 1000 * 60 * 10; // 10 min
   static private final File shutdown = new File("shutdown");
   
   int handle(int x, int y)
-  { int it=raster[y][x];
+  { int it=raster.getData(x, y);
 
     if (it==0) {
-      int i=pi.iter();
+      int i=IterationState.iter(pi, state, result, y*rx+x, limit, z);
       if (i>limit) {
-          raster[y][x]=it=0;
+          raster.setData(x, y, it=0);
           mccnt++;
           mcnt++;
           i--;
       }
       else {
-        raster[y][x]=it=i;
+        raster.setData(x, y, it=i);
       }
       if (i<min) min=i;
       if (i>max) max=i;
       cnt+=i;
     }
     else cnt+=it;
+    checkShutdown();
+    return it;
+  }
+
+  private void checkShutdown()
+  {
     long cur=System.currentTimeMillis();
     if (cur>lastcheck+TIMEOUT) {
       lastcheck=cur;
       if (shutdown.exists()) throw new ShutdownException();
     }
-    return it;
   }
 
   private void calc2()
@@ -333,7 +396,7 @@ public class Mand extends Command {
   private int checkHLine(int u, int sx, int sy, int n)
   {
     if (u>=0) for (int x=sx; x<sx+n; x++) {
-      if (raster[sy][x]!=u) return -1;
+      if (raster.getData(x, sy)!=u) return -1;
     }
     return u;
   }
@@ -341,7 +404,7 @@ public class Mand extends Command {
   private int checkVLine(int u, int sx, int sy, int n)
   {
     if (u>=0) for (int y=sy; y<sy+n; y++) {
-      if (raster[y][sx]!=u) return -1;
+      if (raster.getData(sx, y)!=u) return -1;
     }
     return u;
   }
@@ -351,12 +414,68 @@ public class Mand extends Command {
     //System.out.println("fill "+sx+","+sy+"("+nx+"x"+ny+") with "+u);
     for (int y=sy; y<sy+ny; y++) {
       for (int x=sx; x<sx+nx; x++) {
-        raster[y][x]=u;
+        raster.setData(x, y, u);
       }
     }
     if (u==0) mcnt+=nx*ny;
   }
 
+  ////////////////////////////////////////////////////////////////////////
+  // calculation with area calculator
+  ////////////////////////////////////////////////////////////////////////
+
+  private void calcArea()
+  {
+    AreaContext c=new AreaContext();
+    c.setPixelIterator(pi);
+    c.setIterationState(state);
+    c.setResultState(result);
+    c.setMinIt(min);
+    c.setMaxIt(max);
+    calculator.calc(c);
+    min=c.getMinIt();
+    max=c.getMaxIt();
+    cnt=c.getNumIt();
+    mcnt=(int)c.getMCnt();
+    // like for server calculations all calculated pixels are counted
+    mccnt=(int)c.getCCnt();
+  }
+
+  /*
+   * Context working directly on the raster of the image. It may be
+   * used by several threads.
+   */
+  private class AreaContext extends CalculationContext {
+
+    public AreaContext()
+    {
+      super(mi);
+    }
+
+    @Override
+    public int getDataRel(int x, int y)
+    {
+      return raster.getData(x, y);
+    }
+
+    @Override
+    public void setDataRel(int x, int y, int it)
+    {
+      raster.setData(x, y, it);
+      checkShutdown();
+    }
+
+    @Override
+    protected void resetData()
+    {
+    }
+
+    @Override
+    public void createData()
+    { // the raster of the image is used
+    }
+  }
+
   ////////////////////////////////////////////////////////////////////////
   // iteration for pixel
   ////////////////////////////////////////////////////////////////////////
@@ -393,6 +512,9 @@ public class Mand extends Command {
     else {
       write(file, verbose);
       save.delete();
+      if (result!=null) {
+        result.write(IterationState.getFile(file), mi);
+      }
     }
   }
 
@@ -444,6 +566,9 @@ public class Mand extends Command {
     boolean sflag=false; // server mode
     boolean cflag=false;
     boolean dflag=false; // delete obsolete
+    boolean zflag=false; // keep iteration state
+    boolean iflag=true;  // interior check
+    int threads=0;       // threads for parallel calculation
     Filter filter=new Filter();
     
     Set<File> files=new HashSet<File>();
@@ -462,6 +587,12 @@ public class Mand extends Command {
           case 'c':
             cflag=true;
             break;
+          case 'z':
+            zflag=true;
+            break;
+          case 'I':
+            iflag=false;
+            break;
           case 'f':
             filter.fast=true;
             break;
@@ -476,6 +607,39 @@ public class Mand extends Command {
             }
             else Error("name prefix missing");
             break;
+          case 't':
+            if (args.length>c) {
+              try {
+                threads=Integer.parseInt(args[c++]);
+              }
+              catch (NumberFormatException ex) {
+                Error("illegal thread count '"+args[c-1]+"'");
+              }
+            }
+            else Error("thread count missing");
+            break;
+          case 'E':
+            if (args.length>c) {
+              try {
+                IterationEngineRegistry.getDefault().setForced(args[c++]);
+              }
+              catch (IllegalArgumentException ex) {
+                Error(ex.getMessage());
+              }
+            }
+            else Error("iteration engine missing");
+            break;
+          case 'X':
+            if (args.length>c) {
+              try {
+                IterationEngineRegistry.getDefault().exclude(args[c++]);
+              }
+              catch (IllegalArgumentException ex) {
+                Error(ex.getMessage());
+              }
+            }
+            else Error("iteration engine missing");
+            break;
           default:
             Error("illegal option '"+opt+"'");
         }
@@ -486,8 +650,13 @@ public class Mand extends Command {
       files.add(new File(args[c++]));
     }
 
+    ParallelAreaCalculator calc=null;
+    if (threads>1) {
+      calc=new ParallelAreaCalculator(threads);
+    }
+
     if (sflag) {
-      service(dflag,filter);
+      service(dflag,zflag,iflag,filter,calc);
     }
     else {
       try {
@@ -495,6 +664,9 @@ public class Mand extends Command {
         for (File f:files) {
           try {
             Mand m=new Mand(f, env);
+            m.setKeepIterationState(zflag);
+            m.setInteriorCheck(iflag);
+            m.setAreaCalculator(calc);
             m.calculate();
             m.write();
             if (cflag) {
@@ -515,6 +687,9 @@ public class Mand extends Command {
       catch (IllegalConfigurationException ex) {
         Error("illegal config: "+ex);
       }
+      finally {
+        if (calc!=null) calc.shutdown();
+      }
     }
   }
   
@@ -535,6 +710,9 @@ public class Mand extends Command {
 
   ////////////////////////////////////////////////////////////////////////////
   private static class Service {
+    static final long POLL=20*1000;         // rescan without folder watcher
+    static final long POLL_WATCHED=10*60*1000;
+
     Environment env;
     Set<AbstractFile> ignored;
     MandelScanner imagescan;
@@ -542,18 +720,77 @@ public class Mand extends Command {
     MandelScanner infoscan;
     MandelScanner prioscan;
     boolean dflag;
+    boolean zflag;
+    boolean iflag;
     Filter filter;
+    AreaCalculator calc;
+    boolean changed;
 
-    public Service(boolean dflag, Filter filter) throws IllegalConfigurationException
+    public Service(boolean dflag, boolean zflag, boolean iflag,
+                   Filter filter, AreaCalculator calc)
+           throws IllegalConfigurationException
     {
       this.dflag=dflag;
+      this.zflag=zflag;
+      this.iflag=iflag;
       this.filter=filter;
+      this.calc=calc;
       env=new Environment(null);
       ignored=new HashSet<AbstractFile>();
       imagescan=env.getImageDataScanner();
       incompletescan=env.getIncompleteScanner();
       infoscan=env.getInfoScanner();
       prioscan=env.getPrioInfoScanner();
+
+      ChangeListener l=new ChangeListener();
+      infoscan.addMandelScannerListener(l);
+      prioscan.addMandelScannerListener(l);
+    }
+
+    private class ChangeListener implements MandelScannerListener {
+      public void addMandelFile(MandelScanner s, MandelHandle h)
+      { changed();
+      }
+
+      public void removeMandelFile(MandelScanner s, MandelHandle h)
+      { changed();
+      }
+
+      public void addColormap(MandelScanner s, ColormapHandle h)
+      {
+      }
+
+      public void removeColormap(MandelScanner s, ColormapHandle h)
+      {
+      }
+
+      public void scannerChanged(MandelScanner s)
+      { changed();
+      }
+    }
+
+    synchronized
+    void changed()
+    {
+      changed=true;
+      notifyAll();
+    }
+
+    /*
+     * wait for a change of the scanners. If the folders are watched
+     * the scanners are updated on changes, otherwise the timeout is
+     * the period for rescanning them.
+     */
+    synchronized
+    void waitForChange(long timeout) throws InterruptedException
+    {
+      long end=System.currentTimeMillis()+timeout;
+      long d;
+
+      while (!changed && (d=end-System.currentTimeMillis())>0) {
+        wait(d);
+      }
+      changed=false;
     }
 
     public Environment getEnvironment()
@@ -583,7 +820,7 @@ public class Mand extends Command {
         if (found==0) {
           //System.out.println("nothing found");
           try {
-            Thread.sleep(1000*20);
+            waitForChange(FolderWatcher.isActive()?POLL_WATCHED:POLL);
           }
           catch (InterruptedException ie) {
             System.exit(1);
@@ -693,6 +930,9 @@ public class Mand extends Command {
         ///////////////
         Mand m=new Mand(req, old, name, env);
         m.setFilter(filter);
+        m.setKeepIterationState(zflag);
+        m.setInteriorCheck(iflag);
+        m.setAreaCalculator(calc);
         if (!m.calculate()) {
           ignored.add(f);
           f.releaseLock();
@@ -724,7 +964,8 @@ public class Mand extends Command {
     }
   }
 
-  static private void service(boolean dflag, Filter filter)
+  static private void service(boolean dflag, boolean zflag, boolean iflag,
+                              Filter filter, AreaCalculator calc)
   {
     try {
       if (filter!=null) {
@@ -733,7 +974,9 @@ public class Mand extends Command {
         if (filter.variants) System.out.println("variants filter is on");
         if (filter.fast) System.out.println("fast filter is on");
       }
-      Service srv=new Service(dflag, filter);
+      if (calc!=null) System.out.println("parallel calculation is on");
+      if (!iflag) System.out.println("interior check is off");
+      Service srv=new Service(dflag, zflag, iflag, filter, calc);
       srv.service();
     }
     catch (IllegalConfigurationException ex) {
@@ -140,16 +140,17 @@ public class Updater extends MandUtils {
       int limit=info.getLimitIt();
       int mcnt=0;
       long cnt=0;
-      int[][] r=raster.getRaster();
       int rx=raster.getRX();
       int ry=raster.getRY();
-      for (int x=0; x<rx; x++) {
-        for (int y=0; y<ry; y++) {
-          if (r[y][x]==0) {
+      int[] r=new int[rx];
+      for (int y=0; y<ry; y++) {
+        raster.getRow(y, r);
+        for (int x=0; x<rx; x++) {
+          if (r[x]==0) {
             mcnt++;
             cnt+=limit;
           }
-          else cnt+=r[y][x];
+          else cnt+=r[x];
         }
       }
       info.setMCnt(mcnt);
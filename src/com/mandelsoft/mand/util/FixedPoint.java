@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mandelsoft.mand.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Mutable signed fixed point number with a 32 bit integer part and
+ * a configurable number of 32 bit fraction limbs.
+ *
+ * All operations store their result in this object and do not
+ * allocate any memory, the target may be identical to an operand.
+ * Multiplications are truncated, the lowest limbs are calculated with
+ * one guard limb only.
+ *
+ * @author Uwe Krueger
+ */
+public final class FixedPoint {
+  static private final long MASK=0xFFFFFFFFL;
+
+  private final int   f;    // number of fraction limbs
+  private final long[] m;   // magnitude, m[0] is integer part
+  private final long[] tmp; // multiplication buffer (one guard limb)
+  private boolean neg;
+
+  public FixedPoint(int f)
+  {
+    this.f=f;
+    this.m=new long[f+1];
+    this.tmp=new long[f+2];
+  }
+
+  public FixedPoint(int f, BigDecimal v)
+  {
+    this(f);
+    set(v);
+  }
+
+  static public int getLimbs(int bits)
+  {
+    return (bits+31)/32;
+  }
+
+  public int getLimbs()
+  {
+    return f;
+  }
+
+  public boolean isNegative()
+  {
+    return neg;
+  }
+
+  public boolean isZero()
+  {
+    for (int i=0; i<=f; i++) {
+      if (m[i]!=0) return false;
+    }
+    return true;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // conversion
+  ///////////////////////////////////////////////////////////////
+
+  public FixedPoint setZero()
+  {
+    for (int i=0; i<=f; i++) m[i]=0;
+    neg=false;
+    return this;
+  }
+
+  public FixedPoint set(FixedPoint a)
+  {
+    System.arraycopy(a.m, 0, m, 0, f+1);
+    neg=a.neg;
+    return this;
+  }
+
+  public FixedPoint set(BigDecimal v)
+  {
+    BigInteger i=v.abs().multiply(new BigDecimal(BigInteger.ONE.shiftLeft(32*f)))
+                        .toBigInteger();
+    for (int k=f; k>=0; k--) {
+      m[k]=i.longValue()&MASK;
+      i=i.shiftRight(32);
+    }
+    neg=v.signum()<0;
+    normalize();
+    return this;
+  }
+
+  public BigDecimal toBigDecimal()
+  {
+    BigInteger i=BigInteger.ZERO;
+    for (int k=0; k<=f; k++) {
+      i=i.shiftLeft(32).or(BigInteger.valueOf(m[k]));
+    }
+    BigDecimal v=new BigDecimal(i).divide(
+                       new BigDecimal(BigInteger.ONE.shiftLeft(32*f)));
+    return neg?v.negate():v;
+  }
+
+  public double doubleValue()
+  {
+    double v=0;
+    double s=1;
+    for (int k=0; k<=f&&k<4; k++) {
+      v+=m[k]*s;
+      s/=4294967296.0;
+    }
+    return neg?-v:v;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // comparison
+  ///////////////////////////////////////////////////////////////
+
+  static private int compareMagnitude(long[] a, long[] b, int f)
+  {
+    for (int k=0; k<=f; k++) {
+      if (a[k]!=b[k]) return a[k]<b[k]?-1:1;
+    }
+    return 0;
+  }
+
+  public int compareTo(FixedPoint a)
+  {
+    if (neg!=a.neg) return neg?-1:1;
+    int c=compareMagnitude(m, a.m, f);
+    return neg?-c:c;
+  }
+
+  ///////////////////////////////////////////////////////////////
+  // arithmetic
+  ///////////////////////////////////////////////////////////////
+
+  private void normalize()
+  {
+    if (neg&&isZero()) neg=false;
+  }
+
+  // r=a+b (magnitudes)
+  static private void addMagnitude(long[] r, long[] a, long[] b, int f)
+  {
+    long c=0;
+    for (int k=f; k>=0; k--) {
+      long t=a[k]+b[k]+c;
+      r[k]=t&MASK;
+      c=t>>>32;
+    }
+  }
+
+  // r=a-b (magnitudes, a>=b)
+  static private void subMagnitude(long[] r, long[] a, long[] b, int f)
+  {
+    long c=0;
+    for (int k=f; k>=0; k--) {
+      long t=a[k]-b[k]-c;
+      r[k]=t&MASK;
+      c=(t>>>63);
+    }
+  }
+
+  private FixedPoint add(FixedPoint a, FixedPoint b, boolean bneg)
+  {
+    if (a.neg==bneg) {
+      addMagnitude(m, a.m, b.m, f);
+      neg=bneg;
+    }
+    else {
+      if (compareMagnitude(a.m, b.m, f)>=0) {
+        boolean n=a.neg;
+        subMagnitude(m, a.m, b.m, f);
+        neg=n;
+      }
+      else {
+        subMagnitude(m, b.m, a.m, f);
+        neg=bneg;
+      }
+      normalize();
+    }
+    return this;
+  }
+
+  public FixedPoint add(FixedPoint a, FixedPoint b)
+  {
+    return add(a, b, b.neg);
+  }
+
+  public FixedPoint sub(FixedPoint a, FixedPoint b)
+  {
+    return add(a, b, !b.neg);
+  }
+
+  public FixedPoint negate(FixedPoint a)
+  {
+    set(a);
+    neg=!neg;
+    normalize();
+    return this;
+  }
+
+  public FixedPoint shiftLeft(FixedPoint a, int n)
+  {
+    long c=0;
+    for (int k=f; k>=0; k--) {
+      long t=(a.m[k]<<n)|c;
+      m[k]=t&MASK;
+      c=t>>>32;
+    }
+    neg=a.neg;
+    return this;
+  }
+
+  public FixedPoint mul(FixedPoint a, FixedPoint b)
+  {
+    long[] am=a.m;
+    long[] bm=b.m;
+    int g=f+1; // guard limb index
+
+    for (int k=0; k<=g; k++) tmp[k]=0;
+    for (int i=f; i>=0; i--) {
+      long ai=am[i];
+      long c=0;
+      if (ai!=0) {
+        for (int j=Math.min(f, g-i); j>=0; j--) {
+          long t=ai*bm[j];
+          long l=(t&MASK)+tmp[i+j]+c;
+          tmp[i+j]=l&MASK;
+          c=(t>>>32)+(l>>>32);
+        }
+      }
+      if (i>0) tmp[i-1]=c;
+    }
+    boolean n=a.neg!=b.neg;
+    System.arraycopy(tmp, 0, m, 0, f+1);
+    neg=n;
+    normalize();
+    return this;
+  }
+
+  public FixedPoint square(FixedPoint a)
+  {
+    long[] am=a.m;
+    int g=f+1; // guard limb index
+
+    for (int k=0; k<=g; k++) tmp[k]=0;
+    // cross products a[i]*a[j], i<j
+    for (int i=f; i>=0; i--) {
+      long ai=am[i];
+      long c=0;
+      if (ai!=0) {
+        for (int j=Math.min(f, g-i); j>i; j--) {
+          long t=ai*am[j];
+          long l=(t&MASK)+tmp[i+j]+c;
+          tmp[i+j]=l&MASK;
+          c=(t>>>32)+(l>>>32);
+        }
+      }
+      if (2*i<=g) tmp[2*i]=c;
+    }
+    // double cross products and add squares
+    long c=0;
+    long h=0;
+    for (int k=g; k>=0; k--) {
+      long t=(tmp[k]<<1)+c+h;
+      h=0;
+      if ((k&1)==0&&k/2<=f) {
+        long s=am[k/2]*am[k/2];
+        t+=s&MASK;
+        h=s>>>32;
+      }
+      tmp[k]=t&MASK;
+      c=t>>>32;
+    }
+    System.arraycopy(tmp, 0, m, 0, f+1);
+    neg=false;
+    return this;
+  }
+
+  @Override
+  public String toString()
+  {
+    return toBigDecimal().toString();
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2013 Uwe Krueger.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.mandelsoft.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fork/join pool shared by all parallel computations not using an
+ * explicit pool. It is created on first use with one thread per processor.
+ *
+ * @author Uwe Krueger
+ */
+public class SharedPool {
+  static private ForkJoinPool pool;
+
+  private SharedPool()
+  {
+  }
+
+  synchronized
+  static public ForkJoinPool get()
+  {
+    if (pool==null) {
+      pool=new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return pool;
+  }
+}